@@ -0,0 +1,93 @@
+import java.util.*;
+
+/**
+* @brief access history of the Proxy, a successor table per orig_path counting which path each client opened next
+* @brief predicts the paths likely to be opened after one, so they can be prefetched while the client works
+*/
+public class AccessPredictor {
+
+    /**
+     * most paths with a successor table, the least recently updated one is dropped first
+     */
+    private static final int max_paths = 65536;
+    /**
+     * most successors kept per path, the least frequent one is dropped first
+     */
+    private static final int max_successors = 8;
+    /**
+     * counts of a table are halved once they sum to this, so old habits fade
+     */
+    private static final int decay_total = 256;
+
+    private final double min_confidence;
+    private final int max_predictions;
+    private final LinkedHashMap<String, Map<String, Integer>> successors = new LinkedHashMap<String, Map<String, Integer>>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Integer>> eldest) {
+            return size() > max_paths;
+        }
+    };
+
+    /**
+     * @param min_confidence least share of a path's successions a successor needs to be predicted
+     * @param max_predictions most paths predicted after one open
+     */
+    public AccessPredictor(double min_confidence, int max_predictions) {
+        this.min_confidence = min_confidence;
+        this.max_predictions = max_predictions;
+    }
+
+    /**
+     * @brief count that a client opened next right after previous
+     * @param previous path the client opened before, null for its first open
+     * @param next path opened now
+     */
+    public synchronized void record(String previous, String next) {
+        if (previous == null || previous.equals(next)) {
+            return;
+        }
+        Map<String, Integer> table = successors.computeIfAbsent(previous, path -> new HashMap<String, Integer>());
+        table.merge(next, 1, Integer::sum);
+        if (table.size() > max_successors) {
+            String rarest = null;
+            for (Map.Entry<String, Integer> entry : table.entrySet()) {
+                if (!entry.getKey().equals(next) && (rarest == null || entry.getValue() < table.get(rarest))) {
+                    rarest = entry.getKey();
+                }
+            }
+            table.remove(rarest);
+        }
+        int total = 0;
+        for (int count : table.values()) {
+            total += count;
+        }
+        if (total >= decay_total) {
+            table.replaceAll((path, count) -> count / 2);
+            table.values().removeIf(count -> count == 0);
+        }
+    }
+
+    /**
+     * @param path path just opened
+     * @return paths likely opened next, most likely first; each was seen at least twice after path
+     */
+    public synchronized List<String> predict(String path) {
+        Map<String, Integer> table = successors.get(path);
+        if (table == null) {
+            return Collections.emptyList();
+        }
+        int total = 0;
+        for (int count : table.values()) {
+            total += count;
+        }
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<Map.Entry<String, Integer>>(table.entrySet());
+        ranked.sort((a, b) -> b.getValue() - a.getValue());
+        List<String> predicted = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : ranked) {
+            if (predicted.size() >= max_predictions || entry.getValue() < 2 || entry.getValue() < min_confidence * total) {
+                break;
+            }
+            predicted.add(entry.getKey());
+        }
+        return predicted;
+    }
+}
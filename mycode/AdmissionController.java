@@ -0,0 +1,63 @@
+import java.util.*;
+
+/**
+* @brief decides whether a version missing from the Cache is worth caching, declined versions are streamed from the Server
+* @brief versions that fit in free space are always admitted, nothing is evicted for them
+* @brief otherwise files over max_size are never admitted and files over probation_size only on their second miss
+* @brief within window ms, so a one-off scan of large files streams past the cache and the hot working set survives it
+*/
+public class AdmissionController {
+
+    /**
+     * most paths remembered as seen once
+     */
+    private static final int seen_limit = 4096;
+
+    private final long max_size;
+    private final long probation_size;
+    private final long window;
+    /**
+     * orig_path of large files missed once to the time of that miss, oldest first
+     */
+    private final LinkedHashMap<String, Long> seen_once = new LinkedHashMap<String, Long>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > seen_limit;
+        }
+    };
+
+    /**
+     * @param max_size larger files are never admitted unless they fit in free space
+     * @param probation_size files at least this large are admitted on their second miss
+     * @param window ms within which the second miss must come
+     */
+    public AdmissionController(long max_size, long probation_size, long window) {
+        this.max_size = max_size;
+        this.probation_size = probation_size;
+        this.window = window;
+    }
+
+    /**
+     * @param orig_path original path of the version
+     * @param file_size size of the version
+     * @param free_size bytes the cache has free without evicting
+     * @return true to cache the version, false to stream it
+     */
+    public synchronized boolean admit(String orig_path, long file_size, long free_size) {
+        if (file_size <= free_size || file_size < probation_size) {
+            return true;
+        }
+        if (file_size > max_size) {
+            Metrics.increment("proxy.admission_declined_size");
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long first_miss = seen_once.remove(orig_path);
+        if (first_miss != null && now - first_miss <= window) {
+            Metrics.increment("proxy.admission_promoted");
+            return true;
+        }
+        seen_once.put(orig_path, now);
+        Metrics.increment("proxy.admission_declined_once");
+        return false;
+    }
+}
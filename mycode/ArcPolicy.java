@@ -0,0 +1,210 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+* @brief adaptive replacement cache, counted in bytes
+* @brief entries seen once sit in a recent list, entries seen again in a frequent list; paths evicted from either
+* @brief are remembered as ghosts, and a miss on a ghost moves the split between the lists towards the list it left
+*/
+public class ArcPolicy implements EvictionPolicy {
+
+    /**
+     * which list a live entry is in and the bytes it was counted with
+     */
+    private static class Entry {
+        boolean frequent;
+        /**
+         * inserted cold and not accessed since, kept in cold instead of recent
+         */
+        boolean cold;
+        long size;
+    }
+
+    private final long capacity;
+    /**
+     * bytes the recent list may hold before it gives up entries in preference to the frequent list
+     */
+    private long target = 0;
+    private final Map<CachedFileInfo, Entry> entries = new HashMap<CachedFileInfo, Entry>();
+    private final LinkedHashSet<CachedFileInfo> recent = new LinkedHashSet<CachedFileInfo>();
+    private final LinkedHashSet<CachedFileInfo> frequent = new LinkedHashSet<CachedFileInfo>();
+    /**
+     * entries inserted cold, counted in recent_bytes but evicted before either list
+     */
+    private final LinkedHashSet<CachedFileInfo> cold = new LinkedHashSet<CachedFileInfo>();
+    private long recent_bytes = 0;
+    private long frequent_bytes = 0;
+    /**
+     * ghosts, orig_path of evicted entries to their size, from oldest to newest
+     */
+    private final LinkedHashMap<String, Long> recent_ghosts = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> frequent_ghosts = new LinkedHashMap<String, Long>();
+    private long recent_ghost_bytes = 0;
+    private long frequent_ghost_bytes = 0;
+
+    /**
+     * @param capacity cache size in bytes, also bounds the bytes remembered as ghosts
+     */
+    public ArcPolicy(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public void on_insert(CachedFileInfo node) {
+        if (entries.containsKey(node)) {
+            return;
+        }
+        String key = key_of(node);
+        long size = node.file_size;
+        Long ghost = recent_ghosts.remove(key);
+        if (ghost != null) {
+            // Left the recent list too early, let it grow
+            recent_ghost_bytes -= ghost;
+            long step = size * Math.max(1, frequent_ghost_bytes / Math.max(1, recent_ghost_bytes));
+            target = Math.min(capacity, target + Math.max(1, step));
+            link(node, true);
+            return;
+        }
+        ghost = frequent_ghosts.remove(key);
+        if (ghost != null) {
+            // Left the frequent list too early, let it grow
+            frequent_ghost_bytes -= ghost;
+            long step = size * Math.max(1, recent_ghost_bytes / Math.max(1, frequent_ghost_bytes));
+            target = Math.max(0, target - Math.max(1, step));
+            link(node, true);
+            return;
+        }
+        link(node, false);
+    }
+
+    public void on_insert_cold(CachedFileInfo node) {
+        if (entries.containsKey(node)) {
+            return;
+        }
+        // Ghosts are left alone, a guess says nothing about which list was too small
+        Entry entry = new Entry();
+        entry.cold = true;
+        entry.size = node.file_size;
+        entries.put(node, entry);
+        cold.add(node);
+        recent_bytes += entry.size;
+    }
+
+    public void on_access(CachedFileInfo node) {
+        Entry entry = unlink(node);
+        if (entry != null) {
+            // The first open of a cold entry is its first use, it joins the recent list
+            link(node, !entry.cold);
+        }
+    }
+
+    public void on_remove(CachedFileInfo node, boolean evicted) {
+        Entry entry = unlink(node);
+        if (entry == null || entry.cold) {
+            // A cold entry nobody used leaves no ghost
+            return;
+        }
+        String key = key_of(node);
+        if (entry.frequent) {
+            frequent_ghost_bytes += entry.size - nullable(frequent_ghosts.put(key, entry.size));
+        } else {
+            recent_ghost_bytes += entry.size - nullable(recent_ghosts.put(key, entry.size));
+        }
+        trim_ghosts();
+    }
+
+    public void on_resize(CachedFileInfo node, long old_size) {
+        Entry entry = entries.get(node);
+        if (entry == null) {
+            return;
+        }
+        long delta = node.file_size - entry.size;
+        entry.size = node.file_size;
+        if (entry.frequent) {
+            frequent_bytes += delta;
+        } else {
+            recent_bytes += delta;
+        }
+    }
+
+    public CachedFileInfo victim(Predicate<CachedFileInfo> evictable) {
+        CachedFileInfo cold_node = first(cold, evictable);
+        if (cold_node != null) {
+            return cold_node;
+        }
+        boolean prefer_recent = !recent.isEmpty() && (recent_bytes > target || frequent.isEmpty());
+        CachedFileInfo node = first(prefer_recent ? recent : frequent, evictable);
+        if (node == null) {
+            node = first(prefer_recent ? frequent : recent, evictable);
+        }
+        return node;
+    }
+
+    private static CachedFileInfo first(LinkedHashSet<CachedFileInfo> list, Predicate<CachedFileInfo> evictable) {
+        for (CachedFileInfo node : list) {
+            if (evictable.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief add node at the MRU end of a list, counted with its current size
+     */
+    private void link(CachedFileInfo node, boolean to_frequent) {
+        Entry entry = new Entry();
+        entry.frequent = to_frequent;
+        entry.size = node.file_size;
+        entries.put(node, entry);
+        if (to_frequent) {
+            frequent.add(node);
+            frequent_bytes += entry.size;
+        } else {
+            recent.add(node);
+            recent_bytes += entry.size;
+        }
+    }
+
+    private Entry unlink(CachedFileInfo node) {
+        Entry entry = entries.remove(node);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.frequent) {
+            frequent.remove(node);
+            frequent_bytes -= entry.size;
+        } else {
+            if (entry.cold) {
+                cold.remove(node);
+            } else {
+                recent.remove(node);
+            }
+            recent_bytes -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * @brief forget the oldest ghosts, the recent side with its ghosts fits in capacity and everything in twice that
+     */
+    private void trim_ghosts() {
+        Iterator<Map.Entry<String, Long>> itr = recent_ghosts.entrySet().iterator();
+        while (itr.hasNext() && recent_bytes + recent_ghost_bytes > capacity) {
+            recent_ghost_bytes -= itr.next().getValue();
+            itr.remove();
+        }
+        itr = frequent_ghosts.entrySet().iterator();
+        while (itr.hasNext() && recent_bytes + frequent_bytes + recent_ghost_bytes + frequent_ghost_bytes > 2 * capacity) {
+            frequent_ghost_bytes -= itr.next().getValue();
+            itr.remove();
+        }
+    }
+
+    private static String key_of(CachedFileInfo node) {
+        return (node.orig_path != null) ? node.orig_path : node.path;
+    }
+
+    private static long nullable(Long value) {
+        return (value == null) ? 0 : value;
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* @brief content-addressed chunk store of recent file versions on the Server
+* @brief each kept version has a manifest, a chunk shared by versions or files is stored once
+*/
+public class BlockStore {
+
+    /**
+     * how long a chunk reported present or just received is kept without a manifest referencing it
+     */
+    private static final long staged_ttl = 600000;
+
+    private final File block_dir;
+    private final File manifest_dir;
+    /**
+     * manifests kept per path, older versions are dropped with their unshared chunks
+     */
+    private final int manifests_kept;
+
+    /**
+     * number of kept manifest entries referencing each chunk, guarded by this
+     */
+    private final Map<String, Integer> refcounts = new HashMap<String, Integer>();
+    /**
+     * chunks promised to an upload in progress, hash to expiry time, guarded by this
+     */
+    private final Map<String, Long> staged = new HashMap<String, Long>();
+    private long logical_bytes = 0;
+    private long stored_bytes = 0;
+
+    /**
+     * @param dir store directory, created if missing
+     * @param manifests_kept manifests kept per path
+     */
+    public BlockStore(String dir, int manifests_kept) {
+        this.block_dir = new File(dir, "blocks");
+        this.manifest_dir = new File(dir, "manifests");
+        this.manifests_kept = manifests_kept;
+        block_dir.mkdirs();
+        manifest_dir.mkdirs();
+    }
+
+    /**
+     * @brief rebuild reference counts from the kept manifests and delete chunks none of them use
+     * @brief manifests and chunks left half written by a crash are deleted as well
+     */
+    public synchronized void load() {
+        long start_time = System.nanoTime();
+        int manifests = 0;
+        File[] path_dirs = manifest_dir.listFiles();
+        for (File path_dir : (path_dirs == null) ? new File[0] : path_dirs) {
+            File[] versions = path_dir.listFiles();
+            for (File version : (versions == null) ? new File[0] : versions) {
+                if (version.getName().endsWith(".tmp")) {
+                    // Half written by a crash, the version it was for never committed
+                    version.delete();
+                    continue;
+                }
+                Manifest manifest = read_manifest(version);
+                if (manifest == null) {
+                    version.delete();
+                    continue;
+                }
+                reference(manifest, 1);
+                manifests ++;
+            }
+        }
+        int removed = 0;
+        File[] prefixes = block_dir.listFiles();
+        for (File prefix : (prefixes == null) ? new File[0] : prefixes) {
+            File[] blocks = prefix.listFiles();
+            for (File block : (blocks == null) ? new File[0] : blocks) {
+                if (refcounts.containsKey(block.getName())) {
+                    stored_bytes += block.length();
+                } else {
+                    block.delete();
+                    removed ++;
+                }
+            }
+        }
+        publish();
+        System.err.println("BlockStore: loaded " + manifests + " manifests, " + refcounts.size() + " chunks, removed "
+            + removed + " unreferenced in " + (System.nanoTime() - start_time) / 1000000 + " ms");
+    }
+
+    /**
+     * @brief find which chunks an upload has to send, the present ones are held until the upload commits
+     * @param hashes chunk hashes of the new version
+     * @return hashes not in the store, without duplicates
+     */
+    public synchronized List<String> missing(List<String> hashes) {
+        long expiry = System.currentTimeMillis() + staged_ttl;
+        Set<String> missing = new LinkedHashSet<String>();
+        for (String hash : hashes) {
+            if (is_known(hash)) {
+                staged.put(hash, expiry);
+            } else {
+                missing.add(hash);
+            }
+        }
+        return new ArrayList<String>(missing);
+    }
+
+    /**
+     * @brief store one chunk sent by an upload
+     * @param data chunk bytes
+     * @return 0 on success, -1 on IOException
+     */
+    public int put(byte[] data) {
+        try {
+            store(Chunker.hash(data, 0, data.length), data, 0, data.length);
+        } catch (IOException e) {
+            System.err.println("BlockStore: put() failed");
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * @brief check every chunk of a manifest is present and hold them until it is recorded
+     * @return true if the manifest can be assembled
+     */
+    public synchronized boolean pin(Manifest manifest) {
+        long expiry = System.currentTimeMillis() + staged_ttl;
+        for (String hash : manifest.hashes) {
+            if (!is_known(hash)) {
+                return false;
+            }
+            staged.put(hash, expiry);
+        }
+        return true;
+    }
+
+    /**
+     * @brief write the chunks of a pinned manifest into dst from offset 0
+     * @return 0 on success, -1 if a chunk is missing or damaged
+     */
+    public int assemble(Manifest manifest, FileChannel dst) throws IOException {
+        long offset = 0;
+        for (int i = 0; i < manifest.hashes.size(); i ++) {
+            File block = get_block_file(manifest.hashes.get(i));
+            int length = manifest.lengths.get(i);
+            if (block.length() != length) {
+                System.err.println("BlockStore: chunk " + manifest.hashes.get(i) + " missing or damaged");
+                return -1;
+            }
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(block.toPath()));
+            while (data.hasRemaining()) {
+                offset += dst.write(data, offset);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @brief chunk a file and store the chunks not yet present
+     * @param src file to read, positionally
+     * @param length bytes to chunk
+     * @return manifest of the file, to pass to record()
+     */
+    public Manifest ingest(FileChannel src, long length) throws IOException {
+        return Chunker.scan(src, length, (hash, buf, off, len) -> store(hash, buf, off, len));
+    }
+
+    /**
+     * @brief keep the manifest of a new version and drop the versions beyond manifests_kept
+     * @param remote_path canonical server path
+     * @param version version the manifest describes
+     * @param manifest chunks of that version, all present
+     */
+    public void record(String remote_path, int version, Manifest manifest) {
+        File path_dir = get_path_dir(remote_path);
+        path_dir.mkdirs();
+        File target = new File(path_dir, Integer.toString(version));
+        File tmp = new File(path_dir, version + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(remote_path + "\n" + manifest.length + "\n");
+            for (int i = 0; i < manifest.hashes.size(); i ++) {
+                out.write(manifest.hashes.get(i) + " " + manifest.lengths.get(i) + "\n");
+            }
+        } catch (IOException e) {
+            System.err.println("BlockStore: record() failed for " + remote_path);
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            File previous = target.exists() ? target : null;
+            Manifest replaced = (previous == null) ? null : read_manifest(previous);
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("BlockStore: cannot install manifest for " + remote_path);
+                e.printStackTrace();
+                tmp.delete();
+                return;
+            }
+            reference(manifest, 1);
+            if (replaced != null) {
+                release(replaced);
+            }
+            List<Integer> versions = list_versions(path_dir);
+            for (int i = 0; i + manifests_kept < versions.size(); i ++) {
+                drop_manifest(new File(path_dir, Integer.toString(versions.get(i))));
+            }
+            prune_staged();
+            publish();
+        }
+    }
+
+    /**
+     * @brief drop every manifest of a deleted path
+     * @param remote_path canonical server path
+     */
+    public synchronized void forget(String remote_path) {
+        File path_dir = get_path_dir(remote_path);
+        for (int version : list_versions(path_dir)) {
+            drop_manifest(new File(path_dir, Integer.toString(version)));
+        }
+        path_dir.delete();
+        publish();
+    }
+
+    private void store(String hash, byte[] buf, int off, int len) throws IOException {
+        synchronized (this) {
+            if (is_known(hash)) {
+                staged.put(hash, System.currentTimeMillis() + staged_ttl);
+                return;
+            }
+        }
+        File block = get_block_file(hash);
+        block.getParentFile().mkdirs();
+        File tmp = File.createTempFile(hash, ".tmp", block.getParentFile());
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf, off, len);
+        }
+        synchronized (this) {
+            if (is_known(hash)) {
+                // Stored by a concurrent upload meanwhile
+                tmp.delete();
+            } else {
+                Files.move(tmp.toPath(), block.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                stored_bytes += len;
+            }
+            staged.put(hash, System.currentTimeMillis() + staged_ttl);
+            publish();
+        }
+    }
+
+    private boolean is_known(String hash) {
+        return refcounts.containsKey(hash) || staged.containsKey(hash);
+    }
+
+    private void reference(Manifest manifest, int delta) {
+        for (String hash : manifest.hashes) {
+            refcounts.merge(hash, delta, Integer::sum);
+        }
+        logical_bytes += delta * manifest.length;
+    }
+
+    private void release(Manifest manifest) {
+        reference(manifest, -1);
+        for (String hash : manifest.hashes) {
+            Integer count = refcounts.get(hash);
+            if (count != null && count <= 0) {
+                refcounts.remove(hash);
+                if (!staged.containsKey(hash)) {
+                    delete_block(hash);
+                }
+            }
+        }
+    }
+
+    private void drop_manifest(File file) {
+        Manifest manifest = read_manifest(file);
+        file.delete();
+        if (manifest != null) {
+            release(manifest);
+        }
+    }
+
+    /**
+     * @brief forget expired promises, deleting the chunks no manifest took up
+     */
+    private void prune_staged() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = staged.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() < now) {
+                it.remove();
+                if (!refcounts.containsKey(entry.getKey())) {
+                    delete_block(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void delete_block(String hash) {
+        File block = get_block_file(hash);
+        stored_bytes -= block.length();
+        block.delete();
+    }
+
+    private void publish() {
+        Metrics.set("server.blockstore_logical_bytes", logical_bytes);
+        Metrics.set("server.blockstore_stored_bytes", stored_bytes);
+        Metrics.set("server.blockstore_saved_bytes", Math.max(0, logical_bytes - stored_bytes));
+        Metrics.set("server.blockstore_dedup_ratio_pct", (stored_bytes == 0) ? 100 : logical_bytes * 100 / stored_bytes);
+    }
+
+    private Manifest read_manifest(File file) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            in.readLine();
+            Manifest manifest = new Manifest();
+            manifest.length = Long.parseLong(in.readLine());
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                manifest.hashes.add(line.substring(0, space));
+                manifest.lengths.add(Integer.parseInt(line.substring(space + 1)));
+            }
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("BlockStore: unreadable manifest " + file);
+            return null;
+        }
+    }
+
+    private static List<Integer> list_versions(File path_dir) {
+        List<Integer> versions = new ArrayList<Integer>();
+        String[] names = path_dir.list();
+        for (String name : (names == null) ? new String[0] : names) {
+            try {
+                versions.add(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                // Left over .tmp file
+            }
+        }
+        Collections.sort(versions);
+        return versions;
+    }
+
+    private File get_block_file(String hash) {
+        return new File(new File(block_dir, hash.substring(0, 2)), hash);
+    }
+
+    private File get_path_dir(String remote_path) {
+        byte[] path_bytes = remote_path.getBytes(StandardCharsets.UTF_8);
+        return new File(manifest_dir, Chunker.hash(path_bytes, 0, path_bytes.length));
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+* @brief read fd of a version the cache declined, bytes are streamed from the Server chunk by chunk and never stored
+* @brief keeps the chunk being read and, while reads are sequential, fetches the next chunk ahead on the transfer workers
+*/
+public class BypassReader {
+
+    private final String orig_path;
+    private final int version;
+    private final long length;
+    private final int chunk_size;
+    private final TransferEngine transfers;
+    /**
+     * download session holding the version on the Server while the fd is open
+     */
+    private TransferSession session;
+    /**
+     * chunk being read, the offset starts one chunk before 0 so the first read of chunk 0 counts as sequential
+     */
+    private long chunk_offset;
+    private byte[] chunk;
+    private long ahead_offset = -1;
+    private Future<byte[]> ahead;
+
+    public BypassReader(String orig_path, int version, long length, int chunk_size, TransferEngine transfers) {
+        this.orig_path = orig_path;
+        this.version = version;
+        this.length = length;
+        this.chunk_size = chunk_size;
+        this.transfers = transfers;
+        this.chunk_offset = -chunk_size;
+    }
+
+    /**
+     * @brief hold the version on the Server
+     * @return false if the Server no longer has the version
+     */
+    public boolean open() {
+        session = transfers.hold_version(orig_path, version);
+        return session != null;
+    }
+
+    /**
+     * @return length of the version
+     */
+    public long get_length() {
+        return length;
+    }
+
+    /**
+     * @brief copy bytes from pos on into buf
+     * @return bytes read, 0 at end of file, -1 if the Server cannot provide the version
+     */
+    public synchronized int read(byte[] buf, long pos) throws IOException {
+        int copied = 0;
+        while (copied < buf.length && pos + copied < length) {
+            long offset = pos + copied;
+            long wanted = (offset / chunk_size) * chunk_size;
+            byte[] data = chunk_at(wanted);
+            if (data == null) {
+                return (copied > 0) ? copied : -1;
+            }
+            int in_chunk = (int)(offset - wanted);
+            if (in_chunk >= data.length) {
+                break;
+            }
+            int count = Math.min(buf.length - copied, data.length - in_chunk);
+            System.arraycopy(data, in_chunk, buf, copied, count);
+            copied += count;
+        }
+        if (copied > 0) {
+            Metrics.add("proxy.bypass_bytes", copied);
+        }
+        return copied;
+    }
+
+    /**
+     * @brief cancel the read ahead and release the version on the Server
+     */
+    public synchronized void close() {
+        if (ahead != null) {
+            ahead.cancel(false);
+            ahead = null;
+        }
+        transfers.close_session(session);
+        session = null;
+        chunk = null;
+    }
+
+    /**
+     * @return chunk at offset, from the last chunk, the read ahead or the Server; null on failure
+     */
+    private byte[] chunk_at(long offset) throws IOException {
+        if (offset == chunk_offset) {
+            return chunk;
+        }
+        boolean sequential = (offset == chunk_offset + chunk_size);
+        byte[] data = null;
+        if (ahead != null && offset == ahead_offset) {
+            try {
+                data = ahead.get();
+            } catch (InterruptedException | ExecutionException e) {
+                // Fetched again below
+            }
+        } else if (ahead != null) {
+            ahead.cancel(false);
+        }
+        ahead = null;
+        if (data == null) {
+            data = transfers.fetch_chunk(orig_path, offset, version);
+            if (data == null) {
+                return null;
+            }
+        }
+        chunk_offset = offset;
+        chunk = data;
+        if (sequential && offset + chunk_size < length) {
+            final long next_offset = offset + chunk_size;
+            ahead_offset = next_offset;
+            ahead = transfers.submit(() -> transfers.fetch_chunk(orig_path, next_offset, version));
+        }
+        return data;
+    }
+}
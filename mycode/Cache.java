@@ -5,20 +5,82 @@ import java.util.concurrent.*;
 public class Cache {
 
     /**
-     * cache line used for maintain LRU
+     * @brief told when a complete _rdonly_ entry is committed and when it leaves the cache
+     * @brief called under the cache monitor, implementations must not block
      */
-    private LinkedList<CachedFileInfo> cache_line;
+    public interface Listener {
+        void committed(CachedFileInfo cached_fileinfo);
+        void dropped(CachedFileInfo cached_fileinfo);
+    }
+
     /**
-     * path-file map used for cache reference and a series of cache operations
+     * sentinel nodes of the intrusive doubly-linked recency list, head.next is LRU and tail.prev is MRU
+     */
+    private final CachedFileInfo head;
+    private final CachedFileInfo tail;
+    /**
+     * path-file map used for cache reference and a series of cache operations, also indexes the recency list nodes
      */
     private Map<String, CachedFileInfo> path_file_map;
+    /**
+     * orig_path to its cached _rdonly_ entries, used to find stale versions without probing every version id
+     */
+    private Map<String, List<CachedFileInfo>> orig_path_map;
     private int current_cache_size;
     private final int total_cache_size;
     private String cache_dir;
+    /**
+     * journal of the complete entries, null if the cache is not persistent
+     */
+    private CacheJournal journal;
+    /**
+     * chooses eviction victims, the recency list above only orders the journal
+     */
+    private final EvictionPolicy policy;
+    /**
+     * decides which missing versions are cached, null to cache every one
+     */
+    private AdmissionController admission;
+    /**
+     * told about complete entries, null if nobody listens
+     */
+    private Listener listener;
+    /**
+     * prefetched entries not opened yet, oldest first, and their bytes
+     */
+    private final LinkedHashSet<CachedFileInfo> unused_prefetches = new LinkedHashSet<CachedFileInfo>();
+    private long unused_prefetch_bytes = 0;
+    private long prefetches_used = 0;
+    private long prefetches_wasted = 0;
+    /**
+     * interrupted downloads kept to be resumed, partial cache path of the newest version by cache path without version
+     */
+    private final Map<String, String> partial_downloads = new ConcurrentHashMap<String, String>();
+    /**
+     * suffixes of a download in progress and of its record of how far it got
+     */
+    public static final String partial_suffix = ".partial";
+    public static final String progress_suffix = ".partial.progress";
+    /**
+     * partial downloads older than this are dropped on restore, in ms
+     */
+    private static final long partial_max_age = 86400000;
 
     public Cache(String cache_dir, int cache_size) {
-        cache_line = new LinkedList<CachedFileInfo>();
+        this(cache_dir, cache_size, new LruPolicy());
+    }
+
+    /**
+     * @param policy eviction policy, see EvictionPolicy.create()
+     */
+    public Cache(String cache_dir, int cache_size, EvictionPolicy policy) {
+        this.policy = policy;
+        head = new CachedFileInfo();
+        tail = new CachedFileInfo();
+        head.next = tail;
+        tail.prev = head;
         path_file_map = new ConcurrentHashMap<String, CachedFileInfo>();
+        orig_path_map = new HashMap<String, List<CachedFileInfo>>();
         total_cache_size = cache_size;
         current_cache_size = 0;
         this.cache_dir = cache_dir;
@@ -46,6 +108,37 @@ public class Cache {
         return -1;
     }
 
+    /**
+     * @param admission admission controller, null to cache every version
+     */
+    public void set_admission(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @brief set the listener of complete entries, it is told at once about those restored from the journal
+     * @param listener listener of complete entries
+     */
+    public synchronized void set_listener(Listener listener) {
+        this.listener = listener;
+        for (CachedFileInfo current = head.next; current != tail; current = current.next) {
+            if (current.persisted && !current.shared) {
+                current.shared = true;
+                listener.committed(current);
+            }
+        }
+    }
+
+    /**
+     * @brief ask the admission controller whether a missing version should be cached or streamed past the cache
+     * @param orig_path original path of the version
+     * @param file_size size of the version
+     * @return true to cache it
+     */
+    public synchronized boolean admit(String orig_path, long file_size) {
+        return admission == null || admission.admit(orig_path, file_size, get_cache_remain_size());
+    }
+
     /**
      * @brief add fileinfo to cache mapping and cache line
      * @param cached_fileinfo file information to add
@@ -54,9 +147,11 @@ public class Cache {
         String cache_path = cached_fileinfo.path;
         if (!path_file_map.containsKey(cache_path)) {
             // Not in cache yet
-            cache_line.add(cached_fileinfo);
+            link_last(cached_fileinfo);
             path_file_map.put(cached_fileinfo.path, cached_fileinfo);
+            index_version(cached_fileinfo);
             current_cache_size += cached_fileinfo.file_size;
+            policy.on_insert(cached_fileinfo);
         }
     }
 
@@ -68,41 +163,67 @@ public class Cache {
         String write_path = cached_fileinfo.write_path;
         if (!path_file_map.containsKey(write_path)) {
             // Not in cache yet
-            cache_line.add(cached_fileinfo);
+            link_last(cached_fileinfo);
             path_file_map.put(cached_fileinfo.write_path, cached_fileinfo);
             current_cache_size += cached_fileinfo.file_size;
+            policy.on_insert(cached_fileinfo);
+        }
+    }
+
+    /**
+     * @brief make room for an entry and insert it pinned, the caller fills the file outside the cache monitor
+     * @brief stale _rdonly_ versions of the same orig_path are dropped first
+     * @param cached_fileinfo entry to add, keyed by write_path if set, else by path
+     * @return false if the entry exists already or the cache cannot make room (Errors.ENOMEM)
+     */
+    public synchronized boolean add_pinned(CachedFileInfo cached_fileinfo) {
+        boolean is_write = (cached_fileinfo.write_path != null);
+        String key = is_write ? cached_fileinfo.write_path : cached_fileinfo.path;
+        if (path_file_map.containsKey(key)) {
+            return false;
+        }
+        if (!is_write) {
+            delete_old_versions(cached_fileinfo.orig_path, cached_fileinfo.version);
+        }
+        if (get_cache_remain_size() < cached_fileinfo.file_size) {
+            if (!evict(cached_fileinfo.file_size)) {
+                return false;
+            }
+        }
+        cached_fileinfo.reference_count.set(1);
+        if (is_write) {
+            add_to_cacheline_write_ver(cached_fileinfo);
+        } else {
+            add_to_cacheline(cached_fileinfo);
         }
+        return true;
     }
 
     /**
      * @brief Update version after proxy writes to a new file, used in close()
      * @brief Convert write file to read file by Rename
-     * @brief Remove write file from cache_line and path_file_map
+     * @brief Remove write file from recency list and path_file_map
      * @brief Used the write file's CachedFileInfo to store the latest _rdonly_ file and easy to do MRU
      * @param write_path file path to be update version for
      * @param latest_version latest version received from server upload_file() (should be same as local cached latest version)
      * @param file_size File size after write
+     * @return 0 on success, -1 if the write entry is missing, -2 if the new version does not fit, the write copy is then deleted
      */
     public synchronized int update_file_and_version(FileInfo fileinfo, int latest_version, int file_size) {
         String write_path = fileinfo.write_path;
 
-        // Remove from cache_line and path_file_map just for now, add later with a new file size
+        // Remove from recency list and path_file_map just for now, add later with a new file size
         CachedFileInfo cached_fileinfo = path_file_map.remove(write_path);
-        boolean is_removed = cache_line.remove(cached_fileinfo);
-        // Decrease the old file size!
-        current_cache_size -= fileinfo.file_size;
+        boolean is_removed = unlink(cached_fileinfo);
 
         if ((!is_removed) || (cached_fileinfo == null)) {
             System.err.println("Cache remove_file: failed to remove CachedFileInfo from list or map" + is_removed + ", " + cached_fileinfo);
             return -1;
         }
-
-        // Get the latest cached _rdonly_ file name
-        cached_fileinfo.path = get_cache_path(cached_fileinfo.orig_path) + "_rdonly_" + latest_version;
-        cached_fileinfo.write_path = null;
-        // Assign to the new file_size after write!!!
-        cached_fileinfo.file_size = file_size;
-        cached_fileinfo.version = latest_version;
+        // Decrease the old file size, what the write entry was charged so far
+        current_cache_size -= cached_fileinfo.file_size;
+        policy.on_remove(cached_fileinfo, false);
+        drop_prefetch(cached_fileinfo);
 
         // Delete all rdonly versions that are stale
         delete_old_versions(cached_fileinfo.orig_path, latest_version);
@@ -110,14 +231,24 @@ public class Cache {
         if (get_cache_remain_size() < file_size) {
             boolean is_enough = evict(file_size);
             if (!is_enough) {
+                // Already unlinked and uncharged, drop the write copy with its file so nothing is left behind
+                drop_file(cached_fileinfo);
                 // Errors.ENOMEM
                 return -2;
             }
         }
+
+        // Get the latest cached _rdonly_ file name
+        cached_fileinfo.path = get_cache_path(cached_fileinfo.orig_path) + "_rdonly_" + latest_version;
+        cached_fileinfo.write_path = null;
+        // Assign to the new file_size after write!!!
+        cached_fileinfo.file_size = file_size;
+        cached_fileinfo.version = latest_version;
         File file = new File(write_path);
         file.renameTo(new File(cached_fileinfo.path));
         // Add again, marked MRU by this operation
         add_to_cacheline(cached_fileinfo);
+        commit(cached_fileinfo);
         return 0;
 
     }
@@ -125,16 +256,22 @@ public class Cache {
     /**
      * @brief remove existing file in LinkedList and HashMap, and delete it.
      * @param cache_path file path to be removed
+     * @return false if no entry has that path
      */
     public synchronized boolean remove_file(String cache_path) {
-        assert(path_file_map.containsKey(cache_path));
-        CachedFileInfo cached_fileinfo = path_file_map.get(cache_path);
-        boolean is_removed = cache_line.remove(cached_fileinfo);
-        CachedFileInfo tmp = path_file_map.remove(cache_path);
-        File file = new File(cache_path);
-        file.delete();
-        if (!is_removed || (tmp == null)) {
-            System.err.println("Cache: remove_file failed to remove CachedFileInfo from list or map" + is_removed + " " + tmp);
+        CachedFileInfo cached_fileinfo = path_file_map.remove(cache_path);
+        if (cached_fileinfo == null) {
+            // Already gone, e.g. evicted before a prefetch cleanup or a delete got here
+            return false;
+        }
+        boolean is_removed = unlink(cached_fileinfo);
+        policy.on_remove(cached_fileinfo, false);
+        drop_prefetch(cached_fileinfo);
+        unindex_version(cached_fileinfo);
+        forget(cached_fileinfo);
+        drop_file(cached_fileinfo);
+        if (!is_removed) {
+            System.err.println("Cache: remove_file failed to remove CachedFileInfo from list " + cache_path);
             return false;
         }
         current_cache_size -= cached_fileinfo.file_size;
@@ -143,99 +280,231 @@ public class Cache {
 
     /**
     * @brief Delete stale files in the cache
-    * @param cache_path paths such as foo_rdonly_version id
-    * @return concatenated local cache path
+    * @param orig_path original path whose stale _rdonly_ versions are dropped
+    * @param new_version versions below this one are stale
     */
-    public void delete_old_versions(String orig_path, int new_version) {
-        String partial_path = get_cache_path(orig_path) + "_rdonly_";
-        
-        for (int i = 0; i < new_version; i ++) {
-            String tmp_path = partial_path + i;
-            File tmp_file = new File(tmp_path);
-            if (tmp_file.exists()) {
-
-                if (path_file_map.containsKey(tmp_path) && path_file_map.get(tmp_path).reference_count <= 0) {
-                    CachedFileInfo to_delete = path_file_map.remove(tmp_path);
-                    cache_line.remove(to_delete);
-                    tmp_file.delete();
-                    current_cache_size -= to_delete.file_size;
-                } else {
-                    System.err.println("delete_old_versions(): file exists but not in path_file_map");
-                }
+    public synchronized void delete_old_versions(String orig_path, int new_version) {
+        List<CachedFileInfo> versions = orig_path_map.get(orig_path);
+        if (versions == null) {
+            return;
+        }
+        Iterator<CachedFileInfo> itr = versions.iterator();
+        while (itr.hasNext()) {
+            CachedFileInfo to_delete = itr.next();
+            if (to_delete.version >= new_version) {
+                continue;
+            }
+            if (to_delete.reference_count.get() <= 0) {
+                itr.remove();
+                path_file_map.remove(to_delete.path);
+                unlink(to_delete);
+                policy.on_remove(to_delete, false);
+                drop_prefetch(to_delete);
+                forget(to_delete);
+                drop_file(to_delete);
+                current_cache_size -= to_delete.file_size;
+            } else {
+                System.err.println("delete_old_versions(): stale version still referenced " + to_delete.path);
             }
         }
-
-        
+        if (versions.isEmpty()) {
+            orig_path_map.remove(orig_path);
+        }
     }
 
     /**
     * @brief move the cached entry to MRU position
     * @param cached_fileinfo MRU cached entry
     */
-    public void move_to_end(CachedFileInfo cached_fileinfo) {
-        cache_line.remove(cached_fileinfo);
-        cache_line.add(cached_fileinfo);
+    public synchronized void move_to_end(CachedFileInfo cached_fileinfo) {
+        if (unlink(cached_fileinfo)) {
+            link_last(cached_fileinfo);
+            policy.on_access(cached_fileinfo);
+            touch(cached_fileinfo);
+        }
     }
 
     /**
     * @brief move the cached entry to MRU position
     * @param cache_path MRU cached path
     */
-    public void move_to_end(String cache_path) {
+    public synchronized void move_to_end(String cache_path) {
         CachedFileInfo cached_fileinfo = path_file_map.get(cache_path);
-        cache_line.remove(cached_fileinfo);
-        cache_line.add(cached_fileinfo);
+        if (unlink(cached_fileinfo)) {
+            link_last(cached_fileinfo);
+            policy.on_access(cached_fileinfo);
+            touch(cached_fileinfo);
+        }
     }
 
 
     /**
-    * @brief LRU eviction
+    * @brief evict entries in the order chosen by the eviction policy until file_size bytes are free
     * @param file_size size of the file to be added to cache
     * @return true if current cache space is enough, else false
     */
     public synchronized boolean evict(long file_size) {
-        Iterator<CachedFileInfo> itr = cache_line.iterator();
-        while (itr.hasNext()) {
-            CachedFileInfo current = itr.next();
-            if (current.reference_count <= 0) {
-                boolean is_removed = cache_line.remove(current);
-                if (!is_removed) {
-                    System.err.println("Cache: evict(), CACHE_LINE evict failed!");
-                    return false;
-                }
-                CachedFileInfo tmp2 = path_file_map.remove(current.path);
-                if (tmp2 == null) {
-                    System.err.println("Cache: evict(), PATH_FILE_MAP evict failed!");
-                    return false;
-                }
-                File file = new File(current.path);
-                file.delete();
-                current_cache_size -= current.file_size;
+        // Sparse entries trimmed in this pass keep their remaining blocks
+        Set<CachedFileInfo> trimmed = new HashSet<CachedFileInfo>();
+        while (get_cache_remain_size() < file_size) {
+            // Prefetches nobody opened are the coldest entries, then the policy decides; pinned entries are passed over
+            CachedFileInfo current = oldest_unused_prefetch();
+            if (current == null) {
+                current = policy.victim(node -> node.reference_count.get() <= 0 && !trimmed.contains(node));
             }
-
-            if (get_cache_remain_size() >= file_size) {
+            if (current == null) {
                 break;
             }
+            if (current.sparse != null) {
+                // Block granular: drop tail blocks of a huge file, only as many as needed
+                long freed = current.sparse.trim(file_size - get_cache_remain_size());
+                current.file_size -= freed;
+                current_cache_size -= freed;
+                policy.on_resize(current, current.file_size + freed);
+                Metrics.add("proxy.cache_evicted_bytes", freed);
+                if (current.file_size > 0) {
+                    trimmed.add(current);
+                    continue;
+                }
+            }
+            unlink(current);
+            policy.on_remove(current, true);
+            drop_prefetch(current);
+            CachedFileInfo tmp2 = path_file_map.remove(current.path);
+            if (tmp2 == null) {
+                System.err.println("Cache: evict(), PATH_FILE_MAP evict failed!");
+                return false;
+            }
+            unindex_version(current);
+            forget(current);
+            drop_file(current);
+            current_cache_size -= current.file_size;
+            Metrics.increment("proxy.cache_evictions");
+            Metrics.add("proxy.cache_evicted_bytes", current.file_size);
         }
         return (get_cache_remain_size() >= file_size);
     }
 
+    /**
+    * @brief make room for a prefetched entry and insert it pinned at the cold end, the caller fills the file outside the cache monitor
+    * @brief room comes from free space and older prefetches nobody opened, a guess never pushes out an entry in use;
+    * @brief unused prefetches together stay within space_budget
+    * @param cached_fileinfo _rdonly_ entry to add
+    * @param space_budget most bytes unused prefetches may hold
+    * @return false if the entry exists already or there is no room for it
+    */
+    public synchronized boolean add_prefetched(CachedFileInfo cached_fileinfo, long space_budget) {
+        long file_size = cached_fileinfo.file_size;
+        if (path_file_map.containsKey(cached_fileinfo.path) || file_size > space_budget) {
+            return false;
+        }
+        delete_old_versions(cached_fileinfo.orig_path, cached_fileinfo.version);
+        // Give up before dropping anything if even every unpinned unused prefetch would not make room
+        long reclaimable = 0;
+        for (CachedFileInfo node : unused_prefetches) {
+            if (node.reference_count.get() <= 0) {
+                reclaimable += node.file_size;
+            }
+        }
+        if (get_cache_remain_size() + reclaimable < file_size) {
+            Metrics.increment("proxy.prefetch_no_room");
+            return false;
+        }
+        while (unused_prefetch_bytes + file_size > space_budget || get_cache_remain_size() < file_size) {
+            CachedFileInfo oldest = oldest_unused_prefetch();
+            if (oldest == null) {
+                return false;
+            }
+            remove_file(oldest.path);
+        }
+        cached_fileinfo.reference_count.set(1);
+        link_first(cached_fileinfo);
+        path_file_map.put(cached_fileinfo.path, cached_fileinfo);
+        index_version(cached_fileinfo);
+        current_cache_size += file_size;
+        policy.on_insert_cold(cached_fileinfo);
+        cached_fileinfo.prefetched = true;
+        unused_prefetches.add(cached_fileinfo);
+        unused_prefetch_bytes += file_size;
+        return true;
+    }
+
+    /**
+    * @brief count an open of an entry, a prefetched entry opened for the first time was a useful prefetch
+    * @param cached_fileinfo entry being opened
+    */
+    public synchronized void claim_prefetched(CachedFileInfo cached_fileinfo) {
+        if (!cached_fileinfo.prefetched) {
+            return;
+        }
+        cached_fileinfo.prefetched = false;
+        unused_prefetches.remove(cached_fileinfo);
+        unused_prefetch_bytes -= cached_fileinfo.file_size;
+        prefetches_used ++;
+        Metrics.increment("proxy.prefetch_hits");
+        Metrics.set("proxy.prefetch_accuracy_pct", prefetches_used * 100 / (prefetches_used + prefetches_wasted));
+    }
+
+    /**
+    * @return the oldest prefetch nobody opened and nobody pins, null if there is none
+    */
+    private CachedFileInfo oldest_unused_prefetch() {
+        for (CachedFileInfo node : unused_prefetches) {
+            if (node.reference_count.get() <= 0) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+    * @brief an entry leaves the cache, a prefetch nobody opened was wasted
+    */
+    private void drop_prefetch(CachedFileInfo node) {
+        if (!node.prefetched) {
+            return;
+        }
+        node.prefetched = false;
+        unused_prefetches.remove(node);
+        unused_prefetch_bytes -= node.file_size;
+        prefetches_wasted ++;
+        Metrics.add("proxy.prefetch_wasted_bytes", node.file_size);
+        Metrics.set("proxy.prefetch_accuracy_pct", prefetches_used * 100 / (prefetches_used + prefetches_wasted));
+    }
+
+    /**
+    * @brief grow or shrink the charge of a pinned entry, used as sparse blocks arrive
+    * @param cached_fileinfo pinned entry, skipped by the eviction this may trigger
+    * @param delta bytes to add, negative to give back
+    * @return false if the cache cannot make room (Errors.ENOMEM)
+    */
+    public synchronized boolean charge(CachedFileInfo cached_fileinfo, long delta) {
+        if (delta > 0 && get_cache_remain_size() < delta) {
+            if (!evict(delta)) {
+                return false;
+            }
+        }
+        long old_size = cached_fileinfo.file_size;
+        cached_fileinfo.file_size += delta;
+        current_cache_size += delta;
+        policy.on_resize(cached_fileinfo, old_size);
+        return true;
+    }
+
     /**
     * @brief return the remain space of cache
     * @return cache remain size
     */
-    public long get_cache_remain_size() {
+    public synchronized long get_cache_remain_size() {
         return (total_cache_size - current_cache_size);
     }
 
     /**
     * @brief used for debugging, traverse the cache
     */
-    public void traverse_cache() {
+    public synchronized void traverse_cache() {
         System.err.println("Start traversal");
-        Iterator<CachedFileInfo> itr = cache_line.iterator();
-        while (itr.hasNext()) {
-            CachedFileInfo current = itr.next();
+        for (CachedFileInfo current = head.next; current != tail; current = current.next) {
             if (current.write_path != null) {
                 System.err.println("Node: " + (current.write_path).substring((current.write_path).lastIndexOf("/")));
             } else {
@@ -245,28 +514,270 @@ public class Cache {
     }
 
     /**
-    * @brief add a reference count for the cached entry
-    * @return true if added, false if entry not found in cache
+    * @brief rebuild the cache from its journal at startup and reconcile it with cache_dir
+    * @brief files with no complete entry are deleted: write copies of a dead Proxy, interrupted fetches, sparse versions
+    * @param journal journal of this cache_dir, kept for recording from now on
+    * @return number of restored entries
     */
-    public boolean add_reference_count(String cache_path) {
-        if (path_file_map.containsKey(cache_path)) {
-            path_file_map.get(cache_path).reference_count += 1;
-        } else {
+    public synchronized int restore(CacheJournal journal) {
+        long start_time = System.nanoTime();
+        this.journal = journal;
+        String cache_prefix = get_cache_root() + "/";
+        LinkedHashMap<String, CacheJournal.Record> replayed = journal.replay();
+        List<CacheJournal.Record> records = new ArrayList<CacheJournal.Record>(replayed.values());
+        // Records whose file is listed leave replayed, those left there lost their file
+        Set<String> orphans = list_orphans(replayed);
+        // One loop per helper, a cold JVM compiles each small loop on its own instead of all of restore() at once
+        List<CacheJournal.Record> newest = new ArrayList<CacheJournal.Record>(records.size());
+        List<CachedFileInfo> nodes = index_restored(records, replayed, cache_prefix, orphans, newest);
+        List<CacheJournal.Record> kept = insert_restored(nodes, newest, orphans);
+        keep_partial_downloads(orphans, cache_prefix);
+        int removed = delete_orphans(orphans);
+        // Rewritten in the background, the cache is usable right away
+        journal.compact(kept);
+        System.err.println("Cache: restored " + kept.size() + " entries, " + current_cache_size + " bytes, removed "
+            + removed + " files in " + (System.nanoTime() - start_time) / 1000000 + " ms");
+        return kept.size();
+    }
+
+    /**
+    * @brief list cache_dir against the journal
+    * @param unlisted records by name, the records of listed files are taken out
+    * @return names of listed files no record owns
+    */
+    private Set<String> list_orphans(Map<String, CacheJournal.Record> unlisted) {
+        String[] names = (new File(cache_dir)).list();
+        Set<String> orphans = new HashSet<String>();
+        if (names == null) {
+            return orphans;
+        }
+        for (String name : names) {
+            if (unlisted.remove(name) == null) {
+                orphans.add(name);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+    * @brief index the newest listed version of each path, an older one that outlived its replacement becomes an orphan
+    * @param records journal records, LRU first
+    * @param unlisted records whose file is missing
+    * @param cache_prefix canonical cache_dir with a trailing slash
+    * @param orphans names of files to delete, the files of stale versions are added
+    * @param newest filled with the records of the returned entries, in the same order
+    * @return entries of the newest versions, MRU first, not yet in the cache
+    */
+    private List<CachedFileInfo> index_restored(List<CacheJournal.Record> records, Map<String, CacheJournal.Record> unlisted,
+            String cache_prefix, Set<String> orphans, List<CacheJournal.Record> newest) {
+        if (orig_path_map.isEmpty()) {
+            orig_path_map = new HashMap<String, List<CachedFileInfo>>(capacity_for(records.size()));
+        }
+        List<CachedFileInfo> nodes = new ArrayList<CachedFileInfo>(records.size());
+        for (int i = records.size() - 1; i >= 0; i --) {
+            CacheJournal.Record record = records.get(i);
+            if (!unlisted.isEmpty() && unlisted.containsKey(record.name)) {
+                continue;
+            }
+            // One lookup both finds another version of the path and indexes this one
+            List<CachedFileInfo> versions = orig_path_map.computeIfAbsent(record.orig_path, key -> new ArrayList<CachedFileInfo>(1));
+            if (!versions.isEmpty()) {
+                CachedFileInfo other = versions.get(0);
+                if (other.version >= record.version) {
+                    orphans.add(record.name);
+                    continue;
+                }
+                versions.clear();
+                int at = nodes.indexOf(other);
+                nodes.remove(at);
+                newest.remove(at);
+                orphans.add(get_name(other));
+            }
+            CachedFileInfo node = new CachedFileInfo();
+            node.is_existed = true;
+            node.version = record.version;
+            node.file_size = record.file_size;
+            node.orig_path = record.orig_path;
+            node.path = cache_prefix.concat(record.name);
+            node.persisted = true;
+            versions.add(node);
+            nodes.add(node);
+            newest.add(record);
+        }
+        return nodes;
+    }
+
+    /**
+    * @brief insert indexed entries unpinned while they fit, hottest first, and hand them to the policy in one call
+    * @param nodes entries from index_restored, MRU first
+    * @param newest records of nodes, in the same order
+    * @param orphans names of files to delete, the files of entries that do not fit are added
+    * @return records of the restored entries, LRU first
+    */
+    private List<CacheJournal.Record> insert_restored(List<CachedFileInfo> nodes, List<CacheJournal.Record> newest, Set<String> orphans) {
+        if (path_file_map.isEmpty()) {
+            path_file_map = new ConcurrentHashMap<String, CachedFileInfo>(Math.max(16, nodes.size()));
+        }
+        List<CachedFileInfo> restored = new ArrayList<CachedFileInfo>(nodes.size());
+        List<CacheJournal.Record> kept = new ArrayList<CacheJournal.Record>(nodes.size());
+        for (int i = 0; i < nodes.size(); i ++) {
+            CachedFileInfo node = nodes.get(i);
+            if (current_cache_size + node.file_size > total_cache_size) {
+                unindex_version(node);
+                orphans.add(newest.get(i).name);
+                continue;
+            }
+            path_file_map.put(node.path, node);
+            link_first(node);
+            current_cache_size += node.file_size;
+            restored.add(node);
+            kept.add(newest.get(i));
+        }
+        Collections.reverse(restored);
+        Collections.reverse(kept);
+        policy.on_insert_all(restored);
+        return kept;
+    }
+
+    /**
+    * @brief keep recent interrupted downloads of each path's newest version, the next open resumes them
+    * @param orphans names of files to delete, the files of kept downloads are taken out
+    * @param cache_prefix canonical cache_dir with a trailing slash
+    */
+    private void keep_partial_downloads(Set<String> orphans, String cache_prefix) {
+        long now = System.currentTimeMillis();
+        for (String name : orphans) {
+            if (!name.endsWith(progress_suffix)) {
+                continue;
+            }
+            String cache_path = cache_prefix + name.substring(0, name.length() - progress_suffix.length());
+            if (!orphans.contains(name.substring(0, name.length() - progress_suffix.length()) + partial_suffix)
+                    || (new File(cache_dir, name)).lastModified() + partial_max_age < now) {
+                continue;
+            }
+            partial_downloads.merge(unversioned(cache_path), cache_path,
+                (kept_path, other_path) -> (version_of(other_path) > version_of(kept_path)) ? other_path : kept_path);
+        }
+        for (String cache_path : partial_downloads.values()) {
+            String name = cache_path.substring(cache_path.lastIndexOf('/') + 1);
+            orphans.remove(name + partial_suffix);
+            orphans.remove(name + progress_suffix);
+        }
+    }
+
+    /**
+    * @brief delete files no entry owns: write copies of a dead Proxy, interrupted fetches, sparse versions
+    * @param orphans names in cache_dir neither restored nor kept as a download to resume
+    * @return files deleted
+    */
+    private int delete_orphans(Set<String> orphans) {
+        int removed = 0;
+        for (String name : orphans) {
+            if (!name.startsWith(CacheJournal.file_name)) {
+                (new File(cache_dir, name)).delete();
+                removed ++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+    * @brief record a complete _rdonly_ entry in the journal, called once its file is fully written
+    * @param cached_fileinfo entry whose file is complete, sparse entries are never recorded
+    */
+    public synchronized void commit(CachedFileInfo cached_fileinfo) {
+        if (cached_fileinfo.sparse != null || cached_fileinfo.write_path != null
+                || cached_fileinfo.pending || !path_file_map.containsKey(cached_fileinfo.path)) {
+            return;
+        }
+        if (listener != null && !cached_fileinfo.shared) {
+            cached_fileinfo.shared = true;
+            listener.committed(cached_fileinfo);
+        }
+        if (journal == null) {
+            return;
+        }
+        cached_fileinfo.persisted = true;
+        journal.add(get_name(cached_fileinfo), cached_fileinfo.version, cached_fileinfo.file_size, cached_fileinfo.orig_path);
+        maybe_compact();
+    }
+
+    /**
+    * @brief give an uploaded pending entry the version the Server assigned, renaming its file and journaling it
+    * @param cache_path _rdonly_ cache path of the pending version
+    * @param version version assigned by the Server
+    * @return false if the entry is gone or still open by a client other than its one pinner
+    */
+    public synchronized boolean rekey(String cache_path, int version) {
+        CachedFileInfo cached_fileinfo = path_file_map.get(cache_path);
+        if (cached_fileinfo == null || cached_fileinfo.reference_count.get() > 1) {
+            return false;
+        }
+        String new_path = get_cache_path(cached_fileinfo.orig_path) + "_rdonly_" + version;
+        CachedFileInfo existing = path_file_map.get(new_path);
+        if (existing != null && (existing.reference_count.get() > 0 || !remove_file(new_path))) {
+            return false;
+        }
+        // Open channels of the entry follow the file across the rename
+        if (!(new File(cache_path)).renameTo(new File(new_path))) {
+            System.err.println("Cache: rekey() failed to rename " + cache_path);
             return false;
         }
+        path_file_map.remove(cache_path);
+        unindex_version(cached_fileinfo);
+        cached_fileinfo.path = new_path;
+        cached_fileinfo.version = version;
+        cached_fileinfo.pending = false;
+        path_file_map.put(new_path, cached_fileinfo);
+        index_version(cached_fileinfo);
+        delete_old_versions(cached_fileinfo.orig_path, version);
+        commit(cached_fileinfo);
         return true;
     }
 
     /**
-    * @brief decrease a reference count for the cached entry
-    * @return true if added, false if entry not found in cache
+    * @brief pin a complete whole-file entry of one version of orig_path, atomic with respect to eviction
+    * @param orig_path original path the entry was cached under
+    * @param version version wanted
+    * @return the pinned entry, null if that version is not cached complete
+    */
+    public synchronized CachedFileInfo pin_version(String orig_path, int version) {
+        List<CachedFileInfo> versions = orig_path_map.get(orig_path);
+        if (versions == null) {
+            return null;
+        }
+        for (CachedFileInfo cached_fileinfo : versions) {
+            if (cached_fileinfo.version == version && cached_fileinfo.shared && cached_fileinfo.sparse == null) {
+                cached_fileinfo.reference_count.incrementAndGet();
+                return cached_fileinfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+    * @brief pin the cached entry, atomic with respect to eviction
+    * @param cache_path cached entry to pin
+    * @return the pinned entry, null if entry not found in cache
+    */
+    public synchronized CachedFileInfo pin(String cache_path) {
+        CachedFileInfo cached_fileinfo = path_file_map.get(cache_path);
+        if (cached_fileinfo != null) {
+            cached_fileinfo.reference_count.incrementAndGet();
+        }
+        return cached_fileinfo;
+    }
+
+    /**
+    * @brief decrease a reference count for the cached entry, unpinning needs no cache monitor
+    * @return true if decreased, false if entry not found in cache
     */
     public boolean decrease_reference_count(String cache_path) {
-        if (path_file_map.containsKey(cache_path)) {
-            path_file_map.get(cache_path).reference_count -= 1;
-        } else {
+        CachedFileInfo cached_fileinfo = path_file_map.get(cache_path);
+        if (cached_fileinfo == null) {
             return false;
         }
+        cached_fileinfo.reference_count.decrementAndGet();
         return true;
     }
 
@@ -285,6 +796,187 @@ public class Cache {
 
 
 
+    private void touch(CachedFileInfo node) {
+        if (node.persisted) {
+            journal.touch(get_name(node));
+            maybe_compact();
+        }
+    }
+
+    private void forget(CachedFileInfo node) {
+        if (node.persisted) {
+            node.persisted = false;
+            journal.remove(get_name(node));
+            maybe_compact();
+        }
+    }
+
+    /**
+    * @brief rewrite the journal from the recency list once it has grown well past the live entries
+    */
+    private void maybe_compact() {
+        if (!journal.needs_compaction(path_file_map.size())) {
+            return;
+        }
+        List<CacheJournal.Record> live = new ArrayList<CacheJournal.Record>();
+        for (CachedFileInfo current = head.next; current != tail; current = current.next) {
+            if (current.persisted) {
+                CacheJournal.Record record = new CacheJournal.Record();
+                record.name = get_name(current);
+                record.orig_path = current.orig_path;
+                record.version = current.version;
+                record.file_size = current.file_size;
+                live.add(record);
+            }
+        }
+        journal.compact(live);
+    }
+
+    /**
+    * @brief note that cache_path is being downloaded, the partial download of any other version of the path is deleted
+    * @param cache_path _rdonly_ cache path of the version being fetched
+    */
+    public void track_partial(String cache_path) {
+        String previous = partial_downloads.put(unversioned(cache_path), cache_path);
+        if (previous != null && !previous.equals(cache_path)) {
+            (new File(previous + partial_suffix)).delete();
+            (new File(previous + progress_suffix)).delete();
+        }
+    }
+
+    /**
+    * @brief forget the partial download of cache_path, it completed or is not worth resuming
+    * @param cache_path _rdonly_ cache path of the fetched version
+    */
+    public void untrack_partial(String cache_path) {
+        partial_downloads.remove(unversioned(cache_path), cache_path);
+    }
+
+    private static String unversioned(String cache_path) {
+        int index = cache_path.lastIndexOf("_rdonly_");
+        return (index < 0) ? cache_path : cache_path.substring(0, index);
+    }
+
+    private static int version_of(String cache_path) {
+        try {
+            return Integer.parseInt(cache_path.substring(cache_path.lastIndexOf("_rdonly_") + "_rdonly_".length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static String get_name(CachedFileInfo node) {
+        return node.path.substring(node.path.lastIndexOf('/') + 1);
+    }
+
+    /**
+    * @return initial capacity of a HashMap or HashSet that holds entries without rehashing
+    */
+    private static int capacity_for(int entries) {
+        return Math.max(16, (int)(entries / 0.75f) + 1);
+    }
+
+    private String get_cache_root() {
+        try {
+            return (new File(cache_dir)).getCanonicalPath();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return cache_dir;
+        }
+    }
+
+    /**
+    * @brief delete the file of an entry leaving the cache, closing its sparse or shared channel first
+    * @param node entry being removed, a write entry owns write_path and not path
+    */
+    private void drop_file(CachedFileInfo node) {
+        if (node.shared) {
+            node.shared = false;
+            listener.dropped(node);
+        }
+        if (node.sparse != null) {
+            node.sparse.close();
+        }
+        if (node.channel != null) {
+            try {
+                node.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // The mapping goes away with its last reference, the file can be deleted while mapped
+            node.channel = null;
+            node.mapped = null;
+        }
+        (new File(node.write_path != null ? node.write_path : node.path)).delete();
+    }
+
+    /**
+    * @brief insert an entry at the LRU end of the recency list
+    * @param node entry to link, must not be linked already
+    */
+    private void link_first(CachedFileInfo node) {
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+    }
+
+    /**
+    * @brief append an entry at the MRU end of the recency list
+    * @param node entry to link, must not be linked already
+    */
+    private void link_last(CachedFileInfo node) {
+        node.prev = tail.prev;
+        node.next = tail;
+        tail.prev.next = node;
+        tail.prev = node;
+    }
+
+    /**
+    * @brief detach an entry from the recency list
+    * @param node entry to unlink
+    * @return false if the entry is null or not linked
+    */
+    private boolean unlink(CachedFileInfo node) {
+        if (node == null || node.prev == null) {
+            return false;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        return true;
+    }
+
+    /**
+    * @brief record a _rdonly_ entry under its orig_path
+    * @param node entry to index, write copies are skipped
+    */
+    private void index_version(CachedFileInfo node) {
+        if (node.write_path != null || node.orig_path == null) {
+            return;
+        }
+        // Most paths have a single cached version, a list is a fraction of the size of a set
+        orig_path_map.computeIfAbsent(node.orig_path, key -> new ArrayList<CachedFileInfo>(1)).add(node);
+    }
+
+    /**
+    * @brief drop a _rdonly_ entry from its orig_path index
+    * @param node entry to remove from index
+    */
+    private void unindex_version(CachedFileInfo node) {
+        if (node == null || node.orig_path == null) {
+            return;
+        }
+        List<CachedFileInfo> versions = orig_path_map.get(node.orig_path);
+        if (versions != null) {
+            versions.remove(node);
+            if (versions.isEmpty()) {
+                orig_path_map.remove(node.orig_path);
+            }
+        }
+    }
+
     /**
     * @brief Get local cache path by adding cache directory
     * @param path original input file path
@@ -0,0 +1,230 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+* @brief append-only journal of the complete _rdonly_ cache entries, replayed at Proxy startup
+* @brief one record per line: "A name version size orig_path" adds or refreshes, "T name" marks MRU, "D name" removes
+*/
+public class CacheJournal {
+
+    /**
+     * journal file name inside cache_dir, never a valid cache file name
+     */
+    public static final String file_name = ".cache_journal";
+    /**
+     * compaction runs once the journal holds this many records beyond twice the live entries
+     */
+    private static final int compact_slack = 1024;
+    /**
+     * bytes of the shortest add record, "A\tn\t1\t0\tp\n"
+     */
+    private static final int min_record_length = 11;
+
+    /**
+     * a complete entry as recorded in the journal
+     */
+    public static class Record {
+        public String name;
+        public String orig_path;
+        public int version;
+        public int file_size;
+    }
+
+    private final File file;
+    private Writer writer;
+    private long record_count = 0;
+    /**
+     * records appended while a compaction runs, null when none is running
+     */
+    private List<String> pending;
+
+    public CacheJournal(String cache_dir) {
+        file = new File(cache_dir, file_name);
+    }
+
+    /**
+     * @brief replay the journal, a torn last line from a crash is ignored
+     * @return live entries in recency order, LRU first; the map is access ordered, a get() moves an entry to the end
+     */
+    public LinkedHashMap<String, Record> replay() {
+        if (!file.exists()) {
+            return new LinkedHashMap<String, Record>();
+        }
+        String text;
+        try {
+            // One bulk decode, fields are then cut out with indexOf and substring
+            text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("CacheJournal: replay() failed, starting cold");
+            e.printStackTrace();
+            return new LinkedHashMap<String, Record>();
+        }
+        // Access order: re-adding or touching an entry moves it to the MRU end in one lookup
+        // Sized for the shortest possible add records, so the map never rehashes while it fills
+        LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>(
+            (int)Math.min(1 << 30, Math.max(16, text.length() / min_record_length * 4 / 3)), 0.75f, true);
+        int pos = 0;
+        int line_end;
+        while ((line_end = text.indexOf('\n', pos)) >= 0) {
+            replay_line(text, pos, line_end, records);
+            pos = line_end + 1;
+        }
+        return records;
+    }
+
+    /**
+     * @brief apply one complete line of the journal
+     * @param text the whole journal
+     * @param start index of the first character of the line
+     * @param end index of its newline
+     * @param records live entries in access order
+     */
+    private void replay_line(String text, int start, int end, LinkedHashMap<String, Record> records) {
+        record_count ++;
+        if (end - start < 3 || text.charAt(start + 1) != '\t') {
+            return;
+        }
+        char kind = text.charAt(start);
+        if (kind == 'T') {
+            records.get(text.substring(start + 2, end));
+            return;
+        } else if (kind == 'D') {
+            records.remove(text.substring(start + 2, end));
+            return;
+        } else if (kind != 'A') {
+            return;
+        }
+        // Fields are split by hand, replay has to stay fast for very large caches
+        int name_end = text.indexOf('\t', start + 2);
+        int version_end = (name_end < 0) ? -1 : text.indexOf('\t', name_end + 1);
+        int size_end = (version_end < 0) ? -1 : text.indexOf('\t', version_end + 1);
+        if (size_end < 0 || size_end >= end) {
+            return;
+        }
+        Record record = new Record();
+        try {
+            record.version = Integer.parseInt(text, name_end + 1, version_end, 10);
+            record.file_size = Integer.parseInt(text, version_end + 1, size_end, 10);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        record.name = text.substring(start + 2, name_end);
+        record.orig_path = text.substring(size_end + 1, end);
+        records.put(record.name, record);
+    }
+
+    /**
+     * @brief record a complete entry, it survives a restart from now on
+     */
+    public void add(String name, int version, int file_size, String orig_path) {
+        if (orig_path.indexOf('\t') >= 0 || orig_path.indexOf('\n') >= 0) {
+            // Not representable in a record, the file is treated as an orphan after a restart
+            return;
+        }
+        append("A\t" + name + "\t" + version + "\t" + file_size + "\t" + orig_path + "\n");
+    }
+
+    public void touch(String name) {
+        append("T\t" + name + "\n");
+    }
+
+    public void remove(String name) {
+        append("D\t" + name + "\n");
+    }
+
+    /**
+     * @param live_count number of live entries
+     * @return true if the journal has grown enough to be worth compacting and no compaction is running
+     */
+    public synchronized boolean needs_compaction(int live_count) {
+        return pending == null && record_count > 2L * live_count + compact_slack;
+    }
+
+    /**
+     * @brief rewrite the journal as one add per live entry on a background thread, then replace the old one atomically
+     * @brief records appended meanwhile are held back and written after the snapshot
+     * @param live snapshot of the live entries in recency order, LRU first
+     */
+    public void compact(final List<Record> live) {
+        synchronized (this) {
+            if (pending != null) {
+                return;
+            }
+            pending = new ArrayList<String>();
+        }
+        Thread compactor = new Thread(() -> write_compacted(live), "cache-journal-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writer = null;
+        }
+    }
+
+    private void write_compacted(List<Record> live) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16);
+            for (Record record : live) {
+                out.write("A\t" + record.name + "\t" + record.version + "\t" + record.file_size + "\t" + record.orig_path + "\n");
+            }
+            synchronized (this) {
+                for (String record : pending) {
+                    out.write(record);
+                }
+                out.close();
+                close();
+                if (!tmp.renameTo(file)) {
+                    // The held back records are only in tmp, replay them into the old journal below
+                    throw new IOException("cannot replace " + file);
+                }
+                record_count = live.size() + pending.size();
+                pending = null;
+            }
+            Metrics.increment("proxy.journal_compactions");
+        } catch (IOException e) {
+            System.err.println("CacheJournal: compact() failed, keeping the old journal");
+            e.printStackTrace();
+            tmp.delete();
+            synchronized (this) {
+                // Nothing was lost, the held back records go to the old journal
+                List<String> held = pending;
+                pending = null;
+                record_count -= held.size();
+                for (String record : held) {
+                    append(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * @brief append one record, flushed at once so a crashed Proxy loses at most the record being written
+     */
+    private synchronized void append(String record) {
+        record_count ++;
+        if (pending != null) {
+            pending.add(record);
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+            }
+            writer.write(record);
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("CacheJournal: append() failed");
+            e.printStackTrace();
+        }
+    }
+}
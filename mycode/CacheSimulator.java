@@ -0,0 +1,192 @@
+import java.io.*;
+import java.util.*;
+
+/**
+* @brief replay an access trace against each eviction policy and report object and byte hit ratios
+* @brief usage: java CacheSimulator <cache size in bytes> <trace file | synthetic[:seed]> [policy,...] [sparse|whole]
+* @brief a trace has one access per line, "<path> <size in bytes>", lines starting with # are skipped
+* @brief a path seen with a new size is a new version, its cached copy no longer counts as a hit
+* @brief with sparse (the default, as in the Proxy) files over huge_file_size enter empty and grow block by block
+* @brief the synthetic trace mixes many small files of skewed popularity with occasional reads of huge cold files
+*/
+public class CacheSimulator {
+
+    private static class Access {
+        final String path;
+        final long size;
+
+        Access(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private static class Result {
+        long hits;
+        long misses;
+        long hit_bytes;
+        long miss_bytes;
+        long evictions;
+    }
+
+    private static final int small_files = 2000;
+    private static final int huge_files = 40;
+    private static final int synthetic_accesses = 200000;
+    /**
+     * same as the Proxy, larger files are cached sparse and charged per block
+     */
+    private static final int huge_file_size = 10000000;
+    private static final int block_size = 204800;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java CacheSimulator <cache size in bytes> <trace file | synthetic[:seed]> [policy,...] [sparse|whole]");
+            System.exit(1);
+        }
+        long capacity = Long.parseLong(args[0]);
+        List<Access> trace;
+        if (args[1].startsWith("synthetic")) {
+            long seed = args[1].contains(":") ? Long.parseLong(args[1].substring(args[1].indexOf(':') + 1)) : 1;
+            trace = synthetic(seed);
+        } else {
+            trace = load(args[1]);
+        }
+        String[] policies = ((args.length > 2) ? args[2] : "lru,lfu,arc,gdsf").split(",");
+        boolean sparse = args.length <= 3 || !args[3].equals("whole");
+        System.out.println("accesses: " + trace.size() + ", cache size: " + capacity + (sparse ? ", sparse huge files" : ""));
+        System.out.printf("%-6s %12s %12s %12s%n", "policy", "object hit%", "byte hit%", "evictions");
+        for (String name : policies) {
+            Result result = replay(trace, capacity, EvictionPolicy.create(name, capacity), sparse);
+            System.out.printf("%-6s %12.2f %12.2f %12d%n", name.trim(),
+                100.0 * result.hits / Math.max(1, result.hits + result.misses),
+                100.0 * result.hit_bytes / Math.max(1, result.hit_bytes + result.miss_bytes), result.evictions);
+        }
+    }
+
+    /**
+     * @brief run the trace through a cache of capacity bytes evicting as policy says, the way Cache.evict() does
+     * @param sparse true to insert huge files empty and charge them block by block, as Cache.charge() does
+     */
+    private static Result replay(List<Access> trace, long capacity, EvictionPolicy policy, boolean sparse) {
+        Result result = new Result();
+        Map<String, CachedFileInfo> cached = new HashMap<String, CachedFileInfo>();
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        // Full size of each cached version, a sparse entry is charged less until it is complete
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        long used = 0;
+        for (Access access : trace) {
+            CachedFileInfo node = cached.get(access.path);
+            if (node != null && sizes.get(access.path) == access.size) {
+                result.hits ++;
+                result.hit_bytes += access.size;
+                policy.on_access(node);
+                continue;
+            }
+            result.misses ++;
+            result.miss_bytes += access.size;
+            if (node != null) {
+                // Replaced by a new version
+                cached.remove(access.path);
+                policy.on_remove(node, false);
+                used -= node.file_size;
+            }
+            if (access.size > capacity) {
+                // Never fits, read through
+                continue;
+            }
+            boolean grows = sparse && access.size > huge_file_size;
+            node = new CachedFileInfo();
+            node.orig_path = access.path;
+            node.version = versions.merge(access.path, 1, Integer::sum);
+            node.path = access.path + "_rdonly_" + node.version;
+            used -= make_room(cached, policy, capacity, used, grows ? 0 : access.size, null, result);
+            node.file_size = grows ? 0 : (int)access.size;
+            cached.put(access.path, node);
+            sizes.put(access.path, access.size);
+            policy.on_insert(node);
+            used += node.file_size;
+            for (long offset = 0; grows && offset < access.size; offset += block_size) {
+                // The entry being read is pinned, every block is charged as it arrives
+                long block = Math.min(block_size, access.size - offset);
+                used -= make_room(cached, policy, capacity, used, block, node, result);
+                long old_size = node.file_size;
+                node.file_size += block;
+                used += block;
+                policy.on_resize(node, old_size);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @brief evict until needed bytes are free
+     * @param pinned entry that must stay, null if none
+     * @return bytes freed
+     */
+    private static long make_room(Map<String, CachedFileInfo> cached, EvictionPolicy policy, long capacity, long used,
+            long needed, CachedFileInfo pinned, Result result) {
+        long freed = 0;
+        while (capacity - (used - freed) < needed) {
+            CachedFileInfo victim = policy.victim(candidate -> candidate != pinned);
+            if (victim == null) {
+                break;
+            }
+            cached.remove(victim.orig_path);
+            policy.on_remove(victim, true);
+            freed += victim.file_size;
+            result.evictions ++;
+        }
+        return freed;
+    }
+
+    private static List<Access> load(String trace_path) throws IOException {
+        List<Access> trace = new ArrayList<Access>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(trace_path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.lastIndexOf(' ');
+                try {
+                    trace.add(new Access(line.substring(0, space).trim(), Long.parseLong(line.substring(space + 1))));
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    System.err.println("CacheSimulator: ignored malformed line " + line);
+                }
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * @brief small files of 4 to 64 KB read with Zipf popularity, and one in fifty reads a huge file of 20 to 50 MB
+     */
+    private static List<Access> synthetic(long seed) {
+        Random random = new Random(seed);
+        long[] small_sizes = new long[small_files];
+        double[] cumulative = new double[small_files];
+        double total = 0;
+        for (int i = 0; i < small_files; i ++) {
+            small_sizes[i] = 4096 + random.nextInt(61440);
+            total += 1.0 / Math.pow(i + 1, 0.9);
+            cumulative[i] = total;
+        }
+        long[] huge_sizes = new long[huge_files];
+        for (int i = 0; i < huge_files; i ++) {
+            huge_sizes[i] = 20000000 + random.nextInt(30000000);
+        }
+        List<Access> trace = new ArrayList<Access>(synthetic_accesses);
+        for (int i = 0; i < synthetic_accesses; i ++) {
+            if (random.nextInt(50) == 0) {
+                int file = random.nextInt(huge_files);
+                trace.add(new Access("huge/" + file, huge_sizes[file]));
+                continue;
+            }
+            int file = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            file = (file < 0) ? -file - 1 : file;
+            trace.add(new Access("small/" + Math.min(file, small_files - 1), small_sizes[Math.min(file, small_files - 1)]));
+        }
+        return trace;
+    }
+}
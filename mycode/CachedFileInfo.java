@@ -1,3 +1,7 @@
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CachedFileInfo {
     public boolean is_dir;
     public boolean is_existed;
@@ -6,8 +10,44 @@ public class CachedFileInfo {
     public String path;
     public String orig_path;
     // public String access_mode;
-    public int reference_count;
+    /**
+     * pin count, entries with a positive count are never evicted
+     */
+    public final AtomicInteger reference_count = new AtomicInteger(0);
     public String write_path;
+    /**
+     * intrusive links of the Cache recency list, null while unlinked
+     */
+    public CachedFileInfo prev;
+    public CachedFileInfo next;
+    /**
+     * block store of a huge _rdonly_ version, file_size then counts present blocks only; null for whole files
+     */
+    public SparseFile sparse;
+    /**
+     * read channel shared by every fd of a whole _rdonly_ version, opened on first use, closed when the entry leaves the cache
+     */
+    public FileChannel channel;
+    /**
+     * read-only mapping of a small _rdonly_ version, fds copy from it without a syscall; null for large or sparse files
+     */
+    public MappedByteBuffer mapped;
+    /**
+     * true once the entry is complete and recorded in the cache journal
+     */
+    public boolean persisted;
+    /**
+     * true while the entry was prefetched and not opened yet
+     */
+    public boolean prefetched;
+    /**
+     * true while the entry is a closed write copy not uploaded yet, never journaled
+     */
+    public boolean pending;
+    /**
+     * true once the complete entry was reported to the Cache listener, which is told again when it leaves
+     */
+    public boolean shared;
 
     public CachedFileInfo() {
 
@@ -0,0 +1,25 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+* @brief Proxy side endpoint of the lease protocol, drops leases the Server breaks
+*/
+public class CallbackReceiver extends UnicastRemoteObject implements ProxyCallback {
+
+    private static final long serialVersionUID = 1L;
+
+    private final MetadataCache metadata_cache;
+
+    public CallbackReceiver(MetadataCache metadata_cache) throws RemoteException {
+        super();
+        this.metadata_cache = metadata_cache;
+    }
+
+    /**
+     * @brief called by Server when the version of path changes or path is deleted
+     * @param path path as registered by this proxy in get_file_info(path, callback)
+     */
+    public void invalidate(String path) throws RemoteException {
+        metadata_cache.invalidate(path);
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+* @brief content-defined chunking shared by Proxy and Server, both sides must cut a file at the same places
+* @brief a gear rolling hash picks cut points from content, so an insert only moves the chunks around it
+*/
+public class Chunker {
+
+    public static final int min_size = 16384;
+    public static final int max_size = 262144;
+    /**
+     * 16 bits of the hash must be zero to cut, about 64 KB past min_size on average
+     */
+    private static final long cut_mask = 0xFFFF000000000000L;
+    private static final long[] gear = new long[256];
+
+    static {
+        // Fixed seed, the table is part of the chunk format
+        Random random = new Random(0x5eed440L);
+        for (int i = 0; i < gear.length; i ++) {
+            gear[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * receives each chunk found by scan()
+     */
+    public interface BlockSink {
+        /**
+         * @param hash chunk hash
+         * @param buf buffer holding the chunk, only valid during the call
+         * @param off chunk start in buf
+         * @param len chunk length
+         */
+        void accept(String hash, byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * @brief chunk the first length bytes of channel, reading positionally
+     * @param channel file to chunk
+     * @param length bytes to chunk
+     * @param sink called for each chunk in order, may be null
+     * @return manifest of the chunks
+     */
+    public static Manifest scan(FileChannel channel, long length, BlockSink sink) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.length = length;
+        byte[] buf = new byte[max_size * 4];
+        int filled = 0;
+        int pos = 0;
+        long file_pos = 0;
+        while (true) {
+            // Keep at least one max sized chunk buffered so cut_point() sees the same bytes as for a whole array
+            if (filled - pos < max_size && file_pos < length) {
+                System.arraycopy(buf, pos, buf, 0, filled - pos);
+                filled -= pos;
+                pos = 0;
+                while (filled < buf.length && file_pos < length) {
+                    ByteBuffer dst = ByteBuffer.wrap(buf, filled, (int)Math.min(buf.length - filled, length - file_pos));
+                    int read = channel.read(dst, file_pos);
+                    if (read < 0) {
+                        throw new EOFException("Chunker: file shorter than " + length);
+                    }
+                    filled += read;
+                    file_pos += read;
+                }
+            }
+            if (pos == filled) {
+                break;
+            }
+            int cut = cut_point(buf, pos, filled);
+            String hash = hash(buf, pos, cut);
+            manifest.hashes.add(hash);
+            manifest.lengths.add(cut);
+            if (sink != null) {
+                sink.accept(hash, buf, pos, cut);
+            }
+            pos += cut;
+        }
+        return manifest;
+    }
+
+    /**
+     * @brief length of the chunk starting at start
+     * @param buf buffered bytes
+     * @param start chunk start
+     * @param end end of the buffered bytes
+     * @return chunk length, between min_size and max_size unless the data ends first
+     */
+    public static int cut_point(byte[] buf, int start, int end) {
+        int available = end - start;
+        if (available <= min_size) {
+            return available;
+        }
+        int limit = Math.min(available, max_size);
+        long rolling = 0;
+        for (int i = min_size; i < limit; i ++) {
+            rolling = (rolling << 1) + gear[buf[start + i] & 0xff];
+            if ((rolling & cut_mask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * @brief SHA-256 of a byte range, hex encoded
+     */
+    public static String hash(byte[] buf, int off, int len) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(buf, off, len);
+        byte[] sum = digest.digest();
+        StringBuilder sb = new StringBuilder(sum.length * 2);
+        for (byte b : sum) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
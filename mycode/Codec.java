@@ -0,0 +1,134 @@
+import java.util.*;
+import java.util.zip.*;
+
+/**
+* @brief per chunk compression of file bytes, incompressible chunks are detected on a sample and sent raw
+*/
+public class Codec {
+
+    /**
+     * codec name used in negotiation
+     */
+    public static final String name = "deflate";
+    /**
+     * chunks shorter than this are always sent raw
+     */
+    private static final int min_pack_size = 512;
+    /**
+     * bytes compressed to estimate the ratio of a chunk
+     */
+    private static final int sample_size = 4096;
+    /**
+     * a chunk is compressed only if its sample shrinks below this fraction
+     */
+    private static final double max_sample_ratio = 0.9;
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @brief pick the first offered codec this side supports
+     * @param offered codec names in order of preference
+     * @param supported codec names this side accepts
+     * @return chosen codec name, null if none is shared
+     */
+    public static String choose(List<String> offered, List<String> supported) {
+        for (String codec : offered) {
+            if (supported.contains(codec)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @brief compress raw unless a sample shows it will not pay off
+     * @param raw chunk bytes
+     * @return packed chunk, raw bytes are kept as they are if compression does not help
+     */
+    public static PackedChunk pack(byte[] raw) {
+        Metrics.add("codec.raw_bytes", raw.length);
+        if (raw.length < min_pack_size) {
+            Metrics.add("codec.wire_bytes", raw.length);
+            return new PackedChunk(false, raw.length, raw);
+        }
+        long start_time = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        // Sample from the middle, headers compress better than the body of most files
+        int sample_offset = Math.max(0, raw.length / 2 - sample_size / 2);
+        int sample_length = Math.min(sample_size, raw.length);
+        byte[] sample_out = new byte[sample_length];
+        deflater.reset();
+        deflater.setInput(raw, sample_offset, sample_length);
+        deflater.finish();
+        int sample_packed = deflater.deflate(sample_out);
+        byte[] packed = null;
+        if (deflater.finished() && sample_packed < sample_length * max_sample_ratio) {
+            packed = deflate(deflater, raw);
+        }
+        Metrics.add("codec.compress_us", (System.nanoTime() - start_time) / 1000);
+        if (packed == null || packed.length >= raw.length) {
+            Metrics.increment("codec.raw_chunks");
+            Metrics.add("codec.wire_bytes", raw.length);
+            return new PackedChunk(false, raw.length, raw);
+        }
+        Metrics.increment("codec.packed_chunks");
+        Metrics.add("codec.wire_bytes", packed.length);
+        Metrics.add("codec.saved_bytes", raw.length - packed.length);
+        return new PackedChunk(true, raw.length, packed);
+    }
+
+    /**
+     * @brief recover the raw bytes of a packed chunk
+     * @param chunk packed chunk, may be null
+     * @return raw bytes, null if chunk is null or corrupt
+     */
+    public static byte[] unpack(PackedChunk chunk) {
+        if (chunk == null || !chunk.compressed) {
+            return (chunk == null) ? null : chunk.data;
+        }
+        long start_time = System.nanoTime();
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(chunk.data);
+        byte[] raw = new byte[chunk.raw_length];
+        try {
+            int filled = 0;
+            while (filled < raw.length && !inflater.finished()) {
+                int count = inflater.inflate(raw, filled, raw.length - filled);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += count;
+            }
+            if (filled != raw.length) {
+                System.err.println("Codec: unpack() got " + filled + " of " + raw.length + " bytes");
+                return null;
+            }
+        } catch (DataFormatException e) {
+            System.err.println("Codec: unpack() corrupt chunk");
+            e.printStackTrace();
+            return null;
+        }
+        Metrics.add("codec.decompress_us", (System.nanoTime() - start_time) / 1000);
+        return raw;
+    }
+
+    /**
+     * @return deflated bytes of raw, null if they would not be smaller
+     */
+    private static byte[] deflate(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] out = new byte[raw.length];
+        int packed_length = 0;
+        while (!deflater.finished()) {
+            if (packed_length == out.length) {
+                return null;
+            }
+            packed_length += deflater.deflate(out, packed_length, out.length - packed_length);
+        }
+        return Arrays.copyOf(out, packed_length);
+    }
+}
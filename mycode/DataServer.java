@@ -0,0 +1,207 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* @brief Server side of the bulk data channel, file bytes move between sockets and files with transferTo/transferFrom
+*/
+public class DataServer {
+
+    /**
+     * commits a fully received upload, called outside any DataServer lock
+     */
+    public interface UploadCommitter {
+        /**
+         * @param remote_path canonical server path
+         * @param staged file of the received bytes, renamed into place by the committer
+         * @param length file length
+         * @return new version id, 0 on failure
+         */
+        int commit(String remote_path, File staged, long length) throws IOException;
+    }
+
+    /**
+     * a transfer granted over RMI and not yet claimed by a data connection
+     */
+    private static class Transfer {
+        String remote_path;
+        /**
+         * pooled channel of the version to download, null for uploads
+         */
+        FileChannelPool.Handle source;
+        long offset;
+        long length;
+        boolean upload;
+        long created;
+    }
+
+    /**
+     * unclaimed transfers are dropped after this many ms
+     */
+    private static final long token_timeout = 60000;
+
+    private final ServerSocketChannel listener;
+    private final Map<Long, Transfer> pending = new ConcurrentHashMap<Long, Transfer>();
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService handlers;
+    private final UploadCommitter committer;
+    /**
+     * uploads are received here, on the file system of the root so the committer can rename them into place
+     */
+    private final File staging_dir;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param committer applies received uploads to the master copy
+     * @param staging_dir directory for uploads in progress
+     */
+    public DataServer(int port, UploadCommitter committer, File staging_dir) throws IOException {
+        this.committer = committer;
+        this.staging_dir = staging_dir;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "data-channel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        handlers.execute(this::accept_loop);
+        System.err.println("DataServer: listening on " + get_port());
+    }
+
+    public int get_port() {
+        try {
+            return ((InetSocketAddress)listener.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @brief grant a transfer, the returned token is claimed by the first connection that presents it
+     * @param remote_path canonical server path
+     * @param source channel of the version to download, closed once sent or expired; null for uploads
+     * @param offset first byte of a download, 0 for uploads
+     * @param length bytes to move
+     * @param upload true for proxy to server
+     * @return token to hand back over RMI
+     */
+    public TransferToken grant(String remote_path, FileChannelPool.Handle source, long offset, long length, boolean upload) {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf(transfer -> {
+            if (transfer.created + token_timeout > now) {
+                return false;
+            }
+            if (transfer.source != null) {
+                transfer.source.close();
+            }
+            return true;
+        });
+        Transfer transfer = new Transfer();
+        transfer.remote_path = remote_path;
+        transfer.source = source;
+        transfer.offset = offset;
+        transfer.length = length;
+        transfer.upload = upload;
+        transfer.created = now;
+        long id;
+        do {
+            // Random ids, a token can not be guessed from an earlier one
+            id = random.nextLong();
+        } while (pending.putIfAbsent(id, transfer) != null);
+        return new TransferToken(id, get_port(), length);
+    }
+
+    private void accept_loop() {
+        while (true) {
+            try {
+                final SocketChannel socket = listener.accept();
+                handlers.execute(() -> handle(socket));
+            } catch (IOException e) {
+                System.err.println("DataServer: accept() failed");
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @brief serve one data connection: token id, then the file bytes in the granted direction
+     * @param socket accepted connection, closed on return
+     */
+    private void handle(SocketChannel socket) {
+        try (SocketChannel conn = socket) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            read_fully(conn, header);
+            header.flip();
+            Transfer transfer = pending.remove(header.getLong());
+            if (transfer == null) {
+                System.err.println("DataServer: unknown or expired token");
+                return;
+            }
+            if (transfer.upload) {
+                receive(conn, transfer);
+            } else {
+                send(conn, transfer);
+            }
+        } catch (IOException e) {
+            System.err.println("DataServer: transfer failed");
+            e.printStackTrace();
+        }
+    }
+
+    private void send(SocketChannel conn, Transfer transfer) throws IOException {
+        try (FileChannelPool.Handle source = transfer.source) {
+            long sent = 0;
+            while (sent < transfer.length) {
+                long count = source.channel.transferTo(transfer.offset + sent, transfer.length - sent, conn);
+                if (count <= 0) {
+                    // Cannot happen for a fixed version, the proxy would see a short transfer and retry over RMI
+                    break;
+                }
+                sent += count;
+            }
+            Metrics.add("server.data_channel_sent_bytes", sent);
+        }
+    }
+
+    private void receive(SocketChannel conn, Transfer transfer) throws IOException {
+        // Staged outside the root so a partial upload is never visible to readers
+        File staged_file = File.createTempFile("upload", ".staged", staging_dir);
+        try (FileChannel staged = FileChannel.open(staged_file.toPath(), StandardOpenOption.WRITE)) {
+            long received = 0;
+            while (received < transfer.length) {
+                long count = staged.transferFrom(conn, received, transfer.length - received);
+                if (count <= 0) {
+                    System.err.println("DataServer: upload ended early at " + received);
+                    return;
+                }
+                received += count;
+            }
+            Metrics.add("server.data_channel_received_bytes", received);
+            int version = committer.commit(transfer.remote_path, staged_file, transfer.length);
+            ByteBuffer reply = ByteBuffer.allocate(4);
+            reply.putInt(version);
+            reply.flip();
+            while (reply.hasRemaining()) {
+                conn.write(reply);
+            }
+        } finally {
+            // Already renamed into place if the commit succeeded
+            staged_file.delete();
+        }
+    }
+
+    static void read_fully(SocketChannel conn, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (conn.read(dst) == -1) {
+                throw new EOFException("data channel closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.*;
+
+/**
+* @brief byte ranges written through one fd, kept sorted and merged
+*/
+public class DirtyExtents {
+
+    /**
+     * start offset to end offset (exclusive) of each disjoint dirty range
+     */
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+    private long dirty_bytes = 0;
+
+    /**
+     * @brief mark [offset, offset + length) dirty, merging with touching ranges
+     * @param offset first written byte
+     * @param length number of bytes written
+     */
+    public synchronized void add(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            ranges.remove(before.getKey());
+            dirty_bytes -= before.getValue() - before.getKey();
+        }
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+        while (after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+            dirty_bytes -= after.getValue() - after.getKey();
+            after = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+        dirty_bytes += end - start;
+    }
+
+    /**
+     * @return true if nothing was written
+     */
+    public synchronized boolean is_empty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * @return total number of dirty bytes
+     */
+    public synchronized long get_dirty_bytes() {
+        return dirty_bytes;
+    }
+
+    /**
+     * @brief snapshot of the dirty ranges in offset order
+     * @return list of {start, end} pairs, end exclusive
+     */
+    public synchronized List<long[]> get_ranges() {
+        List<long[]> list = new ArrayList<long[]>();
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            list.add(new long[] {range.getKey(), range.getValue()});
+        }
+        return list;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+* @brief decides which Cache entry is evicted next, the Cache keeps the entries and their files
+* @brief selected at Proxy startup with proxy.eviction: lru (default), lfu, arc or gdsf
+*/
+public interface EvictionPolicy {
+
+    /**
+     * @brief an entry entered the cache, a new version of a path enters as a new entry
+     */
+    void on_insert(CachedFileInfo node);
+
+    /**
+     * @brief entries restored at startup entered the cache at once
+     * @param nodes entries from LRU to MRU
+     */
+    default void on_insert_all(List<CachedFileInfo> nodes) {
+        for (CachedFileInfo node : nodes) {
+            on_insert(node);
+        }
+    }
+
+    /**
+     * @brief a speculative entry entered the cache, e.g. a prefetch nobody opened yet; it goes before any used entry
+     * @brief an access makes it an ordinary entry
+     */
+    default void on_insert_cold(CachedFileInfo node) {
+        on_insert(node);
+    }
+
+    /**
+     * @brief an entry was opened again
+     */
+    void on_access(CachedFileInfo node);
+
+    /**
+     * @brief an entry left the cache
+     * @param evicted true if it was chosen by victim(), false if it was deleted, replaced or turned into another entry
+     */
+    void on_remove(CachedFileInfo node, boolean evicted);
+
+    /**
+     * @brief the bytes an entry is charged with changed, a sparse huge file or a write copy grows block by block
+     * @param old_size bytes it was charged with before, node.file_size holds the new size
+     */
+    default void on_resize(CachedFileInfo node, long old_size) {
+    }
+
+    /**
+     * @brief the next entry to evict
+     * @param evictable false for entries that must stay, pinned ones or ones already trimmed in this pass
+     * @return the entry, null if no entry is evictable
+     */
+    CachedFileInfo victim(Predicate<CachedFileInfo> evictable);
+
+    /**
+     * @param name policy name, lru, lfu, arc or gdsf
+     * @param capacity cache size in bytes
+     * @return the policy, LRU for an unknown name
+     */
+    static EvictionPolicy create(String name, long capacity) {
+        switch (name.trim().toLowerCase()) {
+            case "lru":
+                return new LruPolicy();
+            case "lfu":
+                return new LfuPolicy();
+            case "arc":
+                return new ArcPolicy(capacity);
+            case "gdsf":
+                return new GdsfPolicy();
+            default:
+                System.err.println("EvictionPolicy: unknown policy " + name + ", using lru");
+                return new LruPolicy();
+        }
+    }
+}
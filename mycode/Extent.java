@@ -0,0 +1,16 @@
+import java.io.Serializable;
+
+/**
+* @brief a modified byte range of a file, sent to the Server instead of the whole file
+*/
+public class Extent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public long offset;
+    public byte[] data;
+
+    public Extent(long offset, byte[] data) {
+        this.offset = offset;
+        this.data = data;
+    }
+}
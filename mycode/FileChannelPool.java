@@ -0,0 +1,129 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* @brief bounded pool of read channels of file versions on the Server, shared by the chunk requests of a transfer
+* @brief uploads replace a file by renaming a new one into place, so a channel keeps reading the version it was
+* opened on until it is closed, which is what lets in-flight downloads finish on the old version
+*/
+public class FileChannelPool {
+
+    /**
+     * @brief one open channel, returned to the pool by close()
+     */
+    public class Handle implements AutoCloseable {
+        public final FileChannel channel;
+        /**
+         * version the channel reads
+         */
+        public final int version;
+        private final String key;
+        private final String remote_path;
+        private int users = 0;
+        private long last_used;
+
+        private Handle(String key, String remote_path, int version, FileChannel channel) {
+            this.key = key;
+            this.version = version;
+            this.remote_path = remote_path;
+            this.channel = channel;
+        }
+
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final int max_open;
+    private final long idle_ms;
+    /**
+     * access ordered, keyed by mode and path, guarded by this
+     */
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+    /**
+     * @param max_open open channels kept, exceeded only while every one of them is in use
+     * @param idle_ms unused channels are closed after this long, this bounds how long a replaced version stays readable
+     */
+    public FileChannelPool(int max_open, long idle_ms) {
+        this.max_open = max_open;
+        this.idle_ms = idle_ms;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "channel-pool-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idle_ms / 2);
+        sweeper.scheduleAtFixedRate(this::close_idle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief get the pooled channel of a file version
+     * @param remote_path canonical server path
+     * @param version version the channel must read
+     * @param open_if_absent open the file now if no channel of this version is pooled, callers only pass true
+     * while holding the path lock with version current
+     * @return handle to close once the chunk is done, null if the version has no channel and none may be opened
+     */
+    public synchronized Handle acquire(String remote_path, int version, boolean open_if_absent) throws IOException {
+        String key = version + ":" + remote_path;
+        Handle handle = handles.get(key);
+        if (handle == null) {
+            if (!open_if_absent) {
+                return null;
+            }
+            handle = new Handle(key, remote_path, version, FileChannel.open(Paths.get(remote_path), StandardOpenOption.READ));
+            handles.put(key, handle);
+            Metrics.increment("server.channel_pool_opens");
+            trim();
+        } else {
+            Metrics.increment("server.channel_pool_reuses");
+        }
+        handle.users ++;
+        handle.last_used = System.currentTimeMillis();
+        return handle;
+    }
+
+    private synchronized void release(Handle handle) {
+        handle.users --;
+        handle.last_used = System.currentTimeMillis();
+    }
+
+    /**
+     * @brief close least recently used idle channels until the pool is within max_open
+     */
+    private void trim() {
+        Iterator<Handle> it = handles.values().iterator();
+        while (handles.size() > max_open && it.hasNext()) {
+            Handle handle = it.next();
+            if (handle.users == 0) {
+                it.remove();
+                close_channel(handle);
+            }
+        }
+    }
+
+    private synchronized void close_idle() {
+        long now = System.currentTimeMillis();
+        Iterator<Handle> it = handles.values().iterator();
+        while (it.hasNext()) {
+            Handle handle = it.next();
+            if (handle.users == 0 && now - handle.last_used >= idle_ms) {
+                it.remove();
+                close_channel(handle);
+            }
+        }
+        Metrics.set("server.channel_pool_open", handles.size());
+    }
+
+    private void close_channel(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            System.err.println("FileChannelPool: close of " + handle.key + " failed");
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* @brief stress one FileHandler from many threads, each keeping several fds open at once, and check every byte read
+* @brief usage: java FileHandlerStress <serverip> <port> <cache dir> <cache size> [threads] [iterations] [fds per thread]
+* @brief needs a running Server, the Proxy is set up in this process as Proxy main() does but without the RPC receiver
+* @brief shared files are read at random offsets through interleaved fds, each thread also rewrites and verifies its own file
+*/
+public class FileHandlerStress {
+
+    private static final int shared_files = 8;
+    private static final int shared_file_size = 262144;
+    private static final int read_size = 4096;
+    /**
+     * iterations between rewrites of the private file of a thread
+     */
+    private static final int write_every = 10;
+    /**
+     * errors printed in detail, the rest are only counted
+     */
+    private static final int errors_shown = 20;
+
+    private static final AtomicLong operations = new AtomicLong();
+    private static final AtomicInteger errors = new AtomicInteger();
+    /**
+     * opens refused with ENOMEM, expected once the fds held at once pin more than the cache size
+     */
+    private static final AtomicInteger refused = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("usage: java FileHandlerStress <serverip> <port> <cache dir> <cache size> [threads] [iterations] [fds per thread]");
+            System.exit(1);
+        }
+        final int threads = (args.length > 4) ? Integer.parseInt(args[4]) : 16;
+        final int iterations = (args.length > 5) ? Integer.parseInt(args[5]) : 200;
+        final int fds = (args.length > 6) ? Integer.parseInt(args[6]) : 4;
+        Proxy.init(args);
+        // One client, as RPCreceiver gives a multi-threaded client a single handler
+        final FileHandling handler = (new Proxy.FileHandlingFactory()).newclient();
+        for (int k = 0; k < shared_files; k ++) {
+            write_file(handler, shared_name(k), shared_content(k));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        long start_time = System.nanoTime();
+        for (int t = 0; t < threads; t ++) {
+            final int tid = t;
+            results.add(workers.submit(() -> {
+                run(handler, tid, iterations, fds);
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                error("thread failed: " + e.getCause());
+                e.getCause().printStackTrace(System.out);
+            }
+        }
+        long elapsed = System.nanoTime() - start_time;
+        workers.shutdown();
+
+        for (int k = 0; k < shared_files; k ++) {
+            handler.unlink(shared_name(k));
+        }
+        for (int t = 0; t < threads; t ++) {
+            handler.unlink(private_name(t));
+        }
+        handler.clientdone();
+        System.out.printf("threads %d, iterations %d, fds per thread %d: %d operations in %.1f ms, %.0f ops/s, %d opens refused, errors %d%n",
+            threads, iterations, fds, operations.get(), elapsed / 1e6, operations.get() / Math.max(1e-9, elapsed / 1e9),
+            refused.get(), errors.get());
+        System.exit((errors.get() == 0) ? 0 : 1);
+    }
+
+    /**
+     * @brief one worker: open fds on random shared files, interleave seeks and reads over them, then close them all
+     */
+    private static void run(FileHandling handler, int tid, int iterations, int fds) {
+        Random random = new Random(tid);
+        int[] open_fds = new int[fds];
+        int[] open_files = new int[fds];
+        byte[] buf = new byte[read_size];
+        for (int i = 0; i < iterations; i ++) {
+            for (int j = 0; j < fds; j ++) {
+                open_files[j] = random.nextInt(shared_files);
+                open_fds[j] = count(handler.open(shared_name(open_files[j]), FileHandling.OpenOption.READ));
+                if (open_fds[j] == FileHandling.Errors.ENOMEM) {
+                    refused.incrementAndGet();
+                } else if (open_fds[j] < 0) {
+                    error("open " + shared_name(open_files[j]) + " returned " + open_fds[j]);
+                }
+            }
+            for (int round = 0; round < 4; round ++) {
+                for (int j = 0; j < fds; j ++) {
+                    if (open_fds[j] < 0) {
+                        continue;
+                    }
+                    int offset = random.nextInt(shared_file_size);
+                    if (count(handler.lseek(open_fds[j], offset, FileHandling.LseekOption.FROM_START)) != offset) {
+                        error("lseek of fd " + open_fds[j] + " to " + offset + " failed");
+                        continue;
+                    }
+                    int expected = Math.min(read_size, shared_file_size - offset);
+                    int got = read_fully(handler, open_fds[j], buf, expected);
+                    if (got != expected) {
+                        error("read of " + expected + " bytes at " + offset + " of " + shared_name(open_files[j]) + " returned " + got);
+                        continue;
+                    }
+                    for (int b = 0; b < got; b ++) {
+                        if (buf[b] != shared_byte(open_files[j], offset + b)) {
+                            error("wrong byte at " + (offset + b) + " of " + shared_name(open_files[j]));
+                            break;
+                        }
+                    }
+                }
+            }
+            for (int j = 0; j < fds; j ++) {
+                if (open_fds[j] >= 0 && count(handler.close(open_fds[j])) != 0) {
+                    error("close of fd " + open_fds[j] + " failed");
+                }
+            }
+            if (open_fds[0] >= 0 && count(handler.close(open_fds[0])) != FileHandling.Errors.EBADF) {
+                error("second close of fd " + open_fds[0] + " did not return EBADF");
+            }
+            if (i % write_every == 0) {
+                byte[] content = ("thread " + tid + " iteration " + i).getBytes();
+                write_file(handler, private_name(tid), content);
+                int fd = count(handler.open(private_name(tid), FileHandling.OpenOption.READ));
+                if (fd < 0) {
+                    error("open " + private_name(tid) + " returned " + fd);
+                    continue;
+                }
+                byte[] read_back = new byte[content.length];
+                if (read_fully(handler, fd, read_back, content.length) != content.length || !Arrays.equals(read_back, content)) {
+                    error(private_name(tid) + " does not hold the last write");
+                }
+                count(handler.close(fd));
+            }
+        }
+    }
+
+    private static void write_file(FileHandling handler, String name, byte[] content) {
+        int fd = count(handler.open(name, FileHandling.OpenOption.CREATE));
+        if (fd < 0) {
+            error("create " + name + " returned " + fd);
+            return;
+        }
+        if (count(handler.write(fd, content)) != content.length) {
+            error("write of " + name + " failed");
+        }
+        if (count(handler.close(fd)) != 0) {
+            error("close after writing " + name + " failed");
+        }
+    }
+
+    private static int read_fully(FileHandling handler, int fd, byte[] buf, int length) {
+        int total = 0;
+        while (total < length) {
+            byte[] part = (total == 0) ? buf : new byte[length - total];
+            long got = count(handler.read(fd, part));
+            if (got <= 0) {
+                return (total == 0) ? (int)got : total;
+            }
+            if (part != buf) {
+                System.arraycopy(part, 0, buf, total, (int)got);
+            }
+            total += got;
+        }
+        return total;
+    }
+
+    private static String shared_name(int k) {
+        return "stress_shared_" + k;
+    }
+
+    private static String private_name(int tid) {
+        return "stress_" + tid;
+    }
+
+    private static byte shared_byte(int k, int offset) {
+        return (byte)((k * 31 + offset) % 251);
+    }
+
+    private static byte[] shared_content(int k) {
+        byte[] content = new byte[shared_file_size];
+        for (int offset = 0; offset < shared_file_size; offset ++) {
+            content[offset] = shared_byte(k, offset);
+        }
+        return content;
+    }
+
+    private static int count(int result) {
+        operations.incrementAndGet();
+        return result;
+    }
+
+    private static long count(long result) {
+        operations.incrementAndGet();
+        return result;
+    }
+
+    private static void error(String message) {
+        if (errors.incrementAndGet() <= errors_shown) {
+            System.out.println("FileHandlerStress: " + message);
+        }
+    }
+}
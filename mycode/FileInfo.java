@@ -1,4 +1,7 @@
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -6,6 +9,34 @@ import java.io.*;
 */
 public class FileInfo{
     public RandomAccessFile raf;
+    /**
+     * channel of raf, read/write/lseek use positional I/O on it
+     */
+    public FileChannel channel;
+    /**
+     * per-fd file offset, independent of the channel position
+     */
+    public final AtomicLong position = new AtomicLong(0);
+    /**
+     * ranges written through this fd, only the dirty bytes are uploaded on close
+     */
+    public final DirtyExtents dirty = new DirtyExtents();
+    /**
+     * block store of the cached version for sparse read fds, reads fetch missing blocks first
+     */
+    public SparseFile sparse;
+    /**
+     * mapping shared with the cache entry for small read fds, read copies from it at position
+     */
+    public MappedByteBuffer mapped;
+    /**
+     * copy-on-write view of the cached version for write fds, read and write go through it
+     */
+    public WriteOverlay overlay;
+    /**
+     * Server stream of a read fd whose version the cache declined, null for cached versions
+     */
+    public BypassReader bypass;
     public boolean is_dir;
     public boolean is_existed;
     public int version;
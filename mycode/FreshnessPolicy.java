@@ -0,0 +1,88 @@
+import java.util.*;
+
+/**
+* @brief per path prefix consistency setting of the Proxy
+* @brief spec is a comma separated list of prefix=mode, mode is check, ttl:<ms> or swr:<ms>
+* @brief e.g. "logs/=ttl:5000,data/=swr:60000", the longest matching prefix wins, default is check
+*/
+public class FreshnessPolicy {
+
+    public enum Mode {
+        /** validate with the Server on every open that holds no lease */
+        CHECK,
+        /** skip validation if the entry was validated within window ms */
+        TTL,
+        /** serve an entry validated within window ms at once and revalidate it in the background */
+        SWR
+    }
+
+    public static class Rule {
+        public final String prefix;
+        public final Mode mode;
+        public final long window;
+
+        public Rule(String prefix, Mode mode, long window) {
+            this.prefix = prefix;
+            this.mode = mode;
+            this.window = window;
+        }
+    }
+
+    private static final Rule default_rule = new Rule("", Mode.CHECK, 0);
+    /**
+     * rules sorted by descending prefix length, so the first match is the longest one
+     */
+    private final List<Rule> rules;
+
+    public FreshnessPolicy(String spec) {
+        rules = new ArrayList<Rule>();
+        if (spec == null || spec.trim().isEmpty()) {
+            return;
+        }
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            int eq = item.lastIndexOf('=');
+            if (eq < 0) {
+                System.err.println("FreshnessPolicy: ignored malformed rule " + item);
+                continue;
+            }
+            String prefix = item.substring(0, eq);
+            String mode = item.substring(eq + 1);
+            long window = 0;
+            int colon = mode.indexOf(':');
+            if (colon >= 0) {
+                try {
+                    window = Long.parseLong(mode.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    System.err.println("FreshnessPolicy: ignored malformed window " + item);
+                    continue;
+                }
+                mode = mode.substring(0, colon);
+            }
+            if (mode.equals("check")) {
+                rules.add(new Rule(prefix, Mode.CHECK, 0));
+            } else if (mode.equals("ttl")) {
+                rules.add(new Rule(prefix, Mode.TTL, window));
+            } else if (mode.equals("swr")) {
+                rules.add(new Rule(prefix, Mode.SWR, window));
+            } else {
+                System.err.println("FreshnessPolicy: ignored unknown mode " + item);
+            }
+        }
+        rules.sort((a, b) -> b.prefix.length() - a.prefix.length());
+    }
+
+    /**
+     * @brief find the rule of path
+     * @param path original input file path
+     * @return longest prefix rule, CHECK if none matches
+     */
+    public Rule get_rule(String path) {
+        for (Rule rule : rules) {
+            if (path.startsWith(rule.prefix)) {
+                return rule;
+            }
+        }
+        return default_rule;
+    }
+}
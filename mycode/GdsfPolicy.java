@@ -0,0 +1,117 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+* @brief greedy dual size frequency, the entry with the lowest priority goes first
+* @brief priority = clock + uses / size in MB, so small hot files outlive a huge file read once; the clock rises
+* @brief to the priority of each evicted entry, so entries that stop being used age out however often they were used
+*/
+public class GdsfPolicy implements EvictionPolicy {
+
+    private static class Entry implements Comparable<Entry> {
+        final CachedFileInfo node;
+        final long seq;
+        int uses;
+        /**
+         * clock at the last insert or access
+         */
+        double base;
+        double priority;
+
+        Entry(CachedFileInfo node, long seq) {
+            this.node = node;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry other) {
+            int order = Double.compare(priority, other.priority);
+            return (order != 0) ? order : Long.compare(seq, other.seq);
+        }
+    }
+
+    private final Map<CachedFileInfo, Entry> entries = new HashMap<CachedFileInfo, Entry>();
+    /**
+     * entries from lowest to highest priority, older first among equals
+     */
+    private final TreeSet<Entry> queue = new TreeSet<Entry>();
+    private double clock = 0;
+    private long next_seq = 0;
+
+    public void on_insert(CachedFileInfo node) {
+        if (entries.containsKey(node)) {
+            return;
+        }
+        Entry entry = new Entry(node, next_seq ++);
+        entry.uses = 1;
+        entry.base = clock;
+        entry.priority = priority_of(entry);
+        entries.put(node, entry);
+        queue.add(entry);
+    }
+
+    public void on_insert_cold(CachedFileInfo node) {
+        if (entries.containsKey(node)) {
+            return;
+        }
+        // No uses yet, ranked with the lowest priority queued so it goes before every used entry
+        Entry entry = new Entry(node, next_seq ++);
+        entry.uses = 0;
+        entry.base = clock;
+        entry.priority = queue.isEmpty() ? clock : Math.min(clock, queue.first().priority);
+        entries.put(node, entry);
+        queue.add(entry);
+    }
+
+    public void on_access(CachedFileInfo node) {
+        Entry entry = entries.remove(node);
+        if (entry == null) {
+            return;
+        }
+        queue.remove(entry);
+        // Re-queued behind entries of the same priority
+        Entry touched = new Entry(node, next_seq ++);
+        touched.uses = entry.uses + 1;
+        touched.base = clock;
+        touched.priority = priority_of(touched);
+        entries.put(node, touched);
+        queue.add(touched);
+    }
+
+    public void on_remove(CachedFileInfo node, boolean evicted) {
+        Entry entry = entries.remove(node);
+        if (entry == null) {
+            return;
+        }
+        queue.remove(entry);
+        if (evicted) {
+            clock = Math.max(clock, entry.priority);
+        }
+    }
+
+    public void on_resize(CachedFileInfo node, long old_size) {
+        Entry entry = entries.get(node);
+        if (entry == null) {
+            return;
+        }
+        // A huge file inserted empty ranks by the bytes it holds now, not by its first block
+        queue.remove(entry);
+        entry.priority = priority_of(entry);
+        queue.add(entry);
+    }
+
+    public CachedFileInfo victim(Predicate<CachedFileInfo> evictable) {
+        for (Entry entry : queue) {
+            if (evictable.test(entry.node)) {
+                return entry.node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return clock at the last use plus uses per MB, sizes below 4 KB count as 4 KB
+     */
+    private double priority_of(Entry entry) {
+        return entry.base + entry.uses * 1048576.0 / Math.max(4096, entry.node.file_size);
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* @brief bounded LRU of recently read file contents on the Server, held in direct buffers outside the Java heap
+* @brief entries are keyed by path and version, a new version never sees the bytes of an older one
+*/
+public class HotFileCache {
+
+    /**
+     * @brief contents of one version of a file
+     */
+    private static class Entry {
+        int version;
+        ByteBuffer data;
+    }
+
+    private final long capacity;
+    private final long max_file_size;
+    /**
+     * access ordered, the eldest entry is evicted first, guarded by this
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /**
+     * loads in progress, so concurrent misses on a popular file read it from disk once
+     */
+    private final Map<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+    private long used = 0;
+
+    /**
+     * @param capacity total bytes kept
+     * @param max_file_size largest file kept, bigger ones are always read from disk
+     */
+    public HotFileCache(long capacity, long max_file_size) {
+        this.capacity = capacity;
+        this.max_file_size = Math.min(max_file_size, capacity);
+    }
+
+    /**
+     * @brief read up to length bytes of a version at offset, loading the whole file on a miss
+     * @param remote_path canonical server path
+     * @param version version source reads
+     * @param source channel of that version, read positionally on a miss and left open
+     * @param offset first byte wanted
+     * @param length bytes wanted, clamped to the file
+     * @return the bytes, null if the file is too big to cache or cannot be read
+     */
+    public byte[] read(String remote_path, int version, FileChannel source, long offset, int length) throws IOException {
+        long file_size = source.size();
+        if (file_size > max_file_size || file_size > Integer.MAX_VALUE) {
+            return null;
+        }
+        Entry entry = lookup(remote_path, version);
+        if (entry == null) {
+            Metrics.increment("server.hot_cache_misses");
+            entry = load(remote_path, version, source);
+            if (entry == null) {
+                return null;
+            }
+        } else {
+            Metrics.increment("server.hot_cache_hits");
+        }
+        publish_hit_rate();
+        ByteBuffer data = entry.data.duplicate();
+        int start = (int)Math.min(offset, data.limit());
+        int count = Math.min(length, data.limit() - start);
+        byte[] bytes = new byte[count];
+        data.position(start);
+        data.get(bytes);
+        Metrics.add("server.hot_cache_bytes_served", count);
+        return bytes;
+    }
+
+    /**
+     * @brief drop the cached contents of a path, called when its version changes or it is deleted
+     * @param remote_path canonical server path
+     */
+    public synchronized void invalidate(String remote_path) {
+        Entry entry = entries.remove(remote_path);
+        if (entry != null) {
+            used -= entry.data.capacity();
+            Metrics.set("server.hot_cache_bytes", used);
+        }
+    }
+
+    private synchronized Entry lookup(String remote_path, int version) {
+        Entry entry = entries.get(remote_path);
+        return (entry != null && entry.version == version) ? entry : null;
+    }
+
+    private Entry load(final String remote_path, final int version, final FileChannel source) {
+        String key = remote_path + "\0" + version;
+        FutureTask<Entry> task = new FutureTask<Entry>(() -> {
+            ByteBuffer data = ByteBuffer.allocateDirect((int)source.size());
+            while (data.hasRemaining()) {
+                if (source.read(data, data.position()) < 0) {
+                    break;
+                }
+            }
+            data.flip();
+            Entry entry = new Entry();
+            entry.version = version;
+            entry.data = data.asReadOnlyBuffer();
+            return entry;
+        });
+        FutureTask<Entry> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            task.run();
+            running = task;
+        }
+        try {
+            Entry entry = running.get();
+            if (running == task) {
+                loading.remove(key);
+                if (entry != null) {
+                    insert(remote_path, entry);
+                }
+            }
+            return entry;
+        } catch (InterruptedException | ExecutionException e) {
+            if (running == task) {
+                loading.remove(key);
+            }
+            System.err.println("HotFileCache: load of " + remote_path + " failed");
+            return null;
+        }
+    }
+
+    private synchronized void insert(String remote_path, Entry entry) {
+        Entry replaced = entries.get(remote_path);
+        if (replaced != null && replaced.version > entry.version) {
+            // A newer version was loaded meanwhile
+            return;
+        }
+        if (replaced != null) {
+            entries.remove(remote_path);
+            used -= replaced.data.capacity();
+        }
+        entries.put(remote_path, entry);
+        used += entry.data.capacity();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (used > capacity && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue() == entry) {
+                continue;
+            }
+            it.remove();
+            used -= eldest.getValue().data.capacity();
+            Metrics.increment("server.hot_cache_evictions");
+        }
+        Metrics.set("server.hot_cache_bytes", used);
+    }
+
+    private static void publish_hit_rate() {
+        long hits = Metrics.get("server.hot_cache_hits");
+        long total = hits + Metrics.get("server.hot_cache_misses");
+        Metrics.set("server.hot_cache_hit_rate_pct", (total == 0) ? 0 : hits * 100 / total);
+    }
+}
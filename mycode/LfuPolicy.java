@@ -0,0 +1,64 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+* @brief least frequently used entry goes first, ties broken by recency
+* @brief entries are kept in one bucket per use count, so every operation is O(log distinct counts)
+*/
+public class LfuPolicy implements EvictionPolicy {
+
+    private final Map<CachedFileInfo, Integer> counts = new HashMap<CachedFileInfo, Integer>();
+    /**
+     * use count to its entries from LRU to MRU
+     */
+    private final TreeMap<Integer, LinkedHashSet<CachedFileInfo>> buckets = new TreeMap<Integer, LinkedHashSet<CachedFileInfo>>();
+
+    public void on_insert(CachedFileInfo node) {
+        if (counts.putIfAbsent(node, 1) == null) {
+            buckets.computeIfAbsent(1, count -> new LinkedHashSet<CachedFileInfo>()).add(node);
+        }
+    }
+
+    public void on_insert_cold(CachedFileInfo node) {
+        // Count 0 sorts before every entry used at least once
+        if (counts.putIfAbsent(node, 0) == null) {
+            buckets.computeIfAbsent(0, count -> new LinkedHashSet<CachedFileInfo>()).add(node);
+        }
+    }
+
+    public void on_access(CachedFileInfo node) {
+        Integer count = counts.get(node);
+        if (count == null) {
+            return;
+        }
+        unbucket(node, count);
+        counts.put(node, count + 1);
+        buckets.computeIfAbsent(count + 1, key -> new LinkedHashSet<CachedFileInfo>()).add(node);
+    }
+
+    public void on_remove(CachedFileInfo node, boolean evicted) {
+        Integer count = counts.remove(node);
+        if (count != null) {
+            unbucket(node, count);
+        }
+    }
+
+    public CachedFileInfo victim(Predicate<CachedFileInfo> evictable) {
+        for (LinkedHashSet<CachedFileInfo> bucket : buckets.values()) {
+            for (CachedFileInfo node : bucket) {
+                if (evictable.test(node)) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void unbucket(CachedFileInfo node, int count) {
+        LinkedHashSet<CachedFileInfo> bucket = buckets.get(count);
+        bucket.remove(node);
+        if (bucket.isEmpty()) {
+            buckets.remove(count);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+* @brief least recently used entry goes first
+*/
+public class LruPolicy implements EvictionPolicy {
+
+    /**
+     * entries from LRU to MRU
+     */
+    private LinkedHashSet<CachedFileInfo> order = new LinkedHashSet<CachedFileInfo>();
+    /**
+     * cold entries never accessed, oldest first, all of them go before order
+     */
+    private final LinkedHashSet<CachedFileInfo> cold = new LinkedHashSet<CachedFileInfo>();
+
+    public void on_insert(CachedFileInfo node) {
+        order.add(node);
+    }
+
+    public void on_insert_all(List<CachedFileInfo> nodes) {
+        if (order.isEmpty()) {
+            // Sized once for a restored cache
+            order = new LinkedHashSet<CachedFileInfo>(Math.max(16, (int)(nodes.size() / 0.75f) + 1));
+        }
+        order.addAll(nodes);
+    }
+
+    public void on_insert_cold(CachedFileInfo node) {
+        cold.add(node);
+    }
+
+    public void on_access(CachedFileInfo node) {
+        if (order.remove(node) || cold.remove(node)) {
+            order.add(node);
+        }
+    }
+
+    public void on_remove(CachedFileInfo node, boolean evicted) {
+        if (!order.remove(node)) {
+            cold.remove(node);
+        }
+    }
+
+    public CachedFileInfo victim(Predicate<CachedFileInfo> evictable) {
+        for (CachedFileInfo node : cold) {
+            if (evictable.test(node)) {
+                return node;
+            }
+        }
+        for (CachedFileInfo node : order) {
+            if (evictable.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,19 @@
+import java.io.Serializable;
+import java.util.*;
+
+/**
+* @brief a file version as the ordered list of its content-defined chunks
+*/
+public class Manifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * SHA-256 of each chunk in file order, hex encoded
+     */
+    public List<String> hashes = new ArrayList<String>();
+    public List<Integer> lengths = new ArrayList<Integer>();
+    /**
+     * file length, the sum of lengths
+     */
+    public long length;
+}
@@ -0,0 +1,121 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* @brief Proxy side table of Server file information held under callback leases
+* @brief entries without a live lease are kept with their validation time for TTL and SWR modes
+*/
+public class MetadataCache {
+
+    /**
+     * validated file information for a path
+     */
+    private static class Entry {
+        Reply_FileInfo reply_fileinfo;
+        long lease_expiry;
+        long validated_at;
+    }
+
+    /**
+     * canonical cache path to leased entry, same encoding as the Proxy cache files
+     */
+    private final Map<String, Entry> path_entry_map;
+    /**
+     * bumped on every invalidation, an entry fetched across a bump may be stale and is not stored
+     */
+    private final AtomicLong epoch;
+    private final String cache_dir;
+
+    public MetadataCache(String cache_dir) {
+        path_entry_map = new ConcurrentHashMap<String, Entry>();
+        epoch = new AtomicLong(0);
+        this.cache_dir = cache_dir;
+    }
+
+    /**
+     * @brief get the leased file information of path
+     * @param path original input file path
+     * @return file information if the lease is still valid, otherwise null
+     */
+    public Reply_FileInfo get_leased(String path) {
+        Entry entry = path_entry_map.get(get_key(path));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.lease_expiry <= System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.reply_fileinfo;
+    }
+
+    /**
+     * @brief get file information of path validated with the Server recently
+     * @param path original input file path
+     * @param max_age oldest acceptable validation in ms
+     * @return file information validated within max_age, otherwise null
+     */
+    public Reply_FileInfo get_validated(String path, long max_age) {
+        Entry entry = path_entry_map.get(get_key(path));
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.validated_at > max_age) {
+            return null;
+        }
+        return entry.reply_fileinfo;
+    }
+
+    /**
+     * @brief read the invalidation epoch, taken before asking the Server for a lease
+     * @return current epoch
+     */
+    public long get_epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * @brief store file information validated by the Server, with the lease granted along with it if any
+     * @param path original input file path
+     * @param reply_fileinfo file information returned by the Server
+     * @param request_start time the request was sent, the lease and validation are counted from there
+     * @param request_epoch epoch read before the request was sent
+     */
+    public void put(String path, Reply_FileInfo reply_fileinfo, long request_start, long request_epoch) {
+        Entry entry = new Entry();
+        entry.reply_fileinfo = reply_fileinfo;
+        entry.lease_expiry = request_start + reply_fileinfo.lease_duration;
+        entry.validated_at = request_start;
+        String key = get_key(path);
+        path_entry_map.put(key, entry);
+        // An invalidation raced with the request, the reply may predate it
+        if (epoch.get() != request_epoch) {
+            path_entry_map.remove(key, entry);
+        }
+    }
+
+    /**
+     * @brief drop the lease of path
+     * @param path path whose lease is broken
+     */
+    public void invalidate(String path) {
+        epoch.incrementAndGet();
+        path_entry_map.remove(get_key(path));
+    }
+
+    /**
+    * @brief map a path to its canonical cache path, the key the Proxy uses for cache files
+    * @param path original input file path
+    * @return canonical key
+    */
+    private String get_key(String path) {
+        String key = cache_dir + "/" + path.replace("/", ";;");
+        try {
+            key = (new File(key)).getCanonicalPath();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return key;
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* @brief named counters shared by Proxy and Server, reported to stderr
+*/
+public class Metrics {
+
+    private static final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+
+    /**
+     * @brief add delta to a counter, creating it on first use
+     * @param name counter name
+     * @param delta amount to add
+     */
+    public static void add(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong(0));
+            counter = counters.get(name);
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * @brief overwrite a counter, used for gauges such as current store sizes
+     * @param name counter name
+     * @param value new value
+     */
+    public static void set(String name, long value) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong(0));
+            counter = counters.get(name);
+        }
+        counter.set(value);
+    }
+
+    /**
+     * @brief add one to a counter
+     * @param name counter name
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * @brief read a counter
+     * @param name counter name
+     * @return counter value, 0 if never touched
+     */
+    public static long get(String name) {
+        AtomicLong counter = counters.get(name);
+        return (counter == null) ? 0 : counter.get();
+    }
+
+    /**
+     * @brief format all counters, sorted by name
+     * @return one name=value pair per line
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            sb.append(counter.getKey()).append("=").append(counter.getValue().get()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @brief print the report every interval_ms and once at shutdown
+     * @param owner name printed in the report header
+     * @param interval_ms report period, 0 only reports at shutdown
+     */
+    public static void start_reporter(final String owner, long interval_ms) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.err.print(owner + " metrics:\n" + report());
+        }));
+        if (interval_ms <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            System.err.print(owner + " metrics:\n" + report());
+        }, interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,24 @@
+import java.io.Serializable;
+
+/**
+* @brief file bytes as sent over RMI once a codec is negotiated, either compressed or raw
+*/
+public class PackedChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * true if data is deflated, false if it is the raw bytes
+     */
+    public boolean compressed;
+    /**
+     * length of the bytes before packing
+     */
+    public int raw_length;
+    public byte[] data;
+
+    public PackedChunk(boolean compressed, int raw_length, byte[] data) {
+        this.compressed = compressed;
+        this.raw_length = raw_length;
+        this.data = data;
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+* @brief cooperative caching between proxies: serves the complete versions of this proxy to its peers, advertises them
+* @brief in the Server's peer directory, and fetches a missing version from a peer holding it before asking the Server
+* @brief only files of at least min_size take part, smaller ones cost less to fetch than to look up
+*/
+public class PeerCache extends UnicastRemoteObject implements PeerOps, Cache.Listener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Cache cache;
+    private final RemoteOps srv;
+    private final long min_size;
+    private final int chunk_size;
+    /**
+     * runs directory updates off the cache monitor
+     */
+    private final Executor background;
+
+    /**
+     * @param cache cache whose complete versions are shared
+     * @param srv Server keeping the peer directory
+     * @param min_size smaller files are neither shared nor fetched from peers
+     * @param chunk_size bytes read from a peer per call
+     * @param background executor for directory updates
+     */
+    public PeerCache(Cache cache, RemoteOps srv, long min_size, int chunk_size, Executor background) throws RemoteException {
+        super();
+        this.cache = cache;
+        this.srv = srv;
+        this.min_size = min_size;
+        this.chunk_size = chunk_size;
+        this.background = background;
+    }
+
+    /**
+     * @brief called by another proxy, read a byte range of a version held complete in this cache
+     * @param path path as the version was cached and advertised
+     * @param version version wanted, nothing is served for any other
+     * @param offset first byte wanted
+     * @param length bytes wanted, clamped to the file
+     * @return the bytes, null if this proxy no longer holds exactly that version
+     */
+    public byte[] read_cached(String path, int version, long offset, int length) throws RemoteException {
+        CachedFileInfo cached_fileinfo = cache.pin_version(path, version);
+        if (cached_fileinfo == null) {
+            Metrics.increment("proxy.peer_serve_misses");
+            return null;
+        }
+        // Pinned, eviction cannot delete the file while it is read
+        String cache_path = cached_fileinfo.path;
+        try (RandomAccessFile raf = new RandomAccessFile(cache_path, "r")) {
+            FileChannel channel = raf.getChannel();
+            int count = (int)Math.max(0, Math.min(length, channel.size() - offset));
+            byte[] data = new byte[count];
+            ByteBuffer dst = ByteBuffer.wrap(data);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, offset + dst.position()) == -1) {
+                    break;
+                }
+            }
+            Metrics.add("proxy.peer_served_bytes", count);
+            return data;
+        } catch (IOException e) {
+            System.err.println("PeerCache: read_cached() cannot read " + cache_path);
+            return null;
+        } finally {
+            cache.decrease_reference_count(cache_path);
+        }
+    }
+
+    /**
+     * @brief fetch a version from a peer into dst, peers that fail are withdrawn from the directory
+     * @param path original input file path
+     * @param version version validated with the Server
+     * @param dst cache file to write, deleted if no peer supplies the version
+     * @param length file length
+     * @return true if a peer supplied every byte
+     */
+    public boolean fetch(String path, int version, File dst, long length) {
+        if (length < min_size) {
+            return false;
+        }
+        List<PeerOps> peers;
+        try {
+            peers = srv.find_peers(path, version, this);
+        } catch (RemoteException e) {
+            System.err.println("PeerCache: find_peers() remote exception");
+            return false;
+        }
+        for (PeerOps peer : peers) {
+            if (fetch_from(peer, path, version, dst, length)) {
+                Metrics.increment("proxy.peer_fetches");
+                Metrics.add("proxy.peer_fetch_bytes", length);
+                return true;
+            }
+            Metrics.increment("proxy.peer_fetch_failures");
+            withdraw(path, version, peer);
+        }
+        dst.delete();
+        return false;
+    }
+
+    /**
+     * @brief advertise a complete version once it is committed to the cache
+     * @param cached_fileinfo committed entry
+     */
+    public void committed(CachedFileInfo cached_fileinfo) {
+        if (cached_fileinfo.file_size < min_size) {
+            return;
+        }
+        final String path = cached_fileinfo.orig_path;
+        final int version = cached_fileinfo.version;
+        background.execute(() -> {
+            try {
+                if (srv.advertise_peer(path, version, this) == 0) {
+                    Metrics.increment("proxy.peer_advertised");
+                }
+            } catch (RemoteException e) {
+                System.err.println("PeerCache: advertise_peer() remote exception");
+            }
+        });
+    }
+
+    /**
+     * @brief withdraw a version leaving the cache
+     * @param cached_fileinfo removed entry
+     */
+    public void dropped(CachedFileInfo cached_fileinfo) {
+        if (cached_fileinfo.file_size < min_size) {
+            return;
+        }
+        withdraw(cached_fileinfo.orig_path, cached_fileinfo.version, this);
+    }
+
+    /**
+     * @brief read every chunk of a version from one peer
+     * @return false if the peer did not answer or no longer holds the version
+     */
+    private boolean fetch_from(PeerOps peer, String path, int version, File dst, long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(dst, "rw")) {
+            FileChannel channel = raf.getChannel();
+            for (long offset = 0; offset < length; offset += chunk_size) {
+                int count = (int)Math.min(chunk_size, length - offset);
+                byte[] data = peer.read_cached(path, version, offset, count);
+                if (data == null || data.length != count) {
+                    return false;
+                }
+                ByteBuffer src = ByteBuffer.wrap(data);
+                while (src.hasRemaining()) {
+                    channel.write(src, offset + src.position());
+                }
+            }
+            raf.setLength(length);
+            return true;
+        } catch (IOException e) {
+            // RemoteException included, the peer is gone
+            System.err.println("PeerCache: peer unreachable while fetching " + path);
+            return false;
+        }
+    }
+
+    private void withdraw(final String path, final int version, final PeerOps peer) {
+        background.execute(() -> {
+            try {
+                srv.withdraw_peer(path, version, peer);
+            } catch (RemoteException e) {
+                System.err.println("PeerCache: withdraw_peer() remote exception");
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* @brief Server side directory of the proxies holding a complete copy of a version, for cooperative caching
+* @brief entries are hints: a referred proxy checks the version before serving, and a requester withdraws a hint
+* @brief that failed, versions are never reused so a stale hint can only miss, never serve other content
+*/
+public class PeerDirectory {
+
+    /**
+     * most proxies remembered per path, enough to spread the reads of a hot file
+     */
+    private static final int holders_limit = 16;
+
+    /**
+     * canonical server path to each holding proxy and the version it holds
+     */
+    private final Map<String, Map<PeerOps, Integer>> holders = new ConcurrentHashMap<String, Map<PeerOps, Integer>>();
+
+    /**
+     * @brief record that peer holds version of remote_path, holders of older versions are dropped
+     * @param remote_path canonical server path
+     * @param version version held, the current one
+     * @param peer endpoint of the holding proxy
+     */
+    public void advertise(String remote_path, int version, PeerOps peer) {
+        Map<PeerOps, Integer> path_holders = holders.computeIfAbsent(remote_path, key -> new ConcurrentHashMap<PeerOps, Integer>());
+        path_holders.values().removeIf(held -> held < version);
+        if (path_holders.size() >= holders_limit && !path_holders.containsKey(peer)) {
+            return;
+        }
+        path_holders.put(peer, version);
+    }
+
+    /**
+     * @brief forget that peer holds version of remote_path, it dropped the copy or did not answer
+     * @param remote_path canonical server path
+     * @param version version no longer held
+     * @param peer endpoint of the proxy
+     */
+    public void withdraw(String remote_path, int version, PeerOps peer) {
+        holders.computeIfPresent(remote_path, (key, path_holders) -> {
+            path_holders.remove(peer, version);
+            return path_holders.isEmpty() ? null : path_holders;
+        });
+    }
+
+    /**
+     * @param remote_path canonical server path
+     * @param version version wanted, the current one
+     * @param requester endpoint of the asking proxy, never referred to itself, may be null
+     * @return holders of exactly that version in random order, so reads of a hot file spread over them
+     */
+    public List<PeerOps> find(String remote_path, int version, PeerOps requester) {
+        List<PeerOps> found = new ArrayList<PeerOps>();
+        Map<PeerOps, Integer> path_holders = holders.get(remote_path);
+        if (path_holders == null) {
+            return found;
+        }
+        for (Map.Entry<PeerOps, Integer> holder : path_holders.entrySet()) {
+            if (holder.getValue() == version && !holder.getKey().equals(requester)) {
+                found.add(holder.getKey());
+            }
+        }
+        Collections.shuffle(found);
+        return found;
+    }
+}
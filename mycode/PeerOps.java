@@ -0,0 +1,11 @@
+import java.rmi.*;
+
+
+/**
+* @brief interface exported by each Proxy that shares its cache, other proxies read complete versions from it
+*/
+public interface PeerOps extends Remote {
+
+    public byte[] read_cached(String path, int version, long offset, int length) throws RemoteException;
+
+}
@@ -6,10 +6,17 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.print.DocFlavor.INPUT_STREAM;
 
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.io.File;
 
 class Proxy {
@@ -21,15 +28,17 @@ class Proxy {
     /**
      * used for file descriptor assignment
      */
-    private static int fd_count = 0;
+    private static final AtomicInteger fd_count = new AtomicInteger(0);
     /**
-     * locks for file descriptor assignment
+     * Striped locks used for per-path cache operations (fetch, validate, write copy creation)
      */
-    private static final Object lock = new Object();
-    /**
-     * Special lock used for cache operations
-     */
-    private static final Object cache_lock = new Object();
+    private static final int path_lock_count = 64;
+    private static final Object[] path_locks = new Object[path_lock_count];
+    static {
+        for (int i = 0; i < path_lock_count; i ++) {
+            path_locks[i] = new Object();
+        }
+    }
 
     /**
      * chunk size used for huge file transmission
@@ -39,29 +48,142 @@ class Proxy {
      * huge file size lower bound
      */
     private static final int huge_file_size = 10000000;
+    /**
+     * a directory is listed again only after the leases of its previous listing ran out
+     */
+    private static final long dir_prefetch_interval = 30000;
+    /**
+     * cache huge files as blocks fetched on demand instead of downloading them in open()
+     */
+    private static boolean sparse_huge_files;
+    /**
+     * complete sparse files in the background after open
+     */
+    private static boolean background_fill;
+    /**
+     * whole _rdonly_ versions up to this size are memory mapped for reads, 0 disables mapping
+     */
+    private static long mmap_threshold;
+    /**
+     * whole file uploads at least this large go as chunk manifests so the Server only gets new chunks, 0 disables it
+     */
+    private static long dedup_min_size;
+    /**
+     * access history driving prefetches, null if prefetching is off
+     */
+    private static AccessPredictor predictor;
+    /**
+     * prefetch budgets: bandwidth in bytes per second, bytes unused prefetches may hold, largest file prefetched
+     */
+    private static long prefetch_bandwidth;
+    private static long prefetch_space;
+    private static long prefetch_max_size;
+    /**
+     * a client's first open follows the last open of any client at most this many ms before
+     */
+    private static long prefetch_gap;
+    private static String last_open_path;
+    private static long last_open_time = 0;
+    private static double prefetch_tokens = 0;
+    private static long prefetch_refilled = System.nanoTime();
+    /**
+     * paths being prefetched
+     */
+    private static Set<String> prefetching = ConcurrentHashMap.newKeySet();
+    /**
+     * cache paths of prefetches filled outside the path lock, an open of one of these versions waits for it
+     */
+    private static Map<String, CountDownLatch> prefetch_fills = new ConcurrentHashMap<String, CountDownLatch>();
 
     private static String server_name;
     private static RemoteOps srv;
     private static String cache_dir;
     private static int cache_size;
     private static Cache cache;
+    /**
+     * pipelined chunk transfers of huge files
+     */
+    private static TransferEngine transfer_engine;
+    /**
+     * uploads closed write copies in the background, null when close() uploads synchronously
+     */
+    private static WriteBack write_back;
+    /**
+     * shares complete versions with other proxies, null when cooperative caching is off
+     */
+    private static PeerCache peer_cache;
+    /**
+     * file information held under Server callback leases, lets opens skip get_file_info
+     */
+    private static MetadataCache metadata_cache;
+    /**
+     * exported endpoint the Server calls to break leases of this proxy
+     */
+    private static CallbackReceiver callback;
+    /**
+     * per path prefix freshness mode, applied when no lease is held
+     */
+    private static FreshnessPolicy freshness;
+    /**
+     * paths with a stale-while-revalidate refresh in flight
+     */
+    private static Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    /**
+     * directory to time its entries were last prefetched, siblings are validated in one batch
+     */
+    private static Map<String, Long> dir_prefetch_map = new ConcurrentHashMap<String, Long>();
+    /**
+     * worker threads for background cache maintenance
+     */
+    private static final ExecutorService background = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "proxy-background");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private static class FileHandler implements FileHandling {
 
-        public synchronized int open( String path, OpenOption o ) {
+        /**
+         * path of this client's last successful file open, for the access history
+         */
+        private String last_opened;
+
+        public int open( String path, OpenOption o ) {
             System.err.print( path + " open, mode: ");
             // Invalid path argument
             if (path == null || path.equals("")) {
                 return Errors.EINVAL;
             }
-            Reply_FileInfo reply_fileinfo = null;
-            try {
-                reply_fileinfo = srv.get_file_info(path);
-            } catch (RemoteException e) {
-                System.err.println("Exception on getting remote file info");
-                e.printStackTrace();
+            Reply_FileInfo reply_fileinfo = get_file_info(path);
+            if (reply_fileinfo == null) {
+                return Errors.EPERM;
+            }
+            int open_result = open_validated(path, o, reply_fileinfo);
+            if (open_result == Errors.ENOENT && reply_fileinfo.is_existed && !reply_fileinfo.is_dir) {
+                // The Server replaced the version between validation and fetch and no longer serves it, fetch the new one
+                Reply_FileInfo fresh_fileinfo = validate(path);
+                if (fresh_fileinfo != null && fresh_fileinfo.is_existed && fresh_fileinfo.version != reply_fileinfo.version) {
+                    Metrics.increment("proxy.open_retries");
+                    open_result = open_validated(path, o, fresh_fileinfo);
+                }
             }
+            if (open_result >= 0 && predictor != null && !reply_fileinfo.is_dir) {
+                // Learn the open sequence, then fetch what usually follows
+                predictor.record(previous_open(last_opened, path), path);
+                last_opened = path;
+                prefetch_after(path);
+            }
+            return open_result;
+        }
 
+        /**
+        * @brief open path as described by validated server information
+        * @param path original input file path
+        * @param o open option
+        * @param reply_fileinfo server information of path
+        * @return fd on success, negative error code otherwise
+        */
+        private int open_validated(String path, OpenOption o, Reply_FileInfo reply_fileinfo) {
             String access_mode;
             boolean check_existed = false;
 
@@ -126,12 +248,7 @@ class Proxy {
                 }
             }
 
-            int intFD;
-            synchronized (lock) {
-                fd_count += 1;
-                intFD = fd_count;
-                assert(!fd_file_map.containsKey(intFD));
-            }
+            int intFD = fd_count.incrementAndGet();
             
             RandomAccessFile raf = null;
             FileInfo fileinfo;
@@ -141,7 +258,7 @@ class Proxy {
 
             if (!is_dir) {
                 int deal_result;
-                synchronized (cache_lock) {
+                synchronized (get_path_lock(path)) {
                     deal_result = deal(fileinfo, raf, access_mode, intFD);
                 }
                 if (deal_result == -1) {
@@ -157,81 +274,93 @@ class Proxy {
             return intFD;
         }
 
-        public synchronized int close( int fd ) {
+        public int close( int fd ) {
             System.err.println("close");
-            if (!fd_file_map.containsKey(fd)) {
+            // Claim the fd atomically, a concurrent or repeated close sees EBADF
+            FileInfo fileinfo = fd_file_map.remove(fd);
+            if (fileinfo == null) {
                 return Errors.EBADF;
             }
 
-            FileInfo fileinfo = fd_file_map.get(fd);
-            RandomAccessFile raf;
-            if (!fileinfo.is_dir) {
-                raf = fileinfo.raf;
-            } else {
-                fd_file_map.remove(fd);
+            if (fileinfo.is_dir) {
                 return 0;
             }
-            if (raf.equals(null)) {
+            // Only write fds own a file handle, read fds use the channel shared by the cache entry
+            RandomAccessFile raf = fileinfo.raf;
+            if (raf == null && fileinfo.access_mode.equals("rw")) {
                 System.err.println("Proxy close() null raf! STH WRONG!");
-                if (fd_file_map.containsKey(fd)) {
-                    fd_file_map.remove(fd);
-                    return 0;
-                }
-
+                return 0;
             }
+            int close_result = 0;
             // File has been overwritten
             if (fileinfo.access_mode.equals("rw")) {
+                WriteOverlay overlay = fileinfo.overlay;
                 try {
-                    long new_length = raf.length();
-                    if (new_length > huge_file_size) {
-                        int new_version = send_huge_file(new_length, raf, fileinfo);
-                        synchronized (cache_lock) {
+                    long new_length = overlay.size();
+                    if (fileinfo.dirty.is_empty() && new_length == fileinfo.file_size) {
+                        // Nothing written, the read-only version is still current, drop the overlay
+                        synchronized (get_path_lock(fileinfo.orig_path)) {
+                            cache.decrease_reference_count(fileinfo.path);
                             cache.decrease_reference_count(fileinfo.write_path);
-                            if (cache.update_file_and_version(fileinfo, new_version, (int)new_length) == -2) {
-                                return Errors.ENOMEM;
-                            }
+                            cache.remove_file(fileinfo.write_path);
+                        }
+                        Metrics.increment("proxy.clean_closes");
+                    } else if (write_back != null && !overlay.is_base_sparse() && overlay.materialize() == 0) {
+                        // Installed as a pending version now, the upload happens in the background
+                        synchronized (get_path_lock(fileinfo.orig_path)) {
+                            close_result = defer_write_copy(fileinfo, new_length);
+                            cache.traverse_cache();
                         }
                     } else {
-                        byte[] sent_file = new byte[(int)new_length];
-                        raf.seek(0);
-                        int result = raf.read(sent_file);
-                        assert(result != -1);
-                        int new_version = srv.upload_file(fileinfo.orig_path, sent_file);
-                        synchronized (cache_lock) {
-                            cache.decrease_reference_count(fileinfo.write_path);
-                            if (cache.update_file_and_version(fileinfo, new_version, (int)new_length) == -2) {
-                                return Errors.ENOMEM;
-                            }
+                        int new_version = upload_write_copy(fileinfo, new_length);
+                        synchronized (get_path_lock(fileinfo.orig_path)) {
+                            close_result = install_write_copy(fileinfo, new_version, new_length);
                             cache.traverse_cache();
                         }
                     }
                 } catch (Exception e) {
                     System.err.println("Proxy close(), sent file failed");
                     e.printStackTrace();
+                    synchronized (get_path_lock(fileinfo.orig_path)) {
+                        // Still indexed means the failure came before the pins were handed over, the write is lost
+                        if (cache.contains_file(fileinfo.write_path)) {
+                            cache.decrease_reference_count(fileinfo.path);
+                            cache.decrease_reference_count(fileinfo.write_path);
+                            cache.remove_file(fileinfo.write_path);
+                        }
+                    }
+                    // Errors.EPERM
+                    close_result = -1;
                 }
+            } else if (fileinfo.bypass != null) {
+                // Never cached, only the Server session is released
+                fileinfo.bypass.close();
             } else {
-                synchronized (cache_lock) {
-                    // Move to end to deal with slow reads LRU!
-                    cache.move_to_end(fileinfo.path);
-                    cache.decrease_reference_count(fileinfo.path);
-                    cache.traverse_cache();
-                }
+                // Move to end to deal with slow reads LRU! Cache guards its own recency list
+                cache.move_to_end(fileinfo.path);
+                cache.decrease_reference_count(fileinfo.path);
+                cache.traverse_cache();
             }
             try {
-                raf.close();
-                fd_file_map.remove(fd);
+                if (raf != null) {
+                    raf.close();
+                }
             } catch (IOException e) {
                 System.err.println("exception in close: raf.close");
                 e.printStackTrace();
                 return -1;
             }
-            return 0;
+            return close_result;
         }
 
-        public synchronized long write( int fd, byte[] buf ) {
-            System.err.println("Proxy: write, fd:" + fd);
+        /*
+         * read, write and lseek take no lock: each fd owns its channel and offset,
+         * positional channel I/O leaves the shared file pointer alone.
+         */
 
-            if (!fd_file_map.containsKey(fd)) {
+        public long write( int fd, byte[] buf ) {
+            FileInfo fileinfo = fd_file_map.get(fd);
+            if (fileinfo == null) {
                 return Errors.EBADF;
             }
 
@@ -239,14 +368,23 @@ class Proxy {
                 return Errors.EINVAL;
             }
             
-            FileInfo fileinfo = fd_file_map.get(fd);
             if (fileinfo.is_dir) {
                 return Errors.EISDIR;
             }
-            RandomAccessFile raf = fileinfo.raf;
+            if (!fileinfo.access_mode.equals("rw")) {
+                return Errors.EBADF;
+            }
 
             try {
-                raf.write(buf);
+                long start = fileinfo.position.get();
+                int write_result = fileinfo.overlay.write(buf, start);
+                if (write_result == -2) {
+                    return Errors.ENOMEM;
+                } else if (write_result != 0) {
+                    return Errors.EBADF;
+                }
+                fileinfo.position.set(start + buf.length);
+                fileinfo.dirty.add(start, buf.length);
             } catch (IOException e) {
                 System.err.println("Proxy: Exception in write");
                 e.printStackTrace();
@@ -257,82 +395,103 @@ class Proxy {
         }
 
         public long read( int fd, byte[] buf ) {
-            System.err.println("Proxy: read, fd:" + fd);
-            if (!fd_file_map.containsKey(fd)) {
+            FileInfo fileinfo = fd_file_map.get(fd);
+            if (fileinfo == null) {
                 return Errors.EBADF;
             }
 
             if (buf == null) {
                 return Errors.EINVAL;
             }
-            FileInfo fileinfo = fd_file_map.get(fd);
             if (fileinfo.is_dir) {
                 return Errors.EISDIR;
             }
-            RandomAccessFile raf = fileinfo.raf;
             try {
-                long length = (long) raf.read(buf);
+                long pos = fileinfo.position.get();
+                if (fileinfo.overlay != null) {
+                    // Written blocks come from the _wr_ file, the rest from the shared read-only version
+                    int read_result = fileinfo.overlay.read(buf, pos);
+                    if (read_result == -2) {
+                        return Errors.ENOMEM;
+                    } else if (read_result < 0) {
+                        return Errors.EBADF;
+                    }
+                    fileinfo.position.set(pos + read_result);
+                    return read_result;
+                }
+                if (fileinfo.bypass != null) {
+                    int read_result = fileinfo.bypass.read(buf, pos);
+                    if (read_result < 0) {
+                        return Errors.EBADF;
+                    }
+                    fileinfo.position.set(pos + read_result);
+                    return read_result;
+                }
+                MappedByteBuffer mapped = fileinfo.mapped;
+                if (mapped != null) {
+                    // Absolute bulk get, no syscall and no shared buffer state
+                    if (pos >= mapped.limit()) {
+                        return 0;
+                    }
+                    int length = (int)Math.min(buf.length, mapped.limit() - pos);
+                    mapped.get((int)pos, buf, 0, length);
+                    fileinfo.position.set(pos + length);
+                    return length;
+                }
+                if (fileinfo.sparse != null) {
+                    int ensure_result = fileinfo.sparse.ensure(pos, buf.length);
+                    if (ensure_result == -2) {
+                        return Errors.ENOMEM;
+                    } else if (ensure_result != 0) {
+                        return Errors.EBADF;
+                    }
+                }
+                long length = (long) fileinfo.channel.read(ByteBuffer.wrap(buf), pos);
                 if (length == -1) {
                     // reach end of file
                     return 0;
                 }
+                fileinfo.position.set(pos + length);
                 return length;
             } catch (IOException e) {
-                System.err.println("err in raf.read");
+                System.err.println("err in channel.read");
                 e.printStackTrace();
                 return Errors.EBADF;
             }
         }
 
         public long lseek( int fd, long pos, LseekOption o ) {
-            System.err.println("lseek");
-
-            if (!fd_file_map.containsKey(fd)) {
+            FileInfo fileinfo = fd_file_map.get(fd);
+            if (fileinfo == null) {
                 return Errors.EBADF;
             }
             if (pos < 0) {
                 return Errors.EINVAL;
             }
 
-            FileInfo fileinfo = fd_file_map.get(fd);
-            RandomAccessFile raf = fileinfo.raf;
             if (fileinfo.is_dir) {
                 return Errors.EISDIR;
             }
 
             long new_pos = pos;
             if (o == LseekOption.FROM_CURRENT) {
-                try {
-                    long current_offset = raf.getFilePointer();
-                    new_pos = pos + current_offset;
-                    raf.seek(new_pos);
-                } catch (IOException e) {
-                    // question about those IOExceptions!!!
-                    System.err.println("err in raf.seek");
-                    e.printStackTrace();
-                    return Errors.EINVAL;
-                }
-
+                new_pos = pos + fileinfo.position.get();
             } else if (o == LseekOption.FROM_END) {
                 try {
-                    long length = raf.length();
+                    long length = (fileinfo.bypass != null) ? fileinfo.bypass.get_length() : fileinfo.channel.size();
                     new_pos = length - pos;
-                    raf.seek(new_pos);
                 } catch (IOException e) {
-                    System.err.println("err in raf.seek");
+                    System.err.println("err in channel.size");
                     e.printStackTrace();
                     return Errors.EINVAL;
                 }
             } else if (o == LseekOption.FROM_START) {
-                try {
-                    new_pos = pos;
-                    raf.seek(new_pos);
-                } catch (IOException e) {
-                    System.err.println("err in raf.seek");
-                    e.printStackTrace();
-                    return Errors.EINVAL;
-                }
+                new_pos = pos;
+            }
+            if (new_pos < 0) {
+                return Errors.EINVAL;
             }
+            fileinfo.position.set(new_pos);
             return new_pos;
         }
 
@@ -342,12 +501,15 @@ class Proxy {
             if (path == null || path.startsWith("..")) {
                 return Errors.EINVAL;
             }
-            Reply_FileInfo reply_fileinfo = null;
-            try {
-                reply_fileinfo = srv.get_file_info(path);
-            } catch (RemoteException e) {
-                System.err.println("Proxy: unlink() remote exception");
-                e.printStackTrace();
+            WriteBack.Entry cancelled = (write_back == null) ? null : write_back.cancel(get_cache_path(path));
+            if (cancelled != null) {
+                synchronized (get_path_lock(path)) {
+                    release_pending(cancelled);
+                }
+            }
+            Reply_FileInfo reply_fileinfo = get_file_info(path);
+            if (reply_fileinfo == null) {
+                return Errors.EPERM;
             }
             boolean is_existed = reply_fileinfo.is_existed;
             int remote_version = reply_fileinfo.version;
@@ -360,12 +522,12 @@ class Proxy {
             File file = new File(cache_path);
             try {
                 // Delete local cached copy (all versions) and if latest ver exists, also delete it
-                synchronized(cache_lock) {
+                synchronized (get_path_lock(path)) {
                     cache.delete_old_versions(path, remote_version);
                     if (file.exists()) {
                         if (cache.contains_file(cache_path)) {
                             CachedFileInfo cached_fileinfo = cache.get_local_file_info(cache_path);
-                            if (cached_fileinfo.reference_count <= 0) {
+                            if (cached_fileinfo.reference_count.get() <= 0) {
                                 boolean is_removed = cache.remove_file(cache_path);
                                 if (!is_removed) {
                                     System.err.println("Proxy: unlink() failed to remove latest version");
@@ -376,9 +538,11 @@ class Proxy {
                 }
                 // Delete server's master copy and get return number
                 int delete_result = srv.delete_file(path);
-                if (delete_result == -1) {
+                if (delete_result == -1 && cancelled == null) {
+                    // A file created here and never uploaded is gone with its pending version
                     return Errors.ENOENT;
-                } else if (delete_result == -2) {
+                } else if (delete_result < -1) {
+                    // Includes a delete the version log could not record
                     return Errors.EPERM;
                 }
                 return 0;
@@ -396,144 +560,78 @@ class Proxy {
         }
 
         /**
-        * @brief Send file to remote server, used in close()
-        * @param new_length new length of the file
-        * @param raf randomaccessfile for read and write, stored in map at end of this method
-        * @param fileinfo fileinfo, prefilled with remote reply information
+        * @brief Upload a closed write copy, as dirty extents when small enough, else as the whole file
+        * @param fileinfo fileinfo of the write fd, version is the base version of the write copy
+        * @param new_length length of the write copy
         * @return new file version id
         */
-        private int send_huge_file(long new_length, RandomAccessFile raf, FileInfo fileinfo) {
-            int tmp_length = chunk_size;
-            byte[] sent_file = new byte[chunk_size];
-            int offset = 0;
-            boolean finished = false;
-            int new_version = 0;
-            try {
-                while (offset < new_length) {
-                    raf.seek(offset);
-                    if (offset + chunk_size > new_length) {
-                        tmp_length = (int)new_length - offset;
-                        sent_file = new byte[tmp_length];
-                    }
-                    int read_result = raf.read(sent_file, 0, tmp_length);
-                    assert(read_result != -1);
-                    if (offset + chunk_size > new_length) {
-                        finished = true;
-                        new_version = srv.upload_huge_file(fileinfo.orig_path, sent_file, offset, finished);
-                        break;
-                    }
-                    srv.upload_huge_file(fileinfo.orig_path, sent_file, offset, finished);
-                    offset += chunk_size;
+        private int upload_write_copy(FileInfo fileinfo, long new_length) throws IOException {
+            long dirty_bytes = fileinfo.dirty.get_dirty_bytes();
+            if (dirty_bytes <= huge_file_size) {
+                List<Extent> extents = new ArrayList<Extent>();
+                for (long[] range : fileinfo.dirty.get_ranges()) {
+                    byte[] data = new byte[(int)(range[1] - range[0])];
+                    read_fully(fileinfo.channel, data, range[0]);
+                    extents.add(new Extent(range[0], data));
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                int new_version = srv.apply_extents(fileinfo.orig_path, fileinfo.version, extents, new_length);
+                if (new_version > 0) {
+                    Metrics.add("proxy.upload_bytes", dirty_bytes);
+                    Metrics.add("proxy.upload_bytes_saved", new_length - dirty_bytes);
+                    return new_version;
+                }
+                // The master copy moved on or vanished since open, fall back to sending the whole file
+                System.err.println("Proxy: apply_extents() refused " + new_version + ", uploading whole file");
             }
-
-            return new_version;
+            // Whole file upload needs every block, copy up the untouched ones from the base
+            if (fileinfo.overlay.materialize() != 0) {
+                System.err.println("Proxy: upload_write_copy() cannot materialize " + fileinfo.write_path);
+                return 0;
+            }
+            return upload_whole(fileinfo.orig_path, fileinfo.channel, new_length);
         }
 
         /**
-        * @brief Deal with 3 cases: 1. File not in cache 2. File in cache but not latest 3. File in cache and valid.
+        * @brief Bring the version into the cache via cache_version(), then open it or its write copy for this fd
         * @param fileinfo fileinfo, prefilled with remote reply information
         * @param raf randomaccessfile for read and write, stored in map at end of this method
         * @param access_mode access_mode
         * @return an array of file bytes
         */
         private int deal(FileInfo fileinfo, RandomAccessFile raf, String access_mode, int fd) {
-            String path = fileinfo.orig_path;
             String cache_path = fileinfo.path;
-            int remote_version_num = fileinfo.version;
-            int remote_file_size = fileinfo.file_size;
-            int local_version;
-            boolean in_cache;
-            in_cache = cache.contains_file(cache_path);
-            
-            // version validation, check local and remote version diff
-            if ((!in_cache)) {
-                // Get from remote server if local version does not match or local has no correct file
-                if (remote_file_size > cache_size) {
-                    // Errors.ENOMEM;
-                    return -2;
-                }
-                // Delete all old versions in the cache, use orig_path + latest version to iterate through stale files
-                cache.delete_old_versions(path, remote_version_num);
-                if (cache.get_cache_remain_size() < remote_file_size) {
-                    boolean is_enough = cache.evict(remote_file_size);
-                    if (!is_enough) {
-                        // Errors.ENOMEM;
-                        return -2;
-                    }
-                }
-                // For huge file, fetch and save locally using chunks
-                if (remote_file_size > huge_file_size) {
-                    int fetch_result = fetch_save_huge_file(path, cache_path, remote_file_size);
-                    if (fetch_result != 0) {
-                        System.err.println("Proxy: Error in Fetch_save_huge_file");
-                    }
-                } else {
-                    // If the file is on server, just fetch it.
-                    byte[] received_file = fetch_file(path);
-                    // Save file to cache_dir
-                    save_file_locally(cache_path, received_file);
-                }
-                cache.add_to_cacheline(new CachedFileInfo(fileinfo));
-            } else {
-                // Get from local cache
-                CachedFileInfo cached_fileinfo;
-                cached_fileinfo = cache.get_local_file_info(cache_path);
-                if (cached_fileinfo != null) {
-                    cache.move_to_end(cached_fileinfo);
 
-                } else {
-                    System.err.println("Proxy: get_local_file_info() failed");
-                }
+            if (access_mode.equals("r") && !cache.contains_file(cache_path) && !cache.admit(fileinfo.orig_path, fileinfo.file_size)) {
+                // Declined, e.g. a one-off scan of a large file: read straight from the Server, the cache is left alone
+                return open_bypass(fileinfo, access_mode);
+            }
+            int cache_result = cache_version(fileinfo);
+            if (cache_result != 0) {
+                return cache_result;
             }
 
-            // Create write copy for non-read mode
+            // Create write overlay for non-read mode
             if (!access_mode.equals("r")) {
 
-                // Add reference count to read file to avoid it being evicted before making write copy.
-                if (!cache.add_reference_count(cache_path)) {
-                    System.err.println("Reference Count Add for Making Write Copy Failed! " + cache_path);
-                }
-                int create_result = create_write_copy(fileinfo, fd);
-
-                // Decrease reference count to read file to avoid it being evicted before making write copy.
-                if (!cache.decrease_reference_count(cache_path)) {
-                    System.err.println("Reference Count Decrease for Making Write Copy Failed! " + cache_path);
-                }
+                // The read file stays pinned until close(), unwritten blocks are read from it
+                int create_result = create_write_overlay(fileinfo, fd);
                 if (create_result != 0) {
+                    cache.decrease_reference_count(cache_path);
                     return create_result;
                 }
-                // Save to local cache
-                String write_path = get_cache_path(fileinfo.orig_path) + "_wr_" + fd;
-                try {
-                    raf = new RandomAccessFile(write_path, access_mode);
-
-                } catch (FileNotFoundException e) {
-                    System.err.println("exception in open: RandomAccessFile(file, access_mode)");
-                    e.printStackTrace();
-                    // Errors.ENOENT;
-                    return -1;
-                }
-                fileinfo.raf = raf;
-                if (!cache.add_reference_count(write_path)) {
-                    System.err.println("Reference Count Add Failed! " + write_path);
-                }
+                fileinfo.raf = fileinfo.overlay.get_raf();
+                fileinfo.channel = fileinfo.overlay.get_channel();
             } else {
-                try {
-                    raf = new RandomAccessFile(cache_path, access_mode);
-
-                } catch (FileNotFoundException e) {
-                    System.err.println("exception in open: RandomAccessFile(file, access_mode)");
-                    e.printStackTrace();
+                CachedFileInfo cached_fileinfo = cache.get_local_file_info(cache_path);
+                if (open_shared(cached_fileinfo) != 0) {
+                    cache.decrease_reference_count(cache_path);
                     // Errors.ENOENT;
                     return -1;
                 }
-                fileinfo.raf = raf;
-                if (!cache.add_reference_count(cache_path)) {
-                    System.err.println("Reference Count Add Failed! " + cache_path);
-                }
+                // The pin taken above is handed to this fd and released in close(), it keeps the shared channel open
+                fileinfo.channel = cached_fileinfo.channel;
+                fileinfo.mapped = cached_fileinfo.mapped;
+                fileinfo.sparse = cached_fileinfo.sparse;
             }
 
             // Store access_mode for close() to decide whether forward update back to Server.
@@ -543,109 +641,545 @@ class Proxy {
         }
 
         /**
-        * @brief Get file from server
-        * @param path remote file path on server
-        * @return an array of file bytes
+        * @brief set up a read fd that streams its version from the Server without a cache entry
+        * @param fileinfo fileinfo, to be paired with fd
+        * @param access_mode access mode of the fd, read only
+        * @return 0 on success, -1 if the Server no longer has the version
         */
-        private byte[] fetch_file(String path) {
-            byte[] received_file = null;
-            try {
-                received_file = srv.get_file(path);
-            } catch (RemoteException e) {
-                System.err.println("Proxy: fet_file Exception");
-                e.printStackTrace();
+        private int open_bypass(FileInfo fileinfo, String access_mode) {
+            BypassReader bypass = new BypassReader(fileinfo.orig_path, fileinfo.version, fileinfo.file_size, chunk_size, transfer_engine);
+            if (!bypass.open()) {
+                // Errors.ENOENT;
+                return -1;
             }
-            return received_file;
+            Metrics.increment("proxy.bypass_opens");
+            fileinfo.bypass = bypass;
+            fileinfo.access_mode = access_mode;
+            return 0;
         }
 
-
         /**
-        * @brief create file on local cache directory
-        * @param cache_path path to store the file
-        * @param received_file received_file from server
+        * @brief create a copy-on-write overlay of the pinned read-only version for writting
+        * add it to cache_line charged for no blocks yet, also sets write_path and overlay in fileinfo
+        * @param fileinfo fileinfo, to be paired with fd
+        * @param fd fd paired with fileinfo, used for writing copy's name
+        * @return 0 on success, -1 if the _wr_ file cannot be created, -2 if the cache is full
         */
-        private void save_file_locally(String cache_path, byte[] received_file) {
+        private int create_write_overlay(FileInfo fileinfo, int fd) {
+            String tmp = get_cache_path(fileinfo.orig_path);
+            String write_path = tmp + "_wr_" + fd;
+
+            String cache_path = fileinfo.path;
+            CachedFileInfo read_fileinfo = cache.get_local_file_info(cache_path);
+            if (open_shared(read_fileinfo) != 0) {
+                // Errors.ENOENT;
+                return -1;
+            }
+
+            // Only a to-write file has write_path stored in the fileinfo
+            fileinfo.write_path = write_path;
+            CachedFileInfo write_fileinfo = new CachedFileInfo(fileinfo);
+            // Charged block by block as writes copy them up
+            write_fileinfo.file_size = 0;
+            if (!cache.add_pinned(write_fileinfo)) {
+                // Errors.ENOMEM
+                return -2;
+            }
 
-            RandomAccessFile tmp;
             try {
-                tmp = new RandomAccessFile(cache_path, "rw");
-                tmp.write(received_file);
-                tmp.close();
+                fileinfo.overlay = new WriteOverlay(write_path, read_fileinfo.channel, read_fileinfo.sparse,
+                    (new File(cache_path)).length(), cache, write_fileinfo);
             } catch (IOException e) {
-                System.err.println("Proxy: save_file_locally exception");
+                System.err.println("Proxy: create_write_overlay() failed to open " + write_path);
                 e.printStackTrace();
+                cache.decrease_reference_count(write_path);
+                cache.remove_file(write_path);
+                // Errors.ENOENT;
+                return -1;
             }
+            return 0;
         }
 
         /**
-        * @brief Get file from server with chunking, and save it locally
-        * @brief an integration of fetch_file and save_file_locally, but for huge files
-        * @param path remote file path on server
-        * @param offset file offset used for chunking
-        * @param file_size size of the huge file, assume file size < 2 ^ 32 (within integer)
-        * @return an array of file bytes
+        * @brief after an upload, turn the overlay into the new read-only version and release both pins
+        * @brief a huge sparse base is not copied locally, the new version is fetched on demand instead
+        * @brief callers hold the stripe lock of fileinfo.orig_path
+        * @param fileinfo fileinfo of the write fd
+        * @param new_version version returned by the upload, not positive if it failed
+        * @param new_length length of the written file
+        * @return 0, Errors.ENOMEM if the new version does not fit, Errors.EPERM if the upload failed
         */
-        private int fetch_save_huge_file(String path, String cache_path, int file_size) {
-            byte[] received_file = null;
-            long offset = 0;
-            try {
-                RandomAccessFile tmp = new RandomAccessFile(cache_path, "rw");
-                while (offset < file_size) {
-                    received_file = srv.get_file(path, offset);
-                    offset += chunk_size;
-                    System.err.println("received file is: " + received_file + "Length: " + received_file.length);
-                    tmp.write(received_file);
+        private int install_write_copy(FileInfo fileinfo, int new_version, long new_length) throws IOException {
+            WriteOverlay overlay = fileinfo.overlay;
+            boolean keep = new_version > 0 && !overlay.is_base_sparse() && overlay.materialize() == 0;
+            // The read-only version is no longer needed once every block is in the _wr_ file
+            cache.decrease_reference_count(fileinfo.path);
+            cache.decrease_reference_count(fileinfo.write_path);
+            if (!keep) {
+                cache.remove_file(fileinfo.write_path);
+                if (new_version <= 0) {
+                    System.err.println("Proxy: upload of " + fileinfo.orig_path + " failed, write copy dropped");
+                    return Errors.EPERM;
                 }
-                tmp.close();
-            } catch (IOException e) {
-                System.err.println("Proxy: fetch_save_huge_file() failed");
-                e.printStackTrace();
                 return 0;
             }
+            if (cache.update_file_and_version(fileinfo, new_version, (int)new_length) == -2) {
+                return Errors.ENOMEM;
+            }
             return 0;
         }
 
-
         /**
-        * @brief create a file copy for writting on local cache directory
-        * add it to cache_line, also sets the write_path in fileinfo
-        * @param fileinfo fileinfo, to be paired with fd
-        * @param fd fd paired with fileinfo, used for writing copy's name
+        * @brief turn the overlay into a pending read-only version without uploading it, the write-back thread sends it later
+        * @brief the pin of the write copy is kept by the pending version until it is installed or released
+        * @brief callers hold the stripe lock of fileinfo.orig_path
+        * @param fileinfo fileinfo of the write fd, its overlay is materialized
+        * @param new_length length of the written file
+        * @return 0, Errors.ENOMEM if the new version does not fit
         */
-        private int create_write_copy(FileInfo fileinfo, int fd) {
-            String tmp = get_cache_path(fileinfo.orig_path);
-            String write_path = tmp + "_wr_" + fd;
+        private int defer_write_copy(FileInfo fileinfo, long new_length) throws IOException {
+            int pending_version = write_back.next_version();
+            cache.decrease_reference_count(fileinfo.path);
+            // Not journaled, a pending version is only durable once uploaded
+            cache.get_local_file_info(fileinfo.write_path).pending = true;
+            if (cache.update_file_and_version(fileinfo, pending_version, (int)new_length) == -2) {
+                return Errors.ENOMEM;
+            }
+            String key = get_cache_path(fileinfo.orig_path);
+            WriteBack.Entry replaced = write_back.add(key, fileinfo.orig_path, key + "_rdonly_" + pending_version, pending_version, new_length);
+            if (replaced != null) {
+                // Never sent, this close supersedes it
+                release_pending(replaced);
+            }
+            return 0;
+        }
 
-            String cache_path = fileinfo.path;
+    }
+    
+    static class FileHandlingFactory implements FileHandlingMaking {
+        public FileHandling newclient() {
+            return new FileHandler();
+        }
+    }
 
-            // Only a to-write file has write_path stored in the fileinfo
-            fileinfo.write_path = write_path;
-            File file = new File(write_path);
-            if (cache.get_cache_remain_size() < fileinfo.file_size) {
 
-                boolean is_enough = cache.evict(fileinfo.file_size);
-                if (!is_enough) {
-                    // Errors.ENOMEM
-                    return -2;
+    /**
+    * @brief Make sure the version described by fileinfo is in the cache and pin it
+    * @brief Deals with 3 cases: 1. File not in cache 2. File in cache but not latest 3. File in cache and valid.
+    * @brief Callers hold the stripe lock of fileinfo.orig_path
+    * @param fileinfo fileinfo, prefilled with remote reply information
+    * @return 0 with the entry pinned, -1 if the fetch failed (Errors.ENOENT), -2 if it does not fit (Errors.ENOMEM)
+    */
+    private static int cache_version(FileInfo fileinfo) {
+        String path = fileinfo.orig_path;
+        String cache_path = fileinfo.path;
+        int remote_file_size = fileinfo.file_size;
+
+        // A prefetch still filling this version holds a pinned entry, it must be complete or gone before the pin
+        await_prefetch(cache_path);
+        // Pin first, an entry evicted by a concurrent open of another path is simply refetched
+        CachedFileInfo cached_fileinfo = cache.pin(cache_path);
+        
+        // version validation, check local and remote version diff
+        if (cached_fileinfo == null) {
+            // Get from remote server if local version does not match or local has no correct file
+            if (remote_file_size > cache_size) {
+                // Errors.ENOMEM;
+                return -2;
+            }
+            // Reserve space and insert the entry pinned, old versions are dropped in the same step
+            cached_fileinfo = new CachedFileInfo(fileinfo);
+            if (sparse_huge_files && remote_file_size > huge_file_size) {
+                // Huge file: open returns at once, blocks are fetched by read() and charged as they arrive
+                TransferSession session = transfer_engine.hold_version(path, fileinfo.version);
+                if (session != null) {
+                    return add_sparse_version(cached_fileinfo, session);
+                }
+                // Blocks of an unheld version could vanish between reads, fetch it whole instead
+                Metrics.increment("proxy.sparse_fallbacks");
+            }
+            if (!cache.add_pinned(cached_fileinfo)) {
+                // Errors.ENOMEM;
+                return -2;
+            }
+            // Fetch outside the cache monitor, only this path's stripe is held
+            if (fetch_version(path, fileinfo.version, cache_path, remote_file_size) != 0) {
+                // A partial copy must not be served as this version
+                cache.decrease_reference_count(cache_path);
+                cache.remove_file(cache_path);
+                // Errors.ENOENT;
+                return -1;
+            }
+            // Complete on disk, from now on it survives a Proxy restart
+            cache.commit(cached_fileinfo);
+        } else {
+            // Get from local cache
+            cache.claim_prefetched(cached_fileinfo);
+            cache.move_to_end(cached_fileinfo);
+        }
+        return 0;
+    }
+
+    /**
+    * @brief fetch a whole version into its cache file
+    * @brief for huge file, fetch and save locally using chunks, every file streams when the data channel is up
+    * @return 0 on success, -1 on failure
+    */
+    private static int fetch_version(String path, int version, String cache_path, int file_size) {
+        // A peer proxy holding the validated version spares the Server the transfer
+        if (peer_cache != null && peer_cache.fetch(path, version, new File(cache_path), file_size)) {
+            return 0;
+        }
+        if (file_size > huge_file_size || transfer_engine.has_data_channel()) {
+            int fetch_result = fetch_save_huge_file(path, version, cache_path, file_size);
+            if (fetch_result != 0) {
+                System.err.println("Proxy: Error in Fetch_save_huge_file");
+            }
+            return fetch_result;
+        }
+        // If the file is on server, just fetch it.
+        byte[] received_file = fetch_file(path, version, file_size);
+        if (received_file == null) {
+            return -1;
+        }
+        // Save file to cache_dir
+        save_file_locally(cache_path, received_file);
+        return 0;
+    }
+
+    /**
+    * @brief the open path follows: the client's last open, or for a client's first open the last open of any
+    * @brief client shortly before, so a job running one client per file still forms a sequence
+    * @param client_last last path the client opened, null if none
+    * @param path path opened now, noted as the latest open
+    * @return previous path, null if the open starts a sequence
+    */
+    private static synchronized String previous_open(String client_last, String path) {
+        long now = System.currentTimeMillis();
+        String previous = client_last;
+        if (previous == null && now - last_open_time <= prefetch_gap) {
+            previous = last_open_path;
+        }
+        last_open_path = path;
+        last_open_time = now;
+        return previous;
+    }
+
+    /**
+    * @brief prefetch the paths the access history predicts after path, off the open path
+    * @param path path just opened
+    */
+    private static void prefetch_after(String path) {
+        final List<String> claimed = new ArrayList<String>();
+        for (String next : predictor.predict(path)) {
+            // One prefetch per path at a time
+            if (prefetching.add(next)) {
+                claimed.add(next);
+            }
+        }
+        if (claimed.isEmpty()) {
+            return;
+        }
+        background.execute(() -> {
+            try {
+                // Every candidate is validated in one RPC, then fetched in order of likelihood
+                Map<String, Reply_FileInfo> replies = validate_batch(claimed);
+                for (String next : claimed) {
+                    prefetch(next, replies.get(next));
                 }
+            } finally {
+                prefetching.removeAll(claimed);
             }
+        });
+    }
 
+    /**
+    * @brief fetch the current version of path into the cache unless it is cached, too large or over the budgets
+    * @brief the entry is reserved under the path lock and filled outside it, opens of that version wait for the fill
+    * @param path predicted path
+    * @param reply_fileinfo validated file information of path, null if it could not be validated
+    */
+    private static void prefetch(String path, Reply_FileInfo reply_fileinfo) {
+        if (reply_fileinfo == null || !reply_fileinfo.is_existed || reply_fileinfo.is_dir || !reply_fileinfo.path_valid
+                || reply_fileinfo.file_size > prefetch_max_size) {
+            return;
+        }
+        int version = reply_fileinfo.version;
+        int file_size = (int)reply_fileinfo.file_size;
+        String cache_path = get_cache_path(path) + "_rdonly_" + version;
+        if (cache.contains_file(cache_path)) {
+            return;
+        }
+        if (!take_prefetch_bandwidth(file_size)) {
+            Metrics.increment("proxy.prefetch_throttled");
+            return;
+        }
+        CachedFileInfo cached_fileinfo = new CachedFileInfo(set_fileinfo_value(true, false, version, file_size, cache_path, path, null));
+        CountDownLatch fill = new CountDownLatch(1);
+        // Only the reservation takes the path lock, opens of other versions of path go ahead during the fetch
+        synchronized (get_path_lock(path)) {
+            if (!cache.add_prefetched(cached_fileinfo, prefetch_space)) {
+                return;
+            }
+            prefetch_fills.put(cache_path, fill);
+        }
+        try {
+            if (fetch_version(path, version, cache_path, file_size) != 0) {
+                cache.decrease_reference_count(cache_path);
+                cache.remove_file(cache_path);
+                return;
+            }
+            cache.commit(cached_fileinfo);
+            cache.decrease_reference_count(cache_path);
+        } finally {
+            prefetch_fills.remove(cache_path, fill);
+            fill.countDown();
+        }
+        Metrics.increment("proxy.prefetches");
+        Metrics.add("proxy.prefetch_bytes", file_size);
+    }
+
+    /**
+    * @brief wait until a prefetch filling cache_path has committed or removed its entry
+    * @brief the prefetch never takes the path lock after its reservation, so callers may hold it
+    * @param cache_path _rdonly_ path about to be pinned
+    */
+    private static void await_prefetch(String cache_path) {
+        CountDownLatch fill = prefetch_fills.get(cache_path);
+        if (fill == null) {
+            return;
+        }
+        Metrics.increment("proxy.prefetch_waits");
+        boolean interrupted = false;
+        while (true) {
             try {
-                Files.copy((new File(cache_path)).toPath(), (new File(write_path)).toPath());
-                cache.add_to_cacheline_write_ver(new CachedFileInfo(fileinfo));
+                fill.await();
+                break;
+            } catch (InterruptedException e) {
+                // Pinning a half filled file is never an option, keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+    * @brief spend prefetch bandwidth, the budget refills at prefetch_bandwidth bytes per second up to one second's worth
+    * @brief a file larger than the balance may overdraw it, later prefetches wait until it is repaid
+    * @return false if the budget is spent, the prefetch is skipped
+    */
+    private static synchronized boolean take_prefetch_bandwidth(long bytes) {
+        long now = System.nanoTime();
+        prefetch_tokens = Math.min(prefetch_bandwidth, prefetch_tokens + (now - prefetch_refilled) / 1e9 * prefetch_bandwidth);
+        prefetch_refilled = now;
+        if (prefetch_tokens <= 0) {
+            return false;
+        }
+        prefetch_tokens -= bytes;
+        return true;
+    }
+
+    /**
+    * @brief Open the channel shared by every fd of a pinned _rdonly_ entry on first use, mapping small whole files
+    * @brief Callers hold the stripe lock of the entry's orig_path and a pin, so it cannot be dropped meanwhile
+    * @param cached_fileinfo pinned _rdonly_ entry
+    * @return 0 on success, -1 if the cache file cannot be opened
+    */
+    private static int open_shared(CachedFileInfo cached_fileinfo) {
+        if (cached_fileinfo.channel != null) {
+            return 0;
+        }
+        if (cached_fileinfo.sparse != null) {
+            // Sparse versions already keep one channel for their block fetches
+            cached_fileinfo.channel = cached_fileinfo.sparse.get_channel();
+            return 0;
+        }
+        try {
+            FileChannel channel = FileChannel.open((new File(cached_fileinfo.path)).toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > 0 && size <= mmap_threshold) {
+                cached_fileinfo.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                Metrics.increment("proxy.mapped_files");
+            }
+            cached_fileinfo.channel = channel;
+            Metrics.increment("proxy.shared_channel_opens");
+        } catch (IOException e) {
+            System.err.println("Proxy: open_shared() cannot open " + cached_fileinfo.path);
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+    * @brief Insert a huge version as an empty sparse entry, pinned, and optionally start filling it
+    * @param cached_fileinfo new entry, file_size is reset to the charged (present) bytes
+    * @param session download session holding the version, owned by the sparse file and closed when it is dropped
+    * @return 0 with the entry pinned, -1 if the cache file cannot be created, -2 if the cache is full
+    */
+    private static int add_sparse_version(CachedFileInfo cached_fileinfo, TransferSession session) {
+        try {
+            cached_fileinfo.sparse = new SparseFile(cached_fileinfo.orig_path, cached_fileinfo.version, cached_fileinfo.path,
+                cached_fileinfo.file_size, chunk_size, transfer_engine, cache, session);
+        } catch (IOException e) {
+            System.err.println("Proxy: add_sparse_version() cannot create " + cached_fileinfo.path);
+            e.printStackTrace();
+            transfer_engine.close_session(session);
+            // Errors.ENOENT;
+            return -1;
+        }
+        cached_fileinfo.sparse.set_owner(cached_fileinfo);
+        cached_fileinfo.file_size = 0;
+        if (!cache.add_pinned(cached_fileinfo)) {
+            cached_fileinfo.sparse.close();
+            (new File(cached_fileinfo.path)).delete();
+            // Errors.ENOMEM;
+            return -2;
+        }
+        if (background_fill) {
+            fill_in_background(cached_fileinfo.path);
+        }
+        return 0;
+    }
+
+    /**
+    * @brief Fetch the remaining blocks of a sparse entry off the open path
+    * @param cache_path _rdonly_ path of the sparse entry
+    */
+    private static void fill_in_background(final String cache_path) {
+        background.execute(() -> {
+            CachedFileInfo cached_fileinfo = cache.pin(cache_path);
+            if (cached_fileinfo == null) {
+                return;
+            }
+            final SparseFile sparse = cached_fileinfo.sparse;
+            // Block by block on the transfer workers, so reads of this file interleave with the fill
+            if (sparse != null) {
+                transfer_engine.run_chunks(0, sparse.get_length(), offset -> sparse.ensure(offset, 1));
+            }
+            cache.decrease_reference_count(cache_path);
+        });
+    }
+
+
+    /**
+    * @brief Get one version of a file from server
+    * @param path remote file path on server
+    * @param version version to fetch, the fetch fails if the Server no longer has it
+    * @param file_size size of that version
+    * @return an array of file bytes, null on failure
+    */
+    private static byte[] fetch_file(String path, int version, int file_size) {
+        byte[] received_file = transfer_engine.fetch_file(path, version, file_size);
+        if (received_file == null) {
+            System.err.println("Proxy: fetch_file() version " + version + " of " + path + " is gone");
+        }
+        return received_file;
+    }
+
+
+    /**
+    * @brief create file on local cache directory
+    * @param cache_path path to store the file
+    * @param received_file received_file from server
+    */
+    private static void save_file_locally(String cache_path, byte[] received_file) {
+
+        RandomAccessFile tmp;
+        try {
+            tmp = new RandomAccessFile(cache_path, "rw");
+            tmp.write(received_file);
+            tmp.close();
+        } catch (IOException e) {
+            System.err.println("Proxy: save_file_locally exception");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    * @brief Get file from server with chunking, and save it locally
+    * @brief an integration of fetch_file and save_file_locally, for huge files or any file over the data channel
+    * @brief bytes go to a .partial file renamed into place once complete, an interrupted fetch of the version resumes from it
+    * @param path remote file path on server
+    * @param version version to fetch, the fetch fails if the Server no longer has it
+    * @param file_size size of the huge file, assume file size < 2 ^ 32 (within integer)
+    * @return 0 on success, -1 on failure
+    */
+    private static int fetch_save_huge_file(String path, int version, String cache_path, int file_size) {
+        File partial = new File(cache_path + Cache.partial_suffix);
+        File progress = new File(cache_path + Cache.progress_suffix);
+        // Only the version being fetched keeps a partial download
+        cache.track_partial(cache_path);
+        long resume_from = partial.exists() ? read_progress(progress, file_size) : 0;
+        if (resume_from > 0) {
+            System.err.println("Proxy: resuming fetch of " + path + " at " + resume_from);
+            Metrics.add("proxy.resumed_download_bytes", resume_from);
+        }
+        int fetch_result;
+        try (RandomAccessFile tmp = new RandomAccessFile(partial, "rw")) {
+            FileChannel dst = tmp.getChannel();
+            // Pipelined, chunks land at their offsets in whatever order they arrive
+            fetch_result = transfer_engine.download(path, version, dst, file_size, resume_from, committed_offset -> {
+                // The bytes reach the disk before the record that vouches for them
+                dst.force(false);
+                write_progress(progress, file_size, committed_offset);
+            });
+        } catch (IOException e) {
+            System.err.println("Proxy: fetch_save_huge_file() failed");
+            e.printStackTrace();
+            fetch_result = -1;
+        }
+        if (fetch_result == 0) {
+            try {
+                Files.move(partial.toPath(), Paths.get(cache_path), StandardCopyOption.REPLACE_EXISTING);
             } catch (IOException e) {
-                System.err.println("Proxy: create_write_copy() failed copy file");
+                System.err.println("Proxy: cannot move " + partial + " into place");
                 e.printStackTrace();
+                fetch_result = -1;
             }
-            return 0;
         }
+        if (fetch_result != 0 && read_progress(progress, file_size) > 0) {
+            // Kept for the next open of this version
+            return fetch_result;
+        }
+        cache.untrack_partial(cache_path);
+        partial.delete();
+        progress.delete();
+        return fetch_result;
+    }
 
+    /**
+    * @brief read how far an interrupted fetch got
+    * @param progress progress file of the partial download
+    * @param file_size size of the version being fetched
+    * @return committed offset, 0 if there is no usable record
+    */
+    private static long read_progress(File progress, long file_size) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(progress))) {
+            long recorded_size = in.readLong();
+            long committed_offset = in.readLong();
+            if (recorded_size != file_size || committed_offset < 0 || committed_offset > file_size) {
+                return 0;
+            }
+            return committed_offset;
+        } catch (IOException e) {
+            // Missing or torn record, the fetch starts over
+            return 0;
+        }
     }
-    
-    private static class FileHandlingFactory implements FileHandlingMaking {
-        public FileHandling newclient() {
-            return new FileHandler();
+
+    /**
+    * @brief record how far a fetch got, replaced atomically so a crash leaves the old or the new record
+    */
+    private static void write_progress(File progress, long file_size, long committed_offset) throws IOException {
+        File tmp = new File(progress.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(file_size);
+            out.writeLong(committed_offset);
         }
+        Files.move(tmp.toPath(), progress.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
 
@@ -669,6 +1203,314 @@ class Proxy {
     }
 
 
+    /**
+    * @brief Send a complete file to the Server, deduplicated when large enough, else pipelined or in one RPC
+    * @param orig_path original path of the file
+    * @param channel channel to read the file from, read positionally
+    * @param length file length
+    * @return new file version id, not positive on failure
+    */
+    private static int upload_whole(String orig_path, FileChannel channel, long length) throws IOException {
+        if (dedup_min_size > 0 && length >= dedup_min_size) {
+            int new_version = transfer_engine.upload_dedup(orig_path, channel, length);
+            if (new_version > 0) {
+                // Sent bytes are counted in proxy.dedup_upload_bytes
+                return new_version;
+            }
+        }
+        Metrics.add("proxy.upload_bytes", length);
+        if (length > huge_file_size || transfer_engine.has_data_channel()) {
+            // Pipelined, chunks are read positionally so the fd offset is untouched
+            return transfer_engine.upload(orig_path, channel, length);
+        }
+        byte[] sent_file = new byte[(int)length];
+        read_fully(channel, sent_file, 0);
+        return transfer_engine.send_file(orig_path, sent_file);
+    }
+
+    /**
+    * @brief Upload the file of a pending version, run by the write-back thread
+    * @param entry pending entry, its cache file stays pinned during the upload
+    * @return new file version id, not positive on failure
+    */
+    private static int upload_pending(WriteBack.Entry entry) {
+        try (RandomAccessFile raf = new RandomAccessFile(entry.cache_path, "r")) {
+            return upload_whole(entry.orig_path, raf.getChannel(), entry.length);
+        } catch (IOException e) {
+            System.err.println("Proxy: upload_pending() cannot read " + entry.cache_path);
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+    * @brief After an upload attempt, turn the pending version into the uploaded one so opens validate against the Server again
+    * @brief a replaced or unlinked entry is released, one still open by other fds or not uploaded is tried again later
+    * @param entry pending entry whose upload was attempted
+    */
+    private static void install_write_back(WriteBack.Entry entry) {
+        synchronized (get_path_lock(entry.orig_path)) {
+            if (!write_back.is_current(entry)) {
+                Metrics.increment("proxy.writeback_superseded");
+                release_pending(entry);
+                return;
+            }
+            if (entry.uploaded_version <= 0 || !cache.rekey(entry.cache_path, entry.uploaded_version)) {
+                write_back.reschedule(entry);
+                return;
+            }
+            write_back.remove(entry);
+            entry.released = true;
+            cache.decrease_reference_count(get_cache_path(entry.orig_path) + "_rdonly_" + entry.uploaded_version);
+            metadata_cache.invalidate(entry.orig_path);
+        }
+    }
+
+    /**
+    * @brief Give up the pin of a pending version that will never be installed, its file goes unless an fd still reads it
+    * @brief callers hold the stripe lock of entry.orig_path
+    * @param entry replaced or cancelled entry
+    */
+    private static void release_pending(WriteBack.Entry entry) {
+        if (entry.released) {
+            return;
+        }
+        entry.released = true;
+        cache.decrease_reference_count(entry.cache_path);
+        // Later pending versions sort above it and stay, older Server versions are stale anyway
+        cache.delete_old_versions(entry.orig_path, entry.version + 1);
+    }
+
+    /**
+    * @brief Get file information of a closed write copy not uploaded yet, else from a valid lease,
+    * @brief then per the path's freshness mode, else from the Server
+    * @param path original input file path
+    * @return file information, null if the Server cannot be reached
+    */
+    private static Reply_FileInfo get_file_info(String path) {
+        Reply_FileInfo reply_fileinfo = get_held_file_info(path);
+        if (reply_fileinfo != null) {
+            return reply_fileinfo;
+        }
+        FreshnessPolicy.Rule rule = freshness.get_rule(path);
+        if (rule.mode != FreshnessPolicy.Mode.CHECK) {
+            reply_fileinfo = metadata_cache.get_validated(path, rule.window);
+            if (is_servable(path, reply_fileinfo)) {
+                if (rule.mode == FreshnessPolicy.Mode.TTL) {
+                    Metrics.increment("proxy.validations_saved.ttl");
+                } else {
+                    Metrics.increment("proxy.validations_saved.swr");
+                    refresh_in_background(path);
+                }
+                return reply_fileinfo;
+            }
+        }
+        prefetch_dir(path);
+        return validate(path);
+    }
+
+    /**
+    * @brief File information known to be current without asking the Server: a closed write copy not uploaded yet,
+    * @brief else a valid lease
+    * @param path original input file path
+    * @return file information, null if the Server has to be asked
+    */
+    private static Reply_FileInfo get_held_file_info(String path) {
+        WriteBack.Entry entry = (write_back == null) ? null : write_back.lookup(get_cache_path(path));
+        if (entry != null) {
+            // Fds of this proxy see their own closes before the Server does
+            Reply_FileInfo pending_fileinfo = new Reply_FileInfo();
+            pending_fileinfo.is_existed = true;
+            pending_fileinfo.version = entry.version;
+            pending_fileinfo.file_size = entry.length;
+            pending_fileinfo.path_valid = true;
+            return pending_fileinfo;
+        }
+        Reply_FileInfo reply_fileinfo = metadata_cache.get_leased(path);
+        // A leased version is current until the Server breaks the lease, so it may be fetched as well
+        if (reply_fileinfo != null) {
+            Metrics.increment("proxy.validations_saved.lease");
+        }
+        return reply_fileinfo;
+    }
+
+    /**
+    * @brief On the first miss in a directory, lease all of its entries in one RPC off the open path
+    * @brief the open validates its own path, siblings opened later find their leases already in place
+    * @param path original input file path
+    */
+    private static void prefetch_dir(String path) {
+        int slash = path.lastIndexOf('/');
+        final String dir_path = (slash < 0) ? "" : path.substring(0, slash);
+        final long now = System.currentTimeMillis();
+        Long last_prefetch = dir_prefetch_map.get(dir_path);
+        // Entries of a recent listing are still leased, a miss there means the lease was broken
+        if (last_prefetch != null && now - last_prefetch < dir_prefetch_interval) {
+            return;
+        }
+        boolean claimed = (last_prefetch == null) ? dir_prefetch_map.putIfAbsent(dir_path, now) == null
+            : dir_prefetch_map.replace(dir_path, last_prefetch, now);
+        if (!claimed) {
+            // Another open of this directory is listing it
+            return;
+        }
+        background.execute(() -> {
+            long request_epoch = metadata_cache.get_epoch();
+            Map<String, Reply_FileInfo> replies;
+            try {
+                replies = srv.get_dir_infos(dir_path, callback);
+            } catch (RemoteException e) {
+                System.err.println("Proxy: prefetch_dir() remote exception");
+                e.printStackTrace();
+                return;
+            }
+            Metrics.increment("proxy.dir_prefetches");
+            Metrics.add("proxy.dir_prefetch_entries", replies.size());
+            for (Map.Entry<String, Reply_FileInfo> reply : replies.entrySet()) {
+                metadata_cache.put(reply.getKey(), reply.getValue(), now, request_epoch);
+            }
+        });
+    }
+
+    /**
+    * @brief Whether locally held file information can answer an open without the Server
+    * @param path original input file path
+    * @param reply_fileinfo locally held information, may be null
+    * @return true if no fetch is needed, content is never fetched for an unvalidated version
+    */
+    private static boolean is_servable(String path, Reply_FileInfo reply_fileinfo) {
+        if (reply_fileinfo == null) {
+            return false;
+        }
+        return !reply_fileinfo.is_existed || reply_fileinfo.is_dir
+            || cache.contains_file(get_cache_path(path) + "_rdonly_" + reply_fileinfo.version);
+    }
+
+    /**
+    * @brief Validate path with the Server, renewing its lease and validation time
+    * @param path original input file path
+    * @return file information, null if the Server cannot be reached
+    */
+    private static Reply_FileInfo validate(String path) {
+        Reply_FileInfo reply_fileinfo;
+        Metrics.increment("proxy.validation_rpcs");
+        long request_epoch = metadata_cache.get_epoch();
+        long request_start = System.currentTimeMillis();
+        try {
+            reply_fileinfo = srv.get_file_info(path, callback);
+        } catch (RemoteException e) {
+            System.err.println("Exception on getting remote file info");
+            e.printStackTrace();
+            return null;
+        }
+        metadata_cache.put(path, reply_fileinfo, request_start, request_epoch);
+        return reply_fileinfo;
+    }
+
+
+    /**
+    * @brief validate() for many paths in one RPC, paths with held file information are answered locally
+    * @param paths original input file paths
+    * @return file information keyed by path, paths missing if the Server cannot be reached
+    */
+    private static Map<String, Reply_FileInfo> validate_batch(List<String> paths) {
+        Map<String, Reply_FileInfo> replies = new HashMap<String, Reply_FileInfo>();
+        List<String> unheld = new ArrayList<String>();
+        for (String path : paths) {
+            Reply_FileInfo reply_fileinfo = get_held_file_info(path);
+            if (reply_fileinfo != null) {
+                replies.put(path, reply_fileinfo);
+            } else {
+                unheld.add(path);
+            }
+        }
+        if (unheld.isEmpty()) {
+            return replies;
+        }
+        Metrics.increment("proxy.validation_rpcs");
+        Metrics.add("proxy.batched_validations", unheld.size());
+        long request_epoch = metadata_cache.get_epoch();
+        long request_start = System.currentTimeMillis();
+        Map<String, Reply_FileInfo> fetched;
+        try {
+            fetched = srv.get_file_infos(unheld, callback);
+        } catch (RemoteException e) {
+            System.err.println("Proxy: validate_batch() remote exception");
+            e.printStackTrace();
+            return replies;
+        }
+        for (Map.Entry<String, Reply_FileInfo> reply : fetched.entrySet()) {
+            metadata_cache.put(reply.getKey(), reply.getValue(), request_start, request_epoch);
+            replies.put(reply.getKey(), reply.getValue());
+        }
+        return replies;
+    }
+
+    /**
+    * @brief Revalidate path off the open path and pull a newer version into the cache
+    * @param path original input file path
+    */
+    private static void refresh_in_background(final String path) {
+        final String key = get_cache_path(path);
+        if (!refreshing.add(key)) {
+            return;
+        }
+        background.execute(() -> {
+            try {
+                Metrics.increment("proxy.swr_refreshes");
+                Reply_FileInfo reply_fileinfo = validate(path);
+                if (reply_fileinfo == null || !reply_fileinfo.path_valid || !reply_fileinfo.is_existed
+                    || reply_fileinfo.is_dir || reply_fileinfo.file_size > cache_size) {
+                    return;
+                }
+                String cache_path = key + "_rdonly_" + reply_fileinfo.version;
+                FileInfo fileinfo = set_fileinfo_value(true, false, reply_fileinfo.version, (int)reply_fileinfo.file_size, cache_path, path, null);
+                synchronized (get_path_lock(path)) {
+                    if (cache_version(fileinfo) == 0) {
+                        cache.decrease_reference_count(cache_path);
+                    }
+                }
+            } finally {
+                refreshing.remove(key);
+            }
+        });
+    }
+
+
+    /**
+    * @brief Positional read that fills buf unless end of file is reached first
+    * @param channel channel to read from, its own position is left untouched
+    * @param buf buffer to fill
+    * @param offset file offset to start reading at
+    * @return number of bytes read, -1 if offset is at or past end of file
+    */
+    private static int read_fully(FileChannel channel, byte[] buf, long offset) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, offset + dst.position());
+            if (n == -1) {
+                break;
+            }
+        }
+        if (dst.position() == 0 && buf.length > 0) {
+            return -1;
+        }
+        return dst.position();
+    }
+
+
+    /**
+    * @brief Get the striped lock guarding cache operations of a path
+    * @param path original input file path
+    * @return lock object shared by all paths hashed to the same stripe
+    */
+    private static Object get_path_lock(String path) {
+        // Hash the canonical cache path, the same key the cache entries of this path use
+        int hash = get_cache_path(path).hashCode();
+        return path_locks[(hash & 0x7fffffff) % path_lock_count];
+    }
+
+
     /**
     * @brief Set file information in the map
     * @param ... A series of data defined in FileInfo.java
@@ -687,14 +1529,46 @@ class Proxy {
     }
 
     public static void main(String[] args) throws IOException {
+        init(args);
+        (new RPCreceiver(new FileHandlingFactory())).run();
+    }
 
+    /**
+    * @brief set up the cache and connect to the Server, everything main() does before serving clients
+    * @param args serverip, port, cache directory, cache size
+    */
+    static void init(String[] args) throws IOException {
         String serverip = args[0];
         int port = Integer.parseInt(args[1]);
         cache_dir = args[2];
         cache_size = Integer.parseInt(args[3]);
 
         server_name = "//" + serverip + ":" + port + "/peizhaolServer";
-        cache = new Cache(cache_dir, cache_size);
+        cache = new Cache(cache_dir, cache_size, EvictionPolicy.create(System.getProperty("proxy.eviction", "lru"), cache_size));
+        if (Boolean.parseBoolean(System.getProperty("proxy.persistent_cache", "true"))) {
+            cache.restore(new CacheJournal(cache_dir));
+        }
+        metadata_cache = new MetadataCache(cache_dir);
+        freshness = new FreshnessPolicy(System.getProperty("proxy.freshness", ""));
+        sparse_huge_files = Boolean.parseBoolean(System.getProperty("proxy.sparse_huge_files", "true"));
+        background_fill = Boolean.parseBoolean(System.getProperty("proxy.background_fill", "false"));
+        mmap_threshold = Long.getLong("proxy.mmap_threshold", 4194304);
+        dedup_min_size = Long.getLong("proxy.dedup_min_size", 1048576);
+        if (Boolean.parseBoolean(System.getProperty("proxy.prefetch", "true"))) {
+            predictor = new AccessPredictor(Double.parseDouble(System.getProperty("proxy.prefetch_confidence", "0.3")),
+                Integer.getInteger("proxy.prefetch_depth", 2));
+            prefetch_bandwidth = Long.getLong("proxy.prefetch_bandwidth", 10485760);
+            prefetch_space = Long.getLong("proxy.prefetch_space", cache_size / 8);
+            prefetch_max_size = Long.getLong("proxy.prefetch_max_size", huge_file_size);
+            prefetch_gap = Long.getLong("proxy.prefetch_gap_ms", 5000);
+            prefetch_tokens = prefetch_bandwidth;
+        }
+        if (Boolean.parseBoolean(System.getProperty("proxy.admission", "true"))) {
+            cache.set_admission(new AdmissionController(Long.getLong("proxy.admit_max_size", cache_size / 2),
+                Long.getLong("proxy.admit_probation_size", cache_size / 32), Long.getLong("proxy.admit_window_ms", 600000)));
+        }
+        Metrics.start_reporter("Proxy", Long.getLong("proxy.metrics_interval", 0));
+        callback = new CallbackReceiver(metadata_cache);
         try {
             // Look up reference in registry
             srv = (RemoteOps) Naming.lookup(server_name);
@@ -702,7 +1576,22 @@ class Proxy {
             System.err.println("Exception in Proxy main");
             e.printStackTrace();
         }
-
-        (new RPCreceiver(new FileHandlingFactory())).run();
+        boolean data_channel = Boolean.parseBoolean(System.getProperty("proxy.data_channel", "true"));
+        transfer_engine = new TransferEngine(srv, chunk_size, Integer.getInteger("proxy.transfer_parallelism", 4), data_channel ? serverip : null);
+        transfer_engine.negotiate(System.getProperty("proxy.compression", Codec.name));
+        if (Boolean.parseBoolean(System.getProperty("proxy.peer_cache", "false"))) {
+            peer_cache = new PeerCache(cache, srv, Long.getLong("proxy.peer_min_size", 1048576), chunk_size, background);
+            cache.set_listener(peer_cache);
+        }
+        if (Boolean.parseBoolean(System.getProperty("proxy.write_back", "false"))) {
+            long writeback_delay = Long.getLong("proxy.writeback_delay_ms", 1000);
+            write_back = new WriteBack(writeback_delay, Long.getLong("proxy.writeback_max_delay_ms", writeback_delay * 10),
+                Proxy::upload_pending, Proxy::install_write_back);
+            final long drain_timeout = Long.getLong("proxy.writeback_drain_ms", 60000);
+            // Closed files reach the Server before the proxy exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                write_back.drain(drain_timeout);
+            }));
+        }
     }
 }
\ No newline at end of file
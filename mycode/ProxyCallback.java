@@ -0,0 +1,11 @@
+import java.rmi.*;
+
+
+/**
+* @brief callback interface exported by each Proxy, the Server uses it to break leases
+*/
+public interface ProxyCallback extends Remote {
+
+    public void invalidate(String path) throws RemoteException;
+
+}
@@ -1,10 +1,17 @@
 import java.rmi.*;
+import java.util.*;
 
 
 public interface RemoteOps extends Remote {
 
     public Reply_FileInfo get_file_info(String path) throws RemoteException;
 
+    public Reply_FileInfo get_file_info(String path, ProxyCallback callback) throws RemoteException;
+
+    public Map<String, Reply_FileInfo> get_file_infos(List<String> paths, ProxyCallback callback) throws RemoteException;
+
+    public Map<String, Reply_FileInfo> get_dir_infos(String dir_path, ProxyCallback callback) throws RemoteException;
+
     public byte[] get_file(String path) throws RemoteException;
 
     public int create_file(String path) throws RemoteException;
@@ -15,7 +22,45 @@ public interface RemoteOps extends Remote {
 
     public byte[] get_file(String path, long offset) throws RemoteException;
 
-    public int upload_huge_file(String path, byte[] sent_file, long offset, boolean finished) throws RemoteException;
+    public byte[] get_file(String path, long offset, int version) throws RemoteException;
+
+    public int apply_extents(String path, int base_version, List<Extent> extents, long new_length) throws RemoteException;
+
+    public TransferToken open_download(String path, long offset, long length) throws RemoteException;
+
+    public TransferToken open_download(String path, long offset, long length, int version) throws RemoteException;
+
+    public TransferToken open_upload(String path, long length) throws RemoteException;
+
+    public String negotiate_codec(List<String> codecs) throws RemoteException;
+
+    public PackedChunk get_file_packed(String path, long offset, int version) throws RemoteException;
+
+    public int upload_file_packed(String path, PackedChunk sent_file) throws RemoteException;
+
+    public List<String> missing_blocks(List<String> hashes) throws RemoteException;
+
+    public int put_blocks(List<byte[]> blocks) throws RemoteException;
+
+    public int commit_manifest(String path, Manifest manifest) throws RemoteException;
+
+    public TransferSession open_upload_session(String path, long length) throws RemoteException;
+
+    public TransferSession open_download_session(String path, int version) throws RemoteException;
+
+    public TransferSession get_session(long id) throws RemoteException;
+
+    public int upload_session_chunk(long id, long offset, PackedChunk chunk) throws RemoteException;
+
+    public int finish_upload_session(long id) throws RemoteException;
+
+    public int close_session(long id) throws RemoteException;
+
+    public int advertise_peer(String path, int version, PeerOps peer) throws RemoteException;
+
+    public int withdraw_peer(String path, int version, PeerOps peer) throws RemoteException;
+
+    public List<PeerOps> find_peers(String path, int version, PeerOps requester) throws RemoteException;
 
 
 }
\ No newline at end of file
@@ -7,6 +7,10 @@ public class Reply_FileInfo implements Serializable{
     public int version;
     public long file_size;
     public boolean path_valid;
+    /**
+     * callback lease granted with this reply in ms, 0 if no lease
+     */
+    public long lease_duration;
     public Reply_FileInfo() {
 
     }
@@ -7,15 +7,99 @@ import java.rmi.*;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.concurrent.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
 public class Server extends UnicastRemoteObject implements RemoteOps{
 
 
     private static Map<String, Integer> path_version_map = new ConcurrentHashMap<String, Integer>();
     private static Map<String, Object> path_lock_map = new ConcurrentHashMap<String, Object>();
+    /**
+     * callback lease holders of each remote path, broken when its version changes or it is deleted
+     */
+    private static Map<String, Map<ProxyCallback, Lease>> path_lease_map = new ConcurrentHashMap<String, Map<ProxyCallback, Lease>>();
     private static String rootdir;
+    /**
+     * bulk data channel, null if disabled and every byte goes through RMI
+     */
+    private static DataServer data_server;
+    /**
+     * write-ahead log of version changes, null if versions live only in memory
+     */
+    private static VersionLog version_log;
+    /**
+     * chunks of recent versions of large files, null if dedup uploads are off
+     */
+    private static BlockStore block_store;
+    /**
+     * chunks master copies after uploads that did not come as a manifest
+     */
+    private static ExecutorService ingest_worker;
+    /**
+     * smallest file kept in the block store
+     */
+    private static long dedup_min_size = 1048576;
+    /**
+     * recently read file contents, null if disabled
+     */
+    private static HotFileCache hot_cache;
+    /**
+     * open channels reused by the chunk requests of huge file transfers
+     */
+    private static FileChannelPool channel_pool = new FileChannelPool(Integer.getInteger("server.channel_pool_size", 256),
+        Long.getLong("server.channel_idle_ms", 30000));
+    /**
+     * codecs accepted for packed transfers, empty if compression is off
+     */
+    private static List<String> codecs = new ArrayList<String>();
     private static final int chunk_size = 204800;
     private static final int huge_file_size = 10000000;
+    /**
+     * callback lease length in ms, bounds staleness if an invalidation cannot be delivered
+     */
+    private static final long lease_duration = 30000;
+    /**
+     * ms a write waits for the invalidations it sends, a proxy that has not answered by then loses all its leases
+     */
+    private static final long invalidation_timeout = 2000;
+    /**
+     * sends lease invalidations, a slow or dead proxy only holds up a pool thread, not the write that broke its lease
+     */
+    private static ExecutorService callback_pool = Executors.newFixedThreadPool(Integer.getInteger("server.callback_threads", 16), runnable -> {
+        Thread thread = new Thread(runnable, "lease-callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * most directory entries returned by one get_dir_infos call
+     */
+    private static final int dir_infos_limit = 256;
+    /**
+     * a transfer session without a chunk for this long is abandoned, an upload's staged file is deleted
+     */
+    private static final long session_timeout = 600000;
+    /**
+     * uploads are written here and renamed into place, kept beside rootdir on the same file system
+     */
+    private static File staging_dir;
+    /**
+     * resumable transfers of huge files, dropped after session_timeout without a chunk
+     */
+    private static TransferSessions sessions = new TransferSessions(session_timeout, chunk_size);
+    /**
+     * proxies holding complete copies of current versions, they serve them to other proxies
+     */
+    private static PeerDirectory peer_directory = new PeerDirectory();
+
+    /**
+     * @brief a lease held by one proxy on one path
+     */
+    private static class Lease {
+        String path;
+        long expiry;
+    }
 
     public Server() throws RemoteException {
         super();
@@ -33,7 +117,9 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
         File file = new File(remote_path);
         try {
             file.createNewFile();
-            path_version_map.put(remote_path, 1);
+            // A deleted path keeps its bumped version so the new file never reuses an old one
+            path_version_map.putIfAbsent(remote_path, 1);
+            break_leases(remote_path);
 
         } catch (IOException e) {
             System.err.println("Server: create_file() fail");
@@ -48,16 +134,13 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
      * @brief delete files on server
      * @param path String path to upload
      * @param sent_file file to be uploaded
-     * @return the latest version of master copy
+     * @return 0 on success, -1 if the file is missing, -2 if it cannot be deleted, -4 if the version log failed
      */
     public int delete_file(String path) throws RemoteException {
         String remote_path = get_remote_path(path);
         System.err.println("Server: delete_file() " + remote_path);
-        if (!path_lock_map.containsKey(remote_path)) {
-            path_lock_map.put(remote_path, new Object());
-        }
-        
-        synchronized (path_lock_map.get(remote_path)) {
+        long ticket;
+        synchronized (get_path_lock(remote_path)) {
             File file = new File(remote_path);
             if (!file.exists()) {
                 // Errors.ENOENT;
@@ -68,10 +151,9 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
                 if (!is_deleted) {
                     System.err.println("Server: delete_file() failed, undeleted" + is_deleted);
                 }
-                Object rmresult = path_version_map.remove(remote_path);
-                if (rmresult == null) {
-                    System.err.println("Server: delete_file() failed, unremoved" + rmresult);
-                }
+                // Keep a bumped version as a tombstone, a recreated file must not match cached copies of this one
+                int version = next_version(remote_path);
+                ticket = log_version(remote_path, version);
             } catch (SecurityException e) {
                 System.err.println("Server: delete_file() Security Exception");
                 e.printStackTrace();
@@ -79,7 +161,15 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
                 return -2;
             }
         }
-
+        boolean durable = await_version(ticket);
+        break_leases(remote_path);
+        if (block_store != null) {
+            block_store.forget(remote_path);
+        }
+        if (!durable) {
+            // Applied, but the version change may not survive a restart
+            return -4;
+        }
         return 0;
     }
 
@@ -88,75 +178,536 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
      * @brief upload file from Proxy cache to servers
      * @param path String path to upload
      * @param sent_file file to be uploaded
-     * @return the latest version of master copy
+     * @return the latest version of master copy, -4 if the version log failed
      */
-    public synchronized int upload_file(String path, byte[] uploaded_file) throws RemoteException {
+    public int upload_file(String path, byte[] uploaded_file) throws RemoteException {
         String remote_path = get_remote_path(path);
         System.err.print(remote_path + " Server upload_file(), ");
-        synchronized (path_lock_map.get(remote_path)) {
-            File file = new File(remote_path);
+        int version;
+        long ticket;
+        // Written outside the path lock, uploads of different files and readers of the old version run in parallel
+        File staged;
+        try {
+            staged = stage_file();
+            try (FileOutputStream out = new FileOutputStream(staged)) {
+                out.write(uploaded_file);
+            }
+        } catch (IOException e) {
+            System.err.println("Server upload_file() fail");
+            e.printStackTrace();
+            return -1;
+        }
+        synchronized (get_path_lock(remote_path)) {
+            if (install(staged, remote_path) != 0) {
+                return -1;
+            }
+            // Update version map
+            version = next_version(remote_path);
+            ticket = log_version(remote_path, version);
+            System.err.println("version: " + version);
+        }
+        boolean durable = await_version(ticket);
+        break_leases(remote_path);
+        schedule_ingest(remote_path, version);
+        if (!durable) {
+            // Applied, but the version change may not survive a restart
+            return -4;
+        }
+        return version;
+
+    }
+
 
-            RandomAccessFile raf;
+    /**
+     * @brief apply modified byte ranges to a private copy of the master copy, then rename it into place and bump the version
+     * @brief the copy is made without the path lock, so opens, reads and other uploads of the path are not held up by it
+     * @param path String path to update
+     * @param base_version version the proxy's write copy started from
+     * @param extents modified byte ranges
+     * @param new_length file length after the write
+     * @return the latest version of master copy, -1 if the file is missing, -3 if base_version is stale, -4 if the version log failed
+     */
+    public int apply_extents(String path, int base_version, List<Extent> extents, long new_length) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        System.err.print(remote_path + " Server apply_extents(), ");
+        FileChannel base;
+        synchronized (get_path_lock(remote_path)) {
+            if (!(new File(remote_path)).exists()) {
+                // Errors.ENOENT
+                System.err.println("missing");
+                return -1;
+            }
+            if (!is_base_version(remote_path, base_version)) {
+                // Someone else wrote first, the extents do not apply to the current master copy
+                System.err.println("stale base version " + base_version);
+                return -3;
+            }
             try {
-                raf = new RandomAccessFile(file, "rw");
-                raf.write(uploaded_file);
-                raf.close();
-            } catch (Exception e) {
-                System.err.println("Server upload_file() fail");
-                e.printStackTrace();
+                // Opened under the lock, it keeps reading base_version even if an install replaces the file meanwhile
+                base = FileChannel.open(Paths.get(remote_path), StandardOpenOption.READ);
+            } catch (IOException e) {
+                // Errors.ENOENT
+                System.err.println("missing");
+                return -1;
             }
-            // Update version map
-            if (path_version_map.containsKey(remote_path)) {
-                path_version_map.put(remote_path, path_version_map.get(remote_path) + 1);
-            } else {
-                System.err.println("EMPTY VER SHOULD NOT HAPPEN ON UPLOADED FILE!");
-                path_version_map.put(remote_path, 1);
+        }
+        // Patch a private copy and rename it into place, readers see the old or the new version, never a mix
+        File staged;
+        try {
+            staged = stage_file();
+        } catch (IOException e) {
+            System.err.println("Server apply_extents() cannot stage");
+            e.printStackTrace();
+            close_quietly(base);
+            return -1;
+        }
+        try (FileChannel source = base; FileChannel target = FileChannel.open(staged.toPath(), StandardOpenOption.WRITE)) {
+            // Copied in the kernel where the platform allows it, bytes past new_length are cut anyway
+            long length = Math.min(source.size(), new_length);
+            for (long copied = 0; copied < length; ) {
+                copied += source.transferTo(copied, length - copied, target);
+            }
+            Metrics.increment("server.extents_copied");
+            target.truncate(new_length);
+            if (target.size() < new_length) {
+                target.write(ByteBuffer.allocate(1), new_length - 1);
+            }
+            for (Extent extent : extents) {
+                ByteBuffer data = ByteBuffer.wrap(extent.data);
+                while (data.hasRemaining()) {
+                    target.write(data, extent.offset + data.position());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Server apply_extents() fail");
+            e.printStackTrace();
+            staged.delete();
+            return -1;
+        }
+        int version;
+        long ticket;
+        synchronized (get_path_lock(remote_path)) {
+            if (!is_base_version(remote_path, base_version)) {
+                // Someone else wrote while the copy was made, the extents do not apply to the new master copy
+                System.err.println("base version " + base_version + " replaced during the copy");
+                staged.delete();
+                return -3;
+            }
+            if (install(staged, remote_path) != 0) {
+                return -1;
             }
-            int version = path_version_map.get(remote_path);
+            version = next_version(remote_path);
+            ticket = log_version(remote_path, version);
             System.err.println("version: " + version);
-            return version;
         }
+        boolean durable = await_version(ticket);
+        break_leases(remote_path);
+        schedule_ingest(remote_path, version);
+        if (!durable) {
+            // Applied, but the version change may not survive a restart
+            return -4;
+        }
+        return version;
+    }
 
+    /**
+     * @brief caller holds the path lock
+     * @return true if remote_path is at exactly base_version, extents written against it still apply
+     */
+    private static boolean is_base_version(String remote_path, int base_version) {
+        Integer current_version = path_version_map.get(remote_path);
+        return current_version != null && current_version == base_version;
     }
 
+    /**
+     * @brief find which chunks of a new version the block store lacks
+     * @param hashes chunk hashes of the new version
+     * @return hashes to send with put_blocks(), null if the block store is off
+     */
+    public List<String> missing_blocks(List<String> hashes) throws RemoteException {
+        if (block_store == null) {
+            return null;
+        }
+        return block_store.missing(hashes);
+    }
 
     /**
-     * @brief upload file from Proxy cache to servers
+     * @brief add chunks to the block store ahead of commit_manifest()
+     * @param blocks chunk bytes, addressed by their hash
+     * @return 0 on success, -1 if a chunk cannot be stored
+     */
+    public int put_blocks(List<byte[]> blocks) throws RemoteException {
+        if (block_store == null) {
+            return -1;
+        }
+        for (byte[] block : blocks) {
+            if (block_store.put(block) != 0) {
+                return -1;
+            }
+            Metrics.increment("server.dedup_blocks_received");
+            Metrics.add("server.dedup_bytes_received", block.length);
+        }
+        return 0;
+    }
+
+    /**
+     * @brief replace the master copy with the file a manifest describes, built from stored chunks
+     * @param path String path to update
+     * @param manifest chunks of the new version, all sent or reported present
+     * @return the latest version of master copy, -1 if a chunk is missing or the file cannot be written, -4 if the version log failed
+     */
+    public int commit_manifest(String path, Manifest manifest) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        System.err.print(remote_path + " Server commit_manifest(), ");
+        if (block_store == null || !block_store.pin(manifest)) {
+            System.err.println("chunks missing");
+            // Errors.ENOENT
+            return -1;
+        }
+        int version;
+        long ticket;
+        File staged;
+        try {
+            staged = stage_file();
+            try (FileChannel file = FileChannel.open(staged.toPath(), StandardOpenOption.WRITE)) {
+                if (block_store.assemble(manifest, file) != 0) {
+                    staged.delete();
+                    return -1;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Server commit_manifest() fail");
+            e.printStackTrace();
+            return -1;
+        }
+        synchronized (get_path_lock(remote_path)) {
+            if (install(staged, remote_path) != 0) {
+                return -1;
+            }
+            version = next_version(remote_path);
+            ticket = log_version(remote_path, version);
+            block_store.record(remote_path, version, manifest);
+            System.err.println("version: " + version);
+        }
+        Metrics.add("server.dedup_logical_bytes_received", manifest.length);
+        boolean durable = await_version(ticket);
+        break_leases(remote_path);
+        if (!durable) {
+            // Applied, but the version change may not survive a restart
+            return -4;
+        }
+        return version;
+    }
+
+    /**
+     * @brief grant a download of a byte range over the data channel
+     * @param path String path of the file
+     * @param offset first byte to send
+     * @param length bytes wanted, clamped to the file length
+     * @return token to present on the data channel, null if the channel is off or the file is missing
+     */
+    public TransferToken open_download(String path, long offset, long length) throws RemoteException {
+        return open_download(path, offset, length, -1);
+    }
+
+    /**
+     * @brief grant a download of a byte range of one version over the data channel
+     * @param path String path of the file
+     * @param offset first byte to send
+     * @param length bytes wanted, clamped to the file length
+     * @param version version to read, -1 for the current one
+     * @return token to present on the data channel, null if the channel is off, the file is missing or the version is gone
+     */
+    public TransferToken open_download(String path, long offset, long length, int version) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        if (data_server == null || !check_server_path(path, remote_path) || !(new File(remote_path)).isFile()) {
+            return null;
+        }
+        FileChannelPool.Handle handle = open_version(remote_path, version);
+        if (handle == null) {
+            return null;
+        }
+        try {
+            long available = Math.max(0, handle.channel.size() - offset);
+            return data_server.grant(remote_path, handle, offset, Math.min(length, available), false);
+        } catch (IOException e) {
+            handle.close();
+            return null;
+        }
+    }
+
+    /**
+     * @brief grant a whole file upload over the data channel, the new version is sent back on the connection
      * @param path String path to upload
-     * @param sent_file file to be uploaded
-     * @return the latest version of master copy
+     * @param length new file length
+     * @return token to present on the data channel, null if the channel is off
      */
-    public synchronized int upload_huge_file(String path, byte[] uploaded_file, long offset, boolean finished) throws RemoteException {
+    public TransferToken open_upload(String path, long length) throws RemoteException {
         String remote_path = get_remote_path(path);
-        synchronized (path_lock_map.get(remote_path)) {
-            File file = new File(remote_path);
+        if (data_server == null || !check_server_path(path, remote_path)) {
+            return null;
+        }
+        return data_server.grant(remote_path, null, 0, length, true);
+    }
 
-            RandomAccessFile raf;
-            try {
-                raf = new RandomAccessFile(file, "rw");
-                raf.seek(offset);
-                raf.write(uploaded_file);
-                raf.close();
-            } catch (Exception e) {
-                System.err.println("Server upload_file() fail");
-                e.printStackTrace();
+    /**
+     * @brief agree on a codec for packed transfers
+     * @param offered codec names the proxy supports, in order of preference
+     * @return chosen codec name, null if none is shared and the proxy must use raw transfers
+     */
+    public String negotiate_codec(List<String> offered) throws RemoteException {
+        String codec = Codec.choose(offered, codecs);
+        System.err.println("Server negotiate_codec(): " + codec);
+        return codec;
+    }
+
+    /**
+     * @brief get_file(path, offset, version), compressed when it pays off
+     * @return packed chunk, null if the version is gone
+     */
+    public PackedChunk get_file_packed(String path, long offset, int version) throws RemoteException {
+        byte[] chunk = get_file(path, offset, version);
+        return (chunk == null) ? null : Codec.pack(chunk);
+    }
+
+    /**
+     * @brief upload_file(path, bytes) with a packed file
+     * @return the latest version of master copy, -1 if the chunk is corrupt
+     */
+    public int upload_file_packed(String path, PackedChunk sent_file) throws RemoteException {
+        byte[] raw = Codec.unpack(sent_file);
+        if (raw == null) {
+            return -1;
+        }
+        return upload_file(path, raw);
+    }
+
+    /**
+     * @brief start a resumable upload, chunks are staged until finish_upload_session() installs them
+     * @param path String path to upload
+     * @param length new file length
+     * @return session to send chunks to, null if the path is invalid or no file can be staged
+     */
+    public TransferSession open_upload_session(String path, long length) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        System.err.println(remote_path + " Server open_upload_session()");
+        if (!check_server_path(path, remote_path) || length < 0) {
+            return null;
+        }
+        try {
+            Integer version = path_version_map.get(remote_path);
+            TransferSessions.Session session = sessions.open_upload(remote_path, length, (version == null) ? 0 : version, stage_file());
+            return sessions.describe(session);
+        } catch (IOException e) {
+            System.err.println("Server: cannot stage upload of " + remote_path);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @brief start a resumable download, the version read stays available until the session is closed or idles out
+     * @param path String path to download
+     * @param version version to read, -1 for the current one
+     * @return session with the version and length to fetch, null if the file is missing or the version is gone
+     */
+    public TransferSession open_download_session(String path, int version) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        if (!check_server_path(path, remote_path) || !(new File(remote_path)).isFile()) {
+            return null;
+        }
+        FileChannelPool.Handle handle = open_version(remote_path, version);
+        if (handle == null) {
+            return null;
+        }
+        try {
+            return sessions.describe(sessions.open_download(remote_path, handle));
+        } catch (IOException e) {
+            handle.close();
+            return null;
+        }
+    }
+
+    /**
+     * @brief look up a session after a broken transfer
+     * @param id session id
+     * @return session with the offset to resume from, null if it expired or never existed
+     */
+    public TransferSession get_session(long id) throws RemoteException {
+        TransferSessions.Session session = sessions.get(id);
+        return (session == null) ? null : sessions.describe(session);
+    }
+
+    /**
+     * @brief write one chunk of a resumable upload, chunks may arrive in any order and more than once
+     * @param id session id
+     * @param offset chunk offset, a multiple of the chunk size
+     * @param chunk chunk bytes, packed if a codec was negotiated
+     * @return 0 on success, -1 if the session is gone or the chunk is corrupt
+     */
+    public int upload_session_chunk(long id, long offset, PackedChunk chunk) throws RemoteException {
+        TransferSessions.Session session = sessions.get(id);
+        byte[] raw = Codec.unpack(chunk);
+        if (session == null || !session.upload || raw == null || offset < 0 || offset + raw.length > session.length) {
+            return -1;
+        }
+        try {
+            ByteBuffer src = ByteBuffer.wrap(raw);
+            while (src.hasRemaining()) {
+                session.channel.write(src, offset + src.position());
             }
-            if (finished) {
-                // Update version map
-                if (path_version_map.containsKey(remote_path)) {
-                    path_version_map.put(remote_path, path_version_map.get(remote_path) + 1);
-                } else {
-                    System.err.println("EMPTY VER SHOULD NOT HAPPEN ON UPLOADED FILE!");
-                    path_version_map.put(remote_path, 1);
+        } catch (IOException e) {
+            System.err.println("Server upload_session_chunk() fail");
+            e.printStackTrace();
+            return -1;
+        }
+        sessions.record_chunk(session, offset, raw.length);
+        return 0;
+    }
+
+    /**
+     * @brief replace the master copy with a completely received upload session and end the session
+     * @param id session id
+     * @return the latest version of master copy, -1 if chunks are missing (the session is kept) or the session is gone, -4 if the version log failed
+     */
+    public int finish_upload_session(long id) throws RemoteException {
+        TransferSessions.Session session = sessions.get(id);
+        if (session == null || !session.upload || sessions.committed_offset(session) != session.length) {
+            return -1;
+        }
+        String remote_path = session.remote_path;
+        System.err.print(remote_path + " Server finish_upload_session(), ");
+        int version;
+        long ticket;
+        synchronized (session) {
+            if (sessions.get(id) == null) {
+                // Finished or expired meanwhile
+                return -1;
+            }
+            close_quietly(session.channel);
+            synchronized (get_path_lock(remote_path)) {
+                if (install(session.staged, remote_path) != 0) {
+                    sessions.close(session);
+                    return -1;
                 }
-                int version = path_version_map.get(remote_path);
-                // System.err.println("version: " + version);
-                return version;
+                // Update version map
+                version = next_version(remote_path);
+                ticket = log_version(remote_path, version);
+                System.err.println("version: " + version);
             }
+            sessions.close(session);
+        }
+        boolean durable = await_version(ticket);
+        break_leases(remote_path);
+        schedule_ingest(remote_path, version);
+        if (!durable) {
+            // Applied, but the version change may not survive a restart
+            return -4;
+        }
+        return version;
+    }
 
+    /**
+     * @brief end a session, an unfinished upload is discarded and a download releases its version
+     * @param id session id
+     * @return 0 on success, -1 if the session is already gone
+     */
+    public int close_session(long id) throws RemoteException {
+        TransferSessions.Session session = sessions.get(id);
+        if (session == null) {
+            return -1;
         }
+        sessions.close(session);
         return 0;
+    }
 
+    /**
+     * @brief record that a proxy holds the current version of a file complete and serves it to other proxies
+     * @param path String path of the file
+     * @param version version the proxy holds
+     * @param peer endpoint of that proxy
+     * @return 0 if recorded, -1 if the version is no longer current
+     */
+    public int advertise_peer(String path, int version, PeerOps peer) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        if (!is_current_version(path, remote_path, version)) {
+            return -1;
+        }
+        peer_directory.advertise(remote_path, version, peer);
+        return 0;
+    }
+
+    /**
+     * @brief forget that a proxy holds a version of a file
+     * @param path String path of the file
+     * @param version version the proxy no longer holds
+     * @param peer endpoint of that proxy
+     * @return 0
+     */
+    public int withdraw_peer(String path, int version, PeerOps peer) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        if (remote_path != null) {
+            peer_directory.withdraw(remote_path, version, peer);
+        }
+        return 0;
+    }
+
+    /**
+     * @brief proxies a version of a file can be read from instead of the Server
+     * @param path String path of the file
+     * @param version version wanted
+     * @param requester endpoint of the asking proxy, left out of the result
+     * @return holders of that version in random order, empty if there are none or the version is not current
+     */
+    public List<PeerOps> find_peers(String path, int version, PeerOps requester) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        if (!is_current_version(path, remote_path, version)) {
+            return new ArrayList<PeerOps>();
+        }
+        List<PeerOps> found = peer_directory.find(remote_path, version, requester);
+        Metrics.increment(found.isEmpty() ? "server.peer_lookup_misses" : "server.peer_referrals");
+        return found;
+    }
+
+    /**
+     * @return true if version is the current version of a valid path, versions are never reused
+     */
+    private boolean is_current_version(String path, String remote_path, int version) {
+        if (remote_path == null || !check_server_path(path, remote_path)) {
+            return false;
+        }
+        Integer current_version = path_version_map.get(remote_path);
+        return current_version != null && current_version == version;
+    }
+
+    /**
+     * @brief replace the master copy with a fully received data channel upload
+     * @param remote_path canonical server path
+     * @param staged file of the received bytes, renamed into place
+     * @param length file length
+     * @return the latest version of master copy, 0 on failure, -4 if the version log failed
+     */
+    private int commit_upload(String remote_path, File staged, long length) throws IOException {
+        System.err.print(remote_path + " Server commit_upload(), ");
+        int version;
+        long ticket;
+        synchronized (get_path_lock(remote_path)) {
+            if (install(staged, remote_path) != 0) {
+                return 0;
+            }
+            // Update version map
+            version = next_version(remote_path);
+            ticket = log_version(remote_path, version);
+            System.err.println("version: " + version);
+        }
+        boolean durable = await_version(ticket);
+        break_leases(remote_path);
+        schedule_ingest(remote_path, version);
+        if (!durable) {
+            // Applied, but the version change may not survive a restart
+            return -4;
+        }
+        return version;
     }
 
 
@@ -170,11 +721,6 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
         String remote_path = get_remote_path(path);
         System.err.println(remote_path + " Server get_file_info()");
 
-        // Create a lock Object to handle concurrent proxies
-        if (!path_lock_map.containsKey(remote_path)) {
-            path_lock_map.put(remote_path, new Object());
-        }
-
         File file = new File(remote_path);
         Reply_FileInfo reply_fileinfo = new Reply_FileInfo();
 
@@ -198,6 +744,75 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
         return reply_fileinfo;
     }
 
+    /**
+     * @brief check if path in cache and grant the caller a callback lease on it
+     * @param path String path to check
+     * @param callback proxy endpoint to notify when the version of path changes
+     * @return file information, lease_duration is set if a lease was granted
+     */
+    public Reply_FileInfo get_file_info(String path, ProxyCallback callback) throws RemoteException {
+        String remote_path = get_remote_path(path);
+        Lease lease = new Lease();
+        lease.path = path;
+        lease.expiry = System.currentTimeMillis() + lease_duration;
+        // Register before reading the version, so a concurrent version bump always reaches this proxy
+        // Inside compute, so sweep_leases() cannot drop the holder map between lookup and put
+        Map<ProxyCallback, Lease> holders = path_lease_map.compute(remote_path, (key, held) -> {
+            if (held == null) {
+                held = new ConcurrentHashMap<ProxyCallback, Lease>();
+            }
+            held.put(callback, lease);
+            return held;
+        });
+
+        Reply_FileInfo reply_fileinfo = get_file_info(path);
+        if (reply_fileinfo.path_valid) {
+            reply_fileinfo.lease_duration = lease_duration;
+        } else {
+            holders.remove(callback, lease);
+        }
+        return reply_fileinfo;
+    }
+
+    /**
+     * @brief batched get_file_info(path, callback), one RPC for many paths
+     * @param paths String paths to check
+     * @param callback proxy endpoint to notify when the version of a path changes
+     * @return file information of each path, keyed by the path as given
+     */
+    public Map<String, Reply_FileInfo> get_file_infos(List<String> paths, ProxyCallback callback) throws RemoteException {
+        Map<String, Reply_FileInfo> replies = new HashMap<String, Reply_FileInfo>();
+        for (String path : paths) {
+            replies.put(path, get_file_info(path, callback));
+        }
+        return replies;
+    }
+
+    /**
+     * @brief file information and leases for every entry of a directory
+     * @param dir_path String path of the directory, "" for the root
+     * @param callback proxy endpoint to notify when the version of an entry changes
+     * @return file information keyed by dir_path/name, empty if dir_path is not a valid directory
+     */
+    public Map<String, Reply_FileInfo> get_dir_infos(String dir_path, ProxyCallback callback) throws RemoteException {
+        Map<String, Reply_FileInfo> replies = new HashMap<String, Reply_FileInfo>();
+        String remote_path = get_remote_path(dir_path);
+        if (!check_server_path(dir_path, remote_path)) {
+            return replies;
+        }
+        String[] names = (new File(remote_path)).list();
+        if (names == null) {
+            return replies;
+        }
+        Arrays.sort(names);
+        for (int i = 0; i < names.length && i < dir_infos_limit; i ++) {
+            String path = dir_path.isEmpty() ? names[i] : dir_path + "/" + names[i];
+            replies.put(path, get_file_info(path, callback));
+        }
+        System.err.println(remote_path + " Server get_dir_infos(), entries: " + replies.size());
+        return replies;
+    }
+
     /**
      * @brief get the file from remote server
      * @param path String path of the file
@@ -209,21 +824,7 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
         String remote_path = get_remote_path(path);
         System.err.println(remote_path + " Server get_file()");
 
-        File file = new File(remote_path);
-        assert(file.exists());
-        assert(!file.isDirectory());
-        int file_size = (int)file.length();
-        byte[] file_bytes = new byte[file_size];
-        try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
-            raf.read(file_bytes);
-            raf.close();
-        } catch (IOException e) {
-            System.err.println("Exception in getting file from server");
-            e.printStackTrace();
-        }
-
-        return file_bytes;
+        return read_version(remote_path, -1, 0, Integer.MAX_VALUE);
 
     }
 
@@ -235,29 +836,163 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
      * @return an array of bytes representing the file
      */
     public byte[] get_file(String path, long offset) throws RemoteException {
-        String remote_path = get_remote_path(path);
-        File file = new File(remote_path);
-        // assert(file.exists());
-        // assert(!file.isDirectory());
-        byte[] file_bytes;
-        if (offset + chunk_size < file.length()) {
-            file_bytes = new byte[chunk_size];
-        } else {
-            int length = (int)(file.length() - offset);
-            file_bytes = new byte[length];
-        }
+        return get_file(path, offset, -1);
+    }
 
-        try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
-            raf.seek(offset);
-            int result = raf.read(file_bytes);
-            assert(result != -1);
+    /**
+     * @brief get one chunk of a version of the file, so a download keeps reading the version it started on
+     * @param path String path of the file
+     * @param offset file offset used for chunking
+     * @param version version to read, -1 for the current one
+     * @return chunk bytes, null if the version was replaced and no download still holds it
+     */
+    public byte[] get_file(String path, long offset, int version) throws RemoteException {
+        return read_version(get_remote_path(path), version, offset, chunk_size);
+    }
+
+    /**
+     * @brief read a byte range of one version through its pooled channel, or from the hot file cache
+     * @param remote_path canonical server path
+     * @param version version to read, -1 for the current one
+     * @param offset first byte wanted
+     * @param length bytes wanted, clamped to the file
+     * @return the bytes, null if the version is gone or the file cannot be read
+     */
+    private static byte[] read_version(String remote_path, int version, long offset, int length) {
+        // Every chunk of a transfer reads through the same pooled channel
+        try (FileChannelPool.Handle handle = open_version(remote_path, version)) {
+            if (handle == null) {
+                return null;
+            }
+            sessions.touch_download(remote_path, handle.version);
+            long file_size = handle.channel.size();
+            int count = (int)Math.max(0, Math.min(length, file_size - offset));
+            if (hot_cache != null) {
+                byte[] cached_bytes = hot_cache.read(remote_path, handle.version, handle.channel, offset, count);
+                if (cached_bytes != null) {
+                    return cached_bytes;
+                }
+            }
+            byte[] file_bytes = new byte[count];
+            ByteBuffer dst = ByteBuffer.wrap(file_bytes);
+            while (dst.hasRemaining()) {
+                if (handle.channel.read(dst, offset + dst.position()) == -1) {
+                    break;
+                }
+            }
+            return file_bytes;
         } catch (IOException e) {
             System.err.println("Exception in getting file from server");
             e.printStackTrace();
+            return null;
         }
+    }
 
-        return file_bytes;
+    /**
+     * @brief pooled read channel of a version of a file, opened under the path lock if it is the current one
+     * @param remote_path canonical server path
+     * @param version version to read, -1 for the current one
+     * @return handle to close after reading, null if the version is gone or the file cannot be opened
+     */
+    private static FileChannelPool.Handle open_version(String remote_path, int version) {
+        try {
+            Integer wanted = (version >= 0) ? Integer.valueOf(version) : path_version_map.get(remote_path);
+            // A pooled channel of a version always reads that version, no lock needed
+            FileChannelPool.Handle handle = (wanted == null) ? null : channel_pool.acquire(remote_path, wanted, false);
+            if (handle != null) {
+                return handle;
+            }
+            synchronized (get_path_lock(remote_path)) {
+                path_version_map.putIfAbsent(remote_path, 1);
+                int current_version = path_version_map.get(remote_path);
+                if (version >= 0 && version != current_version) {
+                    Metrics.increment("server.version_reads_gone");
+                    return null;
+                }
+                return channel_pool.acquire(remote_path, current_version, true);
+            }
+        } catch (IOException e) {
+            // Missing or deleted file
+            return null;
+        }
+    }
+
+    /**
+     * @brief notify every proxy holding a lease on remote_path and drop those leases
+     * @brief the callbacks run in parallel on callback_pool, the caller waits at most invalidation_timeout for them
+     * @param remote_path path whose version changed or which was deleted
+     */
+    private void break_leases(String remote_path) {
+        Map<ProxyCallback, Lease> holders = path_lease_map.get(remote_path);
+        if (holders == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<ProxyCallback, Future<?>> sent = new HashMap<ProxyCallback, Future<?>>();
+        for (Map.Entry<ProxyCallback, Lease> holder : holders.entrySet()) {
+            Lease lease = holder.getValue();
+            // A lease registered after this point has already read the new version, keep it
+            if (!holders.remove(holder.getKey(), lease) || lease.expiry <= now) {
+                continue;
+            }
+            final ProxyCallback callback = holder.getKey();
+            final String path = lease.path;
+            sent.put(callback, callback_pool.submit(() -> {
+                callback.invalidate(path);
+                return null;
+            }));
+        }
+        long deadline = System.currentTimeMillis() + invalidation_timeout;
+        for (Map.Entry<ProxyCallback, Future<?>> callback : sent.entrySet()) {
+            try {
+                callback.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Left running, the write goes on without it
+                System.err.println("Server: break_leases() proxy did not answer in time, its leases are dropped");
+                drop_holder(callback.getKey());
+            } catch (ExecutionException e) {
+                System.err.println("Server: break_leases() proxy unreachable, its leases are dropped");
+                drop_holder(callback.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @brief drop expired leases and the paths left without holders, so the table does not grow with dead proxies
+     */
+    private static void sweep_leases() {
+        long now = System.currentTimeMillis();
+        for (String remote_path : path_lease_map.keySet()) {
+            path_lease_map.computeIfPresent(remote_path, (key, holders) -> {
+                holders.values().removeIf(held -> held.expiry <= now);
+                return holders.isEmpty() ? null : holders;
+            });
+        }
+        Metrics.set("server.lease_paths", path_lease_map.size());
+    }
+
+    /**
+     * @brief forget every lease of a proxy that failed a callback, later writes do not wait on it again
+     * @brief it gets new leases once it asks for file information again
+     * @param callback endpoint of the proxy
+     */
+    private static void drop_holder(ProxyCallback callback) {
+        Metrics.increment("server.lease_holders_dropped");
+        for (Map<ProxyCallback, Lease> holders : path_lease_map.values()) {
+            holders.remove(callback);
+        }
+    }
+
+    /**
+     * @brief get the lock object of a remote path, created on first use
+     * @param remote_path canonical server path
+     * @return lock shared by every operation on remote_path
+     */
+    private static Object get_path_lock(String remote_path) {
+        return path_lock_map.computeIfAbsent(remote_path, k -> new Object());
     }
 
     private static String get_remote_path(String path) {
@@ -280,9 +1015,130 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
      * @param path String path to check
      */
     private void set_default_version_absent(String path) throws RemoteException {
-        if (!path_version_map.containsKey(path)) {
-            path_version_map.put(path, 1);
+        // Defaults are not logged, an unlogged path recovers to 1 as well
+        path_version_map.putIfAbsent(path, 1);
+    }
+
+    /**
+     * @brief bump the version of a path, caller holds the path lock
+     * @param remote_path canonical server path
+     * @return the new version
+     */
+    private static int next_version(String remote_path) {
+        Integer current_version = path_version_map.get(remote_path);
+        if (current_version == null) {
+            System.err.println("EMPTY VER SHOULD NOT HAPPEN ON UPLOADED FILE!");
+            current_version = 0;
         }
+        path_version_map.put(remote_path, current_version + 1);
+        drop_cached_contents(remote_path);
+        return current_version + 1;
+    }
+
+    /**
+     * @brief chunk a new version into the block store in the background, so later uploads can skip its chunks
+     * @param remote_path canonical server path
+     * @param version version just committed, skipped if another one replaces it first
+     */
+    private static void schedule_ingest(final String remote_path, final int version) {
+        if (block_store == null || version <= 0 || (new File(remote_path)).length() < dedup_min_size) {
+            return;
+        }
+        ingest_worker.execute(() -> {
+            // Read without the path lock, chunks are content addressed so a write racing the scan
+            // cannot corrupt the store, and the manifest is dropped if the version moved on
+            if (!Integer.valueOf(version).equals(path_version_map.get(remote_path))) {
+                return;
+            }
+            try (FileChannel file = FileChannel.open(Paths.get(remote_path), StandardOpenOption.READ)) {
+                Manifest manifest = block_store.ingest(file, file.size());
+                synchronized (get_path_lock(remote_path)) {
+                    if (Integer.valueOf(version).equals(path_version_map.get(remote_path))) {
+                        block_store.record(remote_path, version, manifest);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Server: ingest of " + remote_path + " failed");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * @brief create an empty private file for an upload
+     * @return the staged file, renamed into place by install()
+     */
+    private static File stage_file() throws IOException {
+        return File.createTempFile("upload", ".staged", staging_dir);
+    }
+
+    /**
+     * @brief atomically replace the master copy with a staged file, caller holds the path lock and bumps the version
+     * @brief open channels keep reading the replaced file
+     * @param staged complete new contents
+     * @param remote_path canonical server path
+     * @return 0 on success, -1 if the rename failed
+     */
+    private static int install(File staged, String remote_path) {
+        try {
+            try {
+                Files.move(staged.toPath(), Paths.get(remote_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // Staging dir on another file system, readers may briefly see a partial file
+                System.err.println("Server: staging dir is not on the root file system, upload is not atomic");
+                Files.move(staged.toPath(), Paths.get(remote_path), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Server: install of " + remote_path + " failed");
+            e.printStackTrace();
+            staged.delete();
+            return -1;
+        }
+        return 0;
+    }
+
+    private static void close_quietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to flush for a file that is renamed or deleted next
+        }
+    }
+
+    /**
+     * @brief forget the cached contents of a path whose version changed or which was deleted
+     * @brief pooled channels are kept, they read their old version until downloads of it finish
+     * @param remote_path canonical server path
+     */
+    private static void drop_cached_contents(String remote_path) {
+        if (hot_cache != null) {
+            hot_cache.invalidate(remote_path);
+        }
+    }
+
+    /**
+     * @brief queue a version change in the write-ahead log, caller holds the path lock
+     * @param remote_path canonical server path
+     * @param version version just set
+     * @return ticket for await_version(), 0 if versions are not persisted, -1 if the log refused it
+     */
+    private static long log_version(String remote_path, int version) {
+        if (version_log == null) {
+            return 0;
+        }
+        return version_log.append(remote_path, version);
+    }
+
+    /**
+     * @brief wait until a logged version is durable, called after releasing the path lock so commits group
+     * @param ticket from log_version()
+     * @return false if the version log failed, the RPC then reports -4
+     */
+    private static boolean await_version(long ticket) {
+        if (version_log == null || ticket == 0) {
+            return true;
+        }
+        return version_log.await(ticket);
     }
 
     /**
@@ -308,6 +1164,50 @@ public class Server extends UnicastRemoteObject implements RemoteOps{
 
         try {
             Server server = new Server();
+            for (String codec : System.getProperty("server.codecs", Codec.name).split(",")) {
+                if (!codec.trim().isEmpty()) {
+                    codecs.add(codec.trim());
+                }
+            }
+            Metrics.start_reporter("Server", Long.getLong("server.metrics_interval", 0));
+            ScheduledExecutorService lease_sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "lease-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            lease_sweeper.scheduleAtFixedRate(Server::sweep_leases, lease_duration, lease_duration, TimeUnit.MILLISECONDS);
+            // Kept beside rootdir so clients never see it
+            File root = (new File(rootdir)).getAbsoluteFile();
+            String state_dir = System.getProperty("server.state_dir", new File(root.getParentFile(), root.getName() + ".state").getPath());
+            // Uploads left half written by a crash are never installed
+            staging_dir = new File(state_dir, "staging");
+            staging_dir.mkdirs();
+            for (File leftover : staging_dir.listFiles()) {
+                leftover.delete();
+            }
+            if (Boolean.parseBoolean(System.getProperty("server.persistent_versions", "true"))) {
+                version_log = new VersionLog(state_dir, Long.getLong("server.snapshot_every", 100000),
+                    Boolean.parseBoolean(System.getProperty("server.wal_sync", "true")));
+                path_version_map.putAll(version_log.recover());
+                version_log.start(path_version_map);
+            }
+            long hot_cache_size = Long.getLong("server.hot_cache_size", 67108864);
+            if (hot_cache_size > 0) {
+                hot_cache = new HotFileCache(hot_cache_size, Long.getLong("server.hot_cache_max_file", hot_cache_size / 4));
+            }
+            if (Boolean.parseBoolean(System.getProperty("server.block_store", "true"))) {
+                dedup_min_size = Long.getLong("server.dedup_min_size", dedup_min_size);
+                block_store = new BlockStore(state_dir, Integer.getInteger("server.manifests_kept", 2));
+                block_store.load();
+                ingest_worker = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "block-ingest");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (Boolean.parseBoolean(System.getProperty("server.data_channel", "true"))) {
+                data_server = new DataServer(Integer.getInteger("server.data_port", 0), server::commit_upload, staging_dir);
+            }
             LocateRegistry.createRegistry(port);
 
             Naming.rebind(server_name, server);
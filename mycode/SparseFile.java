@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.*;
+
+/**
+* @brief block-granular cache file of a huge _rdonly_ version, blocks are fetched on first read
+* @brief the file keeps its full logical length, missing blocks are holes and take no disk space
+*/
+public class SparseFile {
+
+    /**
+     * number of locks serializing fetches, distinct blocks usually fetch in parallel
+     */
+    private static final int fetch_lock_count = 16;
+
+    private final String orig_path;
+    /**
+     * version the blocks are fetched from
+     */
+    private final int version;
+    private final long length;
+    private final int block_size;
+    private final int block_count;
+    /**
+     * presence bitmap, bit i set once block i is on disk
+     */
+    private final BitSet present;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Object[] fetch_locks;
+    private final TransferEngine transfers;
+    private final Cache cache;
+    /**
+     * download session holding the version on the Server until every block is present or the file is dropped
+     */
+    private TransferSession session;
+    /**
+     * cache entry charged for the present blocks
+     */
+    private CachedFileInfo owner;
+
+    public SparseFile(String orig_path, int version, String cache_path, long length, int block_size, TransferEngine transfers, Cache cache,
+            TransferSession session) throws IOException {
+        this.orig_path = orig_path;
+        this.version = version;
+        this.length = length;
+        this.block_size = block_size;
+        this.block_count = (int)((length + block_size - 1) / block_size);
+        this.present = new BitSet(block_count);
+        this.transfers = transfers;
+        this.cache = cache;
+        this.session = session;
+        raf = new RandomAccessFile(cache_path, "rw");
+        raf.setLength(length);
+        channel = raf.getChannel();
+        fetch_locks = new Object[fetch_lock_count];
+        for (int i = 0; i < fetch_lock_count; i ++) {
+            fetch_locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @brief set the cache entry this file belongs to, block fetches are charged to it
+     * @param owner the _rdonly_ cache entry
+     */
+    public void set_owner(CachedFileInfo owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return channel of the cache file, shared by every fd of this version
+     */
+    public FileChannel get_channel() {
+        return channel;
+    }
+
+    /**
+     * @return logical length of the file
+     */
+    public long get_length() {
+        return length;
+    }
+
+    /**
+     * @return true once every block is present
+     */
+    public synchronized boolean is_complete() {
+        return present.cardinality() == block_count;
+    }
+
+    /**
+     * @brief make sure [offset, offset + len) is on disk, fetching missing blocks from the Server
+     * @brief callers hold a pin on the owner so the blocks cannot be trimmed meanwhile
+     * @param offset first byte needed
+     * @param len number of bytes needed
+     * @return 0 on success, -1 if a fetch failed, -2 if the cache cannot make room (Errors.ENOMEM)
+     */
+    public int ensure(long offset, long len) {
+        if (len <= 0 || offset >= length) {
+            return 0;
+        }
+        int first = (int)(offset / block_size);
+        int last = (int)(Math.min(offset + len, length) - 1) / block_size;
+        for (int block = first; block <= last; block ++) {
+            int fetch_result = fetch_block(block);
+            if (fetch_result != 0) {
+                return fetch_result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @brief drop present blocks from the tail until at least needed bytes are freed
+     * @brief only called on an unpinned entry, under the Cache monitor
+     * @param needed bytes to free
+     * @return bytes freed
+     */
+    public synchronized long trim(long needed) {
+        long freed = 0;
+        int cut = present.length();
+        for (int block = present.previousSetBit(block_count - 1); block >= 0 && freed < needed; block = present.previousSetBit(block - 1)) {
+            present.clear(block);
+            freed += get_block_length(block);
+            cut = block;
+        }
+        if (freed > 0) {
+            try {
+                // Truncating releases the disk blocks, extending again leaves a hole
+                raf.setLength((long)cut * block_size);
+                raf.setLength(length);
+            } catch (IOException e) {
+                System.err.println("SparseFile: trim() failed to truncate " + orig_path);
+                e.printStackTrace();
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @brief close the shared channel and release the version on the Server, the file is being deleted
+     */
+    public void close() {
+        release();
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief end the download session, nothing more is fetched once every block is present or the file is dropped
+     */
+    private void release() {
+        TransferSession held;
+        synchronized (this) {
+            held = session;
+            session = null;
+        }
+        transfers.close_session(held);
+    }
+
+    private synchronized boolean is_present(int block) {
+        return present.get(block);
+    }
+
+    private long get_block_length(int block) {
+        return Math.min(block_size, length - (long)block * block_size);
+    }
+
+    /**
+     * @brief fetch one block with get_file(path, offset, version) unless present, charging the cache for it
+     * @brief the download session keeps the version readable on the Server even after it is replaced
+     * @param block block index
+     * @return 0 on success, -1 if the fetch failed, -2 if the cache cannot make room
+     */
+    private int fetch_block(int block) {
+        if (is_present(block)) {
+            return 0;
+        }
+        synchronized (fetch_locks[block % fetch_lock_count]) {
+            if (is_present(block)) {
+                return 0;
+            }
+            long block_offset = (long)block * block_size;
+            long block_length = get_block_length(block);
+            if (!cache.charge(owner, block_length)) {
+                return -2;
+            }
+            try {
+                byte[] data = transfers.fetch_chunk(orig_path, block_offset, version);
+                if (data == null || data.length != block_length) {
+                    // Also the case once the session idled out and the Server stopped keeping the replaced version
+                    System.err.println("SparseFile: short block " + block + " of " + orig_path);
+                    cache.charge(owner, -block_length);
+                    return -1;
+                }
+                ByteBuffer src = ByteBuffer.wrap(data);
+                while (src.hasRemaining()) {
+                    channel.write(src, block_offset + src.position());
+                }
+            } catch (IOException e) {
+                System.err.println("SparseFile: fetch of block " + block + " failed");
+                e.printStackTrace();
+                cache.charge(owner, -block_length);
+                return -1;
+            }
+            boolean complete;
+            synchronized (this) {
+                present.set(block);
+                complete = present.cardinality() == block_count;
+            }
+            Metrics.increment("proxy.sparse_block_fetches");
+            if (complete) {
+                release();
+            }
+            return 0;
+        }
+    }
+}
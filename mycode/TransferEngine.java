@@ -0,0 +1,648 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* @brief pipelined chunk transfers of huge files, keeps several chunk RPCs in flight at once
+* @brief bytes go over the Server data channel when it is up, RMI chunks are the fallback
+*/
+public class TransferEngine {
+
+    /**
+     * work done for the chunk at one offset
+     */
+    public interface ChunkTask {
+        /**
+         * @param offset chunk offset in the file
+         * @return 0 on success, any other value aborts the transfer and is returned by run_chunks
+         */
+        int run(long offset) throws Exception;
+    }
+
+    /**
+     * told how far a download got, so it can be resumed from there after a crash
+     */
+    public interface Progress {
+        /**
+         * @param committed_offset every byte below this offset is written to the destination channel
+         */
+        void committed(long committed_offset) throws IOException;
+    }
+
+    /**
+     * @brief chunks of one download written so far, tracks the contiguous prefix a resumed download can skip
+     */
+    private class ChunkTracker {
+        private final BitSet done = new BitSet();
+        private final long length;
+        private final Progress progress;
+        private int reported;
+
+        ChunkTracker(long resume_from, long length, Progress progress) {
+            this.length = length;
+            this.progress = progress;
+            reported = (int)(Math.min(resume_from, length) / chunk_size);
+            done.set(0, reported);
+        }
+
+        synchronized boolean is_done(long offset) {
+            return done.get((int)(offset / chunk_size));
+        }
+
+        /**
+         * @brief mark the chunks of [start, end) written, reporting progress every progress_chunks chunks
+         */
+        synchronized void done(long start, long end) throws IOException {
+            done.set((int)(start / chunk_size), (int)((end + chunk_size - 1) / chunk_size));
+            if (done.nextClearBit(0) - reported >= progress_chunks) {
+                report();
+            }
+        }
+
+        synchronized long committed() {
+            return Math.min(length, (long)done.nextClearBit(0) * chunk_size);
+        }
+
+        synchronized void report() throws IOException {
+            reported = done.nextClearBit(0);
+            if (progress != null) {
+                progress.committed(committed());
+            }
+        }
+    }
+
+    private final ExecutorService workers;
+    private final RemoteOps srv;
+    private final int chunk_size;
+    private final int parallelism;
+    /**
+     * Server host of the data channel, null to use RMI chunks only
+     */
+    private final String data_host;
+    /**
+     * codec agreed with the Server for RMI transfers, null for raw bytes
+     */
+    private volatile String codec;
+    /**
+     * tries of a broken transfer before giving up, later tries resume where the last one stopped
+     */
+    private static final int transfer_attempts = 3;
+    private static final long retry_backoff_ms = 500;
+    /**
+     * download progress is reported every this many chunks
+     */
+    private static final int progress_chunks = 64;
+
+    /**
+     * @param srv Server stub the chunks are moved through
+     * @param chunk_size chunk size of get_file(path, offset) and upload_session_chunk
+     * @param parallelism number of chunk RPCs in flight, shared by all transfers
+     * @param data_host Server host of the data channel, null to disable it
+     */
+    public TransferEngine(RemoteOps srv, int chunk_size, int parallelism, String data_host) {
+        this.srv = srv;
+        this.chunk_size = chunk_size;
+        this.parallelism = parallelism;
+        this.data_host = data_host;
+        workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "transfer-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @brief agree on a codec with the Server, RMI chunks are packed from then on
+     * @param offered comma separated codec names, "none" or empty for raw transfers
+     */
+    public void negotiate(String offered) {
+        List<String> codecs = new ArrayList<String>();
+        for (String name : offered.split(",")) {
+            if (!name.trim().isEmpty() && !name.trim().equals("none")) {
+                codecs.add(name.trim());
+            }
+        }
+        if (codecs.isEmpty()) {
+            return;
+        }
+        try {
+            codec = srv.negotiate_codec(codecs);
+        } catch (IOException e) {
+            System.err.println("TransferEngine: negotiate() failed, using raw transfers");
+            e.printStackTrace();
+        }
+        System.err.println("TransferEngine: codec " + codec);
+    }
+
+    /**
+     * @brief get one whole version of a file by versioned chunks, so content of a newer version is never mixed in
+     * @param path remote file path
+     * @param version version validated with the Server
+     * @param length file length of that version
+     * @return file bytes, null on failure or once the Server no longer has the version
+     */
+    public byte[] fetch_file(final String path, final int version, final int length) {
+        final byte[] file_bytes = new byte[length];
+        int result = run_chunks(0, length, offset -> {
+            byte[] chunk = fetch_chunk(path, offset, version);
+            int expected = (int)Math.min(chunk_size, length - offset);
+            if (chunk == null || chunk.length != expected) {
+                return -1;
+            }
+            System.arraycopy(chunk, 0, file_bytes, (int)offset, expected);
+            return 0;
+        });
+        return (result == 0) ? file_bytes : null;
+    }
+
+    /**
+     * @brief get_file(path, offset, version), packed if a codec was negotiated
+     * @return chunk bytes, null on failure or once the Server no longer has the version
+     */
+    public byte[] fetch_chunk(String path, long offset, int version) throws IOException {
+        if (codec == null) {
+            return srv.get_file(path, offset, version);
+        }
+        return Codec.unpack(srv.get_file_packed(path, offset, version));
+    }
+
+    /**
+     * @brief upload_file(path, bytes), packed if a codec was negotiated
+     * @return new version id
+     */
+    public int send_file(String path, byte[] data) throws IOException {
+        if (codec == null) {
+            return srv.upload_file(path, data);
+        }
+        return srv.upload_file_packed(path, Codec.pack(data));
+    }
+
+    /**
+     * @brief upload_session_chunk(id, offset, chunk), packed if a codec was negotiated
+     * @return 0 on success, -1 if the Server rejected the chunk
+     */
+    private int send_session_chunk(long id, byte[] data, long offset) throws IOException {
+        PackedChunk chunk = (codec == null) ? new PackedChunk(false, data.length, data) : Codec.pack(data);
+        return srv.upload_session_chunk(id, offset, chunk);
+    }
+
+    public boolean has_data_channel() {
+        return data_host != null;
+    }
+
+    /**
+     * @brief run task for every chunk offset in [start, end), in parallel, and wait for all of them
+     * @param start first chunk offset
+     * @param end bytes past the last chunk
+     * @param task per chunk work
+     * @return 0 if every chunk succeeded, else the first failure code (-1 for an exception)
+     */
+    public int run_chunks(long start, long end, final ChunkTask task) {
+        return run_ranges(start, end, chunk_size, task);
+    }
+
+    /**
+     * @brief run task for every step sized range in [start, end), in parallel, and wait for all of them
+     * @param start first range offset
+     * @param end bytes past the last range
+     * @param step range size
+     * @param task per range work
+     * @return 0 if every range succeeded, else the first failure code (-1 for an exception)
+     */
+    private int run_ranges(long start, long end, long step, final ChunkTask task) {
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (long offset = start; offset < end; offset += step) {
+            final long chunk_offset = offset;
+            futures.add(workers.submit(() -> task.run(chunk_offset)));
+        }
+        int result = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                int chunk_result = future.get();
+                if (result == 0 && chunk_result != 0) {
+                    result = chunk_result;
+                    // Stop chunks that have not started yet, running ones finish on their own
+                    for (Future<Integer> pending : futures) {
+                        pending.cancel(false);
+                    }
+                }
+            } catch (CancellationException e) {
+                // Cancelled after an earlier failure
+            } catch (Exception e) {
+                System.err.println("TransferEngine: chunk failed");
+                e.printStackTrace();
+                if (result == 0) {
+                    result = -1;
+                    for (Future<Integer> pending : futures) {
+                        pending.cancel(false);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @brief download one version of path into dst, chunks written positionally as they arrive
+     * @param path remote file path on server
+     * @param version version to download, every chunk comes from it even if the file is replaced meanwhile
+     * @param dst cache file channel
+     * @param length file length
+     * @return 0 on success, -1 on failure
+     */
+    public int download(final String path, final int version, final FileChannel dst, final long length) {
+        return download(path, version, dst, length, 0, null);
+    }
+
+    /**
+     * @brief download one version of path into dst, resuming a download that already wrote [0, resume_from)
+     * @brief a download session holds the version on the Server, so a broken transfer is retried from its last committed chunk
+     * @param path remote file path on server
+     * @param version version to download
+     * @param dst cache file channel
+     * @param length file length
+     * @param resume_from bytes already in dst, rounded down to a chunk
+     * @param progress told the committed offset as the download advances and when it fails, may be null
+     * @return 0 on success, -1 on failure
+     */
+    public int download(final String path, final int version, final FileChannel dst, final long length,
+                        long resume_from, Progress progress) {
+        long start_time = System.nanoTime();
+        ChunkTracker tracker = new ChunkTracker(resume_from, length, progress);
+        TransferSession session = null;
+        try {
+            session = srv.open_download_session(path, version);
+            if (session == null) {
+                System.err.println("TransferEngine: version " + version + " of " + path + " is gone");
+                return -1;
+            }
+        } catch (IOException e) {
+            // Retried below, the chunks read the version as long as it is current
+            System.err.println("TransferEngine: open_download_session() failed");
+            e.printStackTrace();
+        }
+        int result = -1;
+        for (int attempt = 0; attempt < transfer_attempts && result != 0; attempt ++) {
+            if (attempt > 0) {
+                if (!backoff(attempt)) {
+                    break;
+                }
+                Metrics.increment("proxy.transfer_resumes");
+                System.err.println("TransferEngine: resuming download of " + path + " at " + tracker.committed());
+            }
+            result = download_from(path, version, dst, length, tracker);
+        }
+        close_session(session);
+        if (result != 0) {
+            try {
+                tracker.report();
+            } catch (IOException e) {
+                System.err.println("TransferEngine: cannot record download progress");
+                e.printStackTrace();
+            }
+            return -1;
+        }
+        report("download", length - resume_from, start_time);
+        return 0;
+    }
+
+    /**
+     * @brief fetch every chunk of [tracker.committed(), length) the tracker has not seen yet
+     * @return 0 on success, -1 on failure
+     */
+    private int download_from(final String path, final int version, final FileChannel dst, final long length,
+                              final ChunkTracker tracker) {
+        long start = tracker.committed();
+        if (data_host != null) {
+            // One data connection per stripe, a stripe that fails is fetched again as RMI chunks
+            long stripe = Math.max(chunk_size, (length - start + parallelism - 1) / parallelism);
+            stripe = ((stripe + chunk_size - 1) / chunk_size) * chunk_size;
+            final long stripe_size = stripe;
+            // transferFrom writes nothing past the end of the file, so size it up front
+            if (length > 0 && extend(dst, length) != 0) {
+                return -1;
+            }
+            return run_ranges(start, length, stripe_size, offset -> {
+                long end = Math.min(length, offset + stripe_size);
+                if (stream_download(path, version, dst, offset, end - offset) == 0) {
+                    tracker.done(offset, end);
+                    return 0;
+                }
+                return download_chunks(path, version, dst, offset, end, tracker);
+            });
+        }
+        return run_chunks(start, length, offset -> download_chunks(path, version, dst, offset, offset + 1, tracker));
+    }
+
+    /**
+     * @brief wait before retry attempt of a broken transfer
+     * @return false if interrupted, the transfer is abandoned
+     */
+    private static boolean backoff(int attempt) {
+        try {
+            Thread.sleep(retry_backoff_ms << (attempt - 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @brief hold a version on the Server for chunk reads outside download()
+     * @param path remote file path on server
+     * @param version version to hold
+     * @return session to end with close_session(), null if the version is gone or the Server cannot be reached
+     */
+    public TransferSession hold_version(String path, int version) {
+        try {
+            return srv.open_download_session(path, version);
+        } catch (IOException e) {
+            System.err.println("TransferEngine: open_download_session() failed");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @brief run task on the transfer workers, e.g. a chunk read ahead
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return workers.submit(task);
+    }
+
+    /**
+     * @brief end a transfer session, a session the Server lost meanwhile just expires there
+     */
+    public void close_session(TransferSession session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            srv.close_session(session.id);
+        } catch (IOException e) {
+            System.err.println("TransferEngine: close_session() failed, the session expires on the Server");
+        }
+    }
+
+    private static int extend(FileChannel dst, long length) {
+        try {
+            if (dst.size() < length) {
+                dst.write(ByteBuffer.wrap(new byte[1]), length - 1);
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.println("TransferEngine: extend() failed");
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * @brief fetch the RMI chunks covering [start, end) and write them positionally
+     * @return 0 on success, -1 on failure
+     */
+    private int download_chunks(String path, int version, FileChannel dst, long start, long end, ChunkTracker tracker) throws IOException {
+        for (long offset = start; offset < end; offset += chunk_size) {
+            if (tracker.is_done(offset)) {
+                continue;
+            }
+            byte[] chunk = fetch_chunk(path, offset, version);
+            if (chunk == null) {
+                return -1;
+            }
+            write_fully(dst, chunk, offset);
+            tracker.done(offset, offset + chunk.length);
+        }
+        return 0;
+    }
+
+    /**
+     * @brief receive [offset, offset + length) of path over the data channel straight into dst
+     * @return 0 on success, -1 if the channel is unavailable or the transfer came up short
+     */
+    private int stream_download(String path, int version, FileChannel dst, long offset, long length) {
+        try {
+            TransferToken token = srv.open_download(path, offset, length, version);
+            if (token == null || token.length != length) {
+                return -1;
+            }
+            try (SocketChannel conn = connect(token)) {
+                long received = 0;
+                while (received < length) {
+                    long count = dst.transferFrom(conn, offset + received, length - received);
+                    if (count <= 0) {
+                        System.err.println("TransferEngine: data channel download ended early");
+                        return -1;
+                    }
+                    received += count;
+                }
+            }
+            Metrics.add("proxy.data_channel_bytes", length);
+            return 0;
+        } catch (IOException e) {
+            System.err.println("TransferEngine: data channel download failed, falling back to RMI");
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * @brief send src as path over the data channel, the Server commits it once every byte arrived
+     * @return new version id, 0 if the channel is unavailable or the upload failed
+     */
+    private int stream_upload(String path, FileChannel src, long length) {
+        try {
+            TransferToken token = srv.open_upload(path, length);
+            if (token == null) {
+                return 0;
+            }
+            try (SocketChannel conn = connect(token)) {
+                long sent = 0;
+                while (sent < length) {
+                    long count = src.transferTo(sent, length - sent, conn);
+                    if (count <= 0) {
+                        System.err.println("TransferEngine: write copy shorter than " + length);
+                        return 0;
+                    }
+                    sent += count;
+                }
+                ByteBuffer reply = ByteBuffer.allocate(4);
+                DataServer.read_fully(conn, reply);
+                reply.flip();
+                Metrics.add("proxy.data_channel_bytes", length);
+                return reply.getInt();
+            }
+        } catch (IOException e) {
+            System.err.println("TransferEngine: data channel upload failed, falling back to RMI");
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * @brief open a data connection and present the token
+     */
+    private SocketChannel connect(TransferToken token) throws IOException {
+        SocketChannel conn = SocketChannel.open(new InetSocketAddress(data_host, token.port));
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putLong(token.id);
+        header.flip();
+        while (header.hasRemaining()) {
+            conn.write(header);
+        }
+        return conn;
+    }
+
+    /**
+     * @brief upload src as path through an upload session, chunks in parallel, the Server installs the version once all arrived
+     * @brief a broken upload asks the Server which chunks it has and sends only the rest
+     * @param path remote file path on server
+     * @param src write copy channel
+     * @param length file length
+     * @return new version id, 0 on failure
+     */
+    public int upload(final String path, final FileChannel src, final long length) {
+        long start_time = System.nanoTime();
+        if (data_host != null) {
+            int new_version = stream_upload(path, src, length);
+            if (new_version > 0) {
+                report("upload", length, start_time);
+                return new_version;
+            }
+        }
+        TransferSession session = null;
+        int new_version = 0;
+        for (int attempt = 0; attempt < transfer_attempts && new_version == 0; attempt ++) {
+            if (attempt > 0) {
+                if (!backoff(attempt)) {
+                    break;
+                }
+                Metrics.increment("proxy.transfer_resumes");
+            }
+            try {
+                // A session the Server lost, to expiry or a restart, starts over
+                TransferSession resumed = (session == null) ? null : srv.get_session(session.id);
+                session = (resumed != null) ? resumed : srv.open_upload_session(path, length);
+                if (session == null) {
+                    break;
+                }
+                if (attempt > 0) {
+                    System.err.println("TransferEngine: resuming upload of " + path + " at " + session.committed_offset);
+                }
+                final long id = session.id;
+                int result = run_chunks(session.committed_offset, length, offset -> {
+                    byte[] chunk = new byte[(int)Math.min(chunk_size, length - offset)];
+                    read_fully(src, chunk, offset);
+                    return send_session_chunk(id, chunk, offset);
+                });
+                if (result == 0) {
+                    new_version = Math.max(0, srv.finish_upload_session(id));
+                }
+            } catch (IOException e) {
+                System.err.println("TransferEngine: upload() attempt " + (attempt + 1) + " failed");
+                e.printStackTrace();
+            }
+        }
+        if (new_version == 0) {
+            // A finished session is already closed by the Server
+            close_session(session);
+            return 0;
+        }
+        report("upload", length, start_time);
+        return new_version;
+    }
+
+    /**
+     * @brief upload a file as a manifest of content-defined chunks, sending only the chunks the Server lacks
+     * @param path remote file path on server
+     * @param src write copy channel
+     * @param length file length
+     * @return new version id, 0 if the Server has no block store or the upload failed
+     */
+    public int upload_dedup(final String path, final FileChannel src, final long length) {
+        long start_time = System.nanoTime();
+        try {
+            Manifest manifest = Chunker.scan(src, length, null);
+            List<String> missing = srv.missing_blocks(manifest.hashes);
+            if (missing == null) {
+                return 0;
+            }
+            // Group the wanted chunks into RPCs of about one transfer chunk each
+            Set<String> wanted = new HashSet<String>(missing);
+            List<List<long[]>> batches = new ArrayList<List<long[]>>();
+            List<long[]> batch = new ArrayList<long[]>();
+            long batch_bytes = 0;
+            long sent_bytes = 0;
+            long offset = 0;
+            for (int i = 0; i < manifest.hashes.size(); i ++) {
+                int block_length = manifest.lengths.get(i);
+                if (wanted.remove(manifest.hashes.get(i))) {
+                    batch.add(new long[] {offset, block_length});
+                    batch_bytes += block_length;
+                    sent_bytes += block_length;
+                    if (batch_bytes >= chunk_size) {
+                        batches.add(batch);
+                        batch = new ArrayList<long[]>();
+                        batch_bytes = 0;
+                    }
+                }
+                offset += block_length;
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+            int result = run_ranges(0, batches.size(), 1, index -> {
+                List<byte[]> blocks = new ArrayList<byte[]>();
+                for (long[] block : batches.get((int)index)) {
+                    byte[] data = new byte[(int)block[1]];
+                    read_fully(src, data, block[0]);
+                    blocks.add(data);
+                }
+                return srv.put_blocks(blocks);
+            });
+            if (result != 0) {
+                return 0;
+            }
+            int new_version = Math.max(0, srv.commit_manifest(path, manifest));
+            if (new_version > 0) {
+                Metrics.add("proxy.dedup_upload_bytes", sent_bytes);
+                Metrics.add("proxy.dedup_bytes_saved", length - sent_bytes);
+                System.err.println("TransferEngine: dedup upload sent " + sent_bytes + " of " + length + " bytes");
+                report("upload", length, start_time);
+            }
+            return new_version;
+        } catch (IOException e) {
+            System.err.println("TransferEngine: upload_dedup() failed");
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    private static void report(String direction, long length, long start_time) {
+        long elapsed_ms = Math.max(1, (System.nanoTime() - start_time) / 1000000);
+        Metrics.add("proxy.transfer_" + direction + "_bytes", length);
+        Metrics.add("proxy.transfer_" + direction + "_ms", elapsed_ms);
+        System.err.println("TransferEngine: " + direction + " " + length + " bytes in " + elapsed_ms + " ms");
+    }
+
+    private static void write_fully(FileChannel channel, byte[] data, long offset) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            channel.write(src, offset + src.position());
+        }
+    }
+
+    private static void read_fully(FileChannel channel, byte[] data, long offset) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(data);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, offset + dst.position()) == -1) {
+                break;
+            }
+        }
+    }
+}
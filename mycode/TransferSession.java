@@ -0,0 +1,26 @@
+import java.io.Serializable;
+
+/**
+* @brief state of a resumable transfer as reported by the Server
+*/
+public class TransferSession implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public long id;
+    public long length;
+    /**
+     * version a download reads, or the version an upload started from
+     */
+    public int version;
+    /**
+     * every chunk below this offset has reached the Server, a resumed upload starts here; 0 for downloads
+     */
+    public long committed_offset;
+
+    public TransferSession(long id, long length, int version, long committed_offset) {
+        this.id = id;
+        this.length = length;
+        this.version = version;
+        this.committed_offset = committed_offset;
+    }
+}
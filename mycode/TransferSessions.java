@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* @brief resumable transfer sessions on the Server
+* @brief an upload session stages chunks in a private file and remembers which arrived, so a broken upload resumes
+* @brief a download session keeps the channel of its version open, so a broken download resumes on the same version
+*/
+public class TransferSessions {
+
+    /**
+     * @brief one upload or download in progress
+     */
+    public static class Session {
+        long id;
+        String remote_path;
+        boolean upload;
+        long length;
+        int version;
+        /**
+         * staged file and its channel, uploads only
+         */
+        File staged;
+        FileChannel channel;
+        /**
+         * chunks received, uploads only, guarded by the session
+         */
+        BitSet chunks = new BitSet();
+        /**
+         * channel of the version read, downloads only
+         */
+        FileChannelPool.Handle pinned;
+        volatile long last_used;
+    }
+
+    private final long timeout;
+    private final int chunk_size;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+    /**
+     * download sessions by version and path, reads of a version keep its sessions alive
+     */
+    private final Map<String, Session> downloads = new ConcurrentHashMap<String, Session>();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param timeout ms without activity after which a session is dropped
+     * @param chunk_size chunk size of upload chunks, every chunk but the last is this long
+     */
+    public TransferSessions(long timeout, int chunk_size) {
+        this.timeout = timeout;
+        this.chunk_size = chunk_size;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, timeout / 4);
+        sweeper.scheduleAtFixedRate(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief start an upload session writing into staged
+     * @param remote_path canonical server path
+     * @param length file length
+     * @param version current version when the upload started
+     * @param staged private file the chunks are written to
+     * @return new session
+     */
+    public Session open_upload(String remote_path, long length, int version, File staged) throws IOException {
+        Session session = new Session();
+        session.remote_path = remote_path;
+        session.upload = true;
+        session.length = length;
+        session.version = version;
+        session.staged = staged;
+        session.channel = FileChannel.open(staged.toPath(), java.nio.file.StandardOpenOption.WRITE);
+        register(session);
+        Metrics.increment("server.upload_sessions");
+        return session;
+    }
+
+    /**
+     * @brief start a download session holding the channel of a version
+     * @param remote_path canonical server path
+     * @param pinned pooled channel of the version, closed with the session
+     * @return new session
+     */
+    public Session open_download(String remote_path, FileChannelPool.Handle pinned) throws IOException {
+        Session session = new Session();
+        session.remote_path = remote_path;
+        session.length = pinned.channel.size();
+        session.version = pinned.version;
+        session.pinned = pinned;
+        register(session);
+        downloads.put(pinned.version + ":" + remote_path, session);
+        Metrics.increment("server.download_sessions");
+        return session;
+    }
+
+    /**
+     * @brief look up a live session and mark it active
+     * @return the session, null if unknown or expired
+     */
+    public Session get(long id) {
+        Session session = sessions.get(id);
+        if (session != null) {
+            session.last_used = System.currentTimeMillis();
+        }
+        return session;
+    }
+
+    /**
+     * @brief keep the download sessions of a version alive, called for every versioned read
+     */
+    public void touch_download(String remote_path, int version) {
+        Session session = downloads.get(version + ":" + remote_path);
+        if (session != null) {
+            session.last_used = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @brief record a received upload chunk
+     * @param session upload session
+     * @param offset chunk offset
+     * @param length chunk length
+     */
+    public void record_chunk(Session session, long offset, int length) {
+        synchronized (session) {
+            if (offset % chunk_size == 0 && (length == chunk_size || offset + length == session.length)) {
+                session.chunks.set((int)(offset / chunk_size));
+            }
+        }
+    }
+
+    /**
+     * @return offset below which every chunk of an upload arrived, the length once complete
+     */
+    public long committed_offset(Session session) {
+        if (!session.upload) {
+            return 0;
+        }
+        synchronized (session) {
+            return Math.min(session.length, (long)session.chunks.nextClearBit(0) * chunk_size);
+        }
+    }
+
+    /**
+     * @return what a proxy needs to resume the session
+     */
+    public TransferSession describe(Session session) {
+        return new TransferSession(session.id, session.length, session.version, committed_offset(session));
+    }
+
+    /**
+     * @brief end a session, deleting the staged file of an upload unless it was installed
+     */
+    public void close(Session session) {
+        synchronized (session) {
+            if (sessions.remove(session.id) == null) {
+                return;
+            }
+            if (session.upload) {
+                try {
+                    session.channel.close();
+                } catch (IOException e) {
+                    // The staged file is deleted or already renamed
+                }
+                session.staged.delete();
+            } else {
+                downloads.remove(session.version + ":" + session.remote_path, session);
+                session.pinned.close();
+            }
+        }
+    }
+
+    private void register(Session session) {
+        session.last_used = System.currentTimeMillis();
+        do {
+            // Random ids, a session can not be guessed from an earlier one
+            session.id = random.nextLong();
+        } while (session.id == 0 || sessions.putIfAbsent(session.id, session) != null);
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            if (session.last_used + timeout <= now) {
+                System.err.println("TransferSessions: session of " + session.remote_path + " expired");
+                Metrics.increment("server.sessions_expired");
+                close(session);
+            }
+        }
+    }
+}
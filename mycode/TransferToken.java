@@ -0,0 +1,27 @@
+import java.io.Serializable;
+
+/**
+* @brief handle of one transfer on the Server data channel, returned by open_download and open_upload
+*/
+public class TransferToken implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * sent first on the data connection, single use
+     */
+    public long id;
+    /**
+     * data channel port on the Server host
+     */
+    public int port;
+    /**
+     * bytes the transfer moves, a download is clamped to the file length
+     */
+    public long length;
+
+    public TransferToken(long id, int port, long length) {
+        this.id = id;
+        this.port = port;
+        this.length = length;
+    }
+}
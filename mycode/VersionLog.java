@@ -0,0 +1,393 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+* @brief durable Server version map: a write-ahead log of version changes plus periodic snapshots
+* @brief appends are group committed, one fsync makes every record queued meanwhile durable
+*/
+public class VersionLog {
+
+    private static final String snapshot_name = "versions.snapshot";
+    private static final String wal_prefix = "versions.wal.";
+    /**
+     * ms between attempts to reopen the log after a failed commit
+     */
+    private static final long reopen_interval = 1000;
+
+    private final File dir;
+    /**
+     * a snapshot is written after this many records
+     */
+    private final long snapshot_every;
+    /**
+     * fsync each group, false trades durability on power loss for latency
+     */
+    private final boolean sync;
+
+    /**
+     * records queued for the next group, guarded by this
+     */
+    private List<byte[]> queue = new ArrayList<byte[]>();
+    private long queued_seq = 0;
+    private long durable_seq = 0;
+    private long records_since_snapshot = 0;
+    /**
+     * set when a group commit failed, appends are refused until reopen() makes the live map durable again
+     */
+    private boolean failed = false;
+    /**
+     * generation of the WAL being appended, a snapshot covers every generation below its own
+     */
+    private long generation;
+    private FileChannel wal;
+    private Map<String, Integer> live;
+    private Thread snapshotter;
+
+    /**
+     * @param dir state directory, created if missing
+     * @param snapshot_every records between snapshots
+     * @param sync fsync every group commit
+     */
+    public VersionLog(String dir, long snapshot_every, boolean sync) {
+        this.dir = new File(dir);
+        this.snapshot_every = snapshot_every;
+        this.sync = sync;
+        this.dir.mkdirs();
+    }
+
+    /**
+     * @brief load the latest snapshot and replay the WAL generations after it, a torn tail record is dropped
+     * @return recovered path to version map
+     */
+    public Map<String, Integer> recover() throws IOException {
+        long start_time = System.nanoTime();
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        long snapshot_generation = 0;
+        File snapshot = new File(dir, snapshot_name);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16))) {
+                snapshot_generation = in.readLong();
+                int count = in.readInt();
+                versions = new HashMap<String, Integer>(Math.max(16, count * 4 / 3 + 1));
+                for (int i = 0; i < count; i ++) {
+                    String path = in.readUTF();
+                    versions.put(path, in.readInt());
+                }
+            }
+        }
+        long replayed = 0;
+        generation = snapshot_generation;
+        for (long wal_generation : list_generations()) {
+            if (wal_generation < snapshot_generation) {
+                // Already folded into the snapshot, left behind by a crash before cleanup
+                (new File(dir, wal_prefix + wal_generation)).delete();
+                continue;
+            }
+            replayed += replay(wal_generation, versions);
+            generation = Math.max(generation, wal_generation);
+        }
+        // Append to a fresh generation, the replayed ones are folded into the first snapshot
+        generation ++;
+        wal = FileChannel.open((new File(dir, wal_prefix + generation)).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        records_since_snapshot = replayed;
+        System.err.println("VersionLog: recovered " + versions.size() + " paths, " + replayed + " log records in "
+            + (System.nanoTime() - start_time) / 1000000 + " ms");
+        return versions;
+    }
+
+    /**
+     * @brief start the group committer, live is the map snapshots are taken from
+     * @param live Server version map, updated before each append
+     */
+    public void start(Map<String, Integer> live) {
+        this.live = live;
+        Thread committer = new Thread(this::commit_loop, "version-log-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * @brief queue a version change, callers append under the path lock so records of a path stay in order
+     * @param path canonical server path
+     * @param version new version
+     * @return ticket to pass to await(), -1 while the log is failed
+     */
+    public synchronized long append(String path, int version) {
+        if (failed) {
+            Metrics.increment("server.wal_refused");
+            return -1;
+        }
+        byte[] path_bytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + 4 + path_bytes.length + 8);
+        record.putInt(4 + path_bytes.length);
+        record.putInt(version);
+        record.put(path_bytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 4 + path_bytes.length);
+        record.putLong(crc.getValue());
+        queue.add(record.array());
+        queued_seq ++;
+        notifyAll();
+        return queued_seq;
+    }
+
+    /**
+     * @brief wait until the record with this ticket is durable, called after releasing the path lock
+     * @param seq ticket from append()
+     * @return true once durable, false if the append was refused or the log failed before the record reached the disk
+     */
+    public synchronized boolean await(long seq) {
+        if (seq < 0) {
+            return false;
+        }
+        while (durable_seq < seq) {
+            if (failed) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void commit_loop() {
+        while (true) {
+            List<byte[]> group;
+            long group_seq;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                group = queue;
+                group_seq = queued_seq;
+                queue = new ArrayList<byte[]>();
+            }
+            try {
+                int total = 0;
+                for (byte[] record : group) {
+                    total += record.length;
+                }
+                ByteBuffer batch = ByteBuffer.allocate(total);
+                for (byte[] record : group) {
+                    batch.put(record);
+                }
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    wal.write(batch);
+                }
+                if (sync) {
+                    wal.force(false);
+                }
+                Metrics.increment("server.wal_group_commits");
+                Metrics.add("server.wal_records", group.size());
+            } catch (IOException e) {
+                System.err.println("VersionLog: commit failed, refusing version changes until the log is reopened");
+                e.printStackTrace();
+                synchronized (this) {
+                    failed = true;
+                    notifyAll();
+                }
+                reopen();
+                continue;
+            }
+            synchronized (this) {
+                durable_seq = group_seq;
+                records_since_snapshot += group.size();
+                notifyAll();
+            }
+            if (records_since_snapshot >= snapshot_every && (snapshotter == null || !snapshotter.isAlive())) {
+                rotate_and_snapshot();
+            }
+        }
+    }
+
+    /**
+     * @brief switch appends to a new WAL generation and snapshot the live map in the background
+     * @brief records in the new generation are replayed on top of the snapshot, they carry absolute versions
+     */
+    private void rotate_and_snapshot() {
+        final long covered_generation = rotate();
+        if (covered_generation < 0) {
+            System.err.println("VersionLog: cannot rotate the log, snapshot skipped");
+            return;
+        }
+        snapshotter = new Thread(() -> write_snapshot(covered_generation), "version-log-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * @brief after a failed commit, retry until a new WAL generation and a snapshot of the live map are on disk
+     * @brief the live map holds every change of the failed group, so once the snapshot is in place they are all durable
+     */
+    private void reopen() {
+        while (true) {
+            try {
+                Thread.sleep(reopen_interval);
+                if (snapshotter != null) {
+                    // Both write the same snapshot file
+                    snapshotter.join();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            long covered_generation = rotate();
+            if (covered_generation < 0 || !write_snapshot(covered_generation)) {
+                continue;
+            }
+            synchronized (this) {
+                queue = new ArrayList<byte[]>();
+                durable_seq = queued_seq;
+                failed = false;
+                notifyAll();
+            }
+            System.err.println("VersionLog: reopened at generation " + covered_generation);
+            return;
+        }
+    }
+
+    /**
+     * @brief switch appends to a new WAL generation
+     * @return the new generation, which a snapshot taken from now on covers, -1 if it cannot be created
+     */
+    private long rotate() {
+        try {
+            FileChannel next = FileChannel.open((new File(dir, wal_prefix + (generation + 1))).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            try {
+                wal.close();
+            } catch (IOException e) {
+                // The old channel may be the one that failed, its records are covered by the next snapshot
+                e.printStackTrace();
+            }
+            wal = next;
+            generation ++;
+            records_since_snapshot = 0;
+            return generation;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * @return true once the snapshot is installed
+     */
+    private boolean write_snapshot(long covered_generation) {
+        long start_time = System.nanoTime();
+        Map<String, Integer> copy = new HashMap<String, Integer>(live);
+        File tmp = new File(dir, snapshot_name + ".tmp");
+        try (FileOutputStream file_out = new FileOutputStream(tmp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file_out, 1 << 16))) {
+            out.writeLong(covered_generation);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, Integer> entry : copy.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.flush();
+            file_out.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("VersionLog: snapshot failed, keeping the log");
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        }
+        try {
+            Files.move(tmp.toPath(), (new File(dir, snapshot_name)).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("VersionLog: cannot install snapshot");
+            e.printStackTrace();
+            return false;
+        }
+        for (long old_generation : list_generations()) {
+            if (old_generation < covered_generation) {
+                (new File(dir, wal_prefix + old_generation)).delete();
+            }
+        }
+        Metrics.increment("server.wal_snapshots");
+        System.err.println("VersionLog: snapshot of " + copy.size() + " paths in " + (System.nanoTime() - start_time) / 1000000 + " ms");
+        return true;
+    }
+
+    /**
+     * @brief apply one WAL generation, stopping at the first torn or corrupt record
+     * @return number of records applied
+     */
+    private long replay(long wal_generation, Map<String, Integer> versions) throws IOException {
+        File file = new File(dir, wal_prefix + wal_generation);
+        long applied = 0;
+        long good_length = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 4 || length > (1 << 20)) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                long stored_crc;
+                try {
+                    in.readFully(payload);
+                    stored_crc = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != stored_crc) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                int version = record.getInt();
+                versions.put(new String(payload, 4, length - 4, StandardCharsets.UTF_8), version);
+                applied ++;
+                good_length += 4 + length + 8;
+            }
+        }
+        if (good_length < file.length()) {
+            System.err.println("VersionLog: dropping torn tail of " + file.getName());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(good_length);
+            }
+        }
+        return applied;
+    }
+
+    private List<Long> list_generations() {
+        List<Long> generations = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names == null) {
+            return generations;
+        }
+        for (String name : names) {
+            if (name.startsWith(wal_prefix)) {
+                try {
+                    generations.add(Long.parseLong(name.substring(wal_prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Not a log file
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* @brief measure the Server version log: group commit throughput and the time recover() takes at Server start
+* @brief usage: java VersionLogBench <paths> [records after the snapshot] [sync|nosync] [recover runs]
+* @brief one version per path is logged and folded into a snapshot, then random paths are updated into the WAL
+* @brief recover() loads that snapshot and replays the WAL tail, as a restarted Server does
+* @brief runs in a fresh temporary directory, removed at the end
+*/
+public class VersionLogBench {
+
+    private static final int paths_per_dir = 1000;
+    /**
+     * ms to wait for the background snapshot before giving up
+     */
+    private static final long snapshot_timeout = 600000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: java VersionLogBench <paths> [records after the snapshot] [sync|nosync] [recover runs]");
+            System.exit(1);
+        }
+        int paths = Integer.parseInt(args[0]);
+        int tail_records = (args.length > 1) ? Integer.parseInt(args[1]) : paths / 10;
+        boolean sync = args.length <= 2 || !args[2].equals("nosync");
+        int runs = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+        File dir = Files.createTempDirectory("version-log-bench").toFile();
+        try {
+            run(dir, paths, tail_records, sync, runs);
+        } finally {
+            delete_dir(dir);
+        }
+    }
+
+    private static void run(File dir, int paths, int tail_records, boolean sync, int runs) throws IOException, InterruptedException {
+        System.out.println("paths: " + paths + ", records after the snapshot: " + tail_records + (sync ? ", fsync" : ", no fsync"));
+        String[] names = new String[paths];
+        for (int i = 0; i < paths; i ++) {
+            names[i] = "/srv/root/dir" + (i / paths_per_dir) + "/file" + i;
+        }
+        // A snapshot is due once every path is logged, the tail then goes to the next generation
+        VersionLog log = new VersionLog(dir.getPath(), paths, sync);
+        Map<String, Integer> live = new ConcurrentHashMap<String, Integer>(log.recover());
+        log.start(live);
+
+        long start_time = System.nanoTime();
+        long ticket = 0;
+        for (String name : names) {
+            // The Server updates its map before appending, snapshots copy it concurrently
+            live.put(name, 1);
+            ticket = log.append(name, 1);
+        }
+        if (!log.await(ticket)) {
+            throw new IOException("version log failed while logging paths");
+        }
+        report("logged", paths, System.nanoTime() - start_time);
+
+        start_time = System.nanoTime();
+        wait_snapshot(dir);
+        report("snapshot", paths, System.nanoTime() - start_time);
+
+        Random random = new Random(1);
+        start_time = System.nanoTime();
+        for (int i = 0; i < tail_records; i ++) {
+            String name = names[random.nextInt(paths)];
+            int version = live.merge(name, 1, Integer::sum);
+            ticket = log.append(name, version);
+        }
+        if (tail_records > 0 && !log.await(ticket)) {
+            throw new IOException("version log failed while logging updates");
+        }
+        report("updated", tail_records, System.nanoTime() - start_time);
+        System.out.printf("snapshot %d bytes, log %d bytes%n", (new File(dir, "versions.snapshot")).length(), wal_bytes(dir));
+
+        Map<String, Integer> expected = new HashMap<String, Integer>(live);
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int run = 0; run < runs; run ++) {
+            start_time = System.nanoTime();
+            Map<String, Integer> recovered = (new VersionLog(dir.getPath(), paths, sync)).recover();
+            long elapsed = System.nanoTime() - start_time;
+            if (!recovered.equals(expected)) {
+                throw new IOException("recovered map differs from the logged one");
+            }
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        System.out.printf("recover   best %.1f ms, mean %.1f ms over %d runs%n", best / 1e6, total / 1e6 / Math.max(1, runs), runs);
+    }
+
+    /**
+     * @brief wait until the first snapshot is installed, the log it covers is deleted right after
+     */
+    private static void wait_snapshot(File dir) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + snapshot_timeout;
+        while (!(new File(dir, "versions.snapshot")).exists() || (new File(dir, "versions.wal.1")).exists()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("no snapshot written");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void report(String phase, long records, long nanos) {
+        System.out.printf("%-9s %d records in %.1f ms, %.0f records/s%n", phase, records, nanos / 1e6,
+            records / Math.max(1e-9, nanos / 1e9));
+    }
+
+    private static long wal_bytes(File dir) {
+        long bytes = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("versions.wal.")) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static void delete_dir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
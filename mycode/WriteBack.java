@@ -0,0 +1,270 @@
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+* @brief write-back queue of the Proxy, close() leaves a written copy as a pending cache version and returns at once
+* @brief a background thread uploads each path once its copy has been left alone for delay ms, so repeated closes
+* @brief of a path within the delay send only the latest content; pending versions sort above every Server version
+* @brief per-path state is changed by the Proxy under the path lock, this class only guards its own map
+*/
+public class WriteBack {
+
+    /**
+     * @brief the latest closed copy of one path waiting for, or in, its upload
+     */
+    public static class Entry {
+        /**
+         * unversioned cache path, the key of the entry
+         */
+        public final String key;
+        public final String orig_path;
+        /**
+         * _rdonly_ cache path of the pending version, pinned until the entry is installed or released
+         */
+        public final String cache_path;
+        public final int version;
+        public final long length;
+        /**
+         * version the Server assigned, not positive until uploaded
+         */
+        public volatile int uploaded_version = 0;
+        /**
+         * true once the Proxy gave up the pin of cache_path, guarded by the path lock
+         */
+        public boolean released;
+        long first_close;
+        long due;
+        int attempts;
+        boolean uploading;
+
+        Entry(String key, String orig_path, String cache_path, int version, long length) {
+            this.key = key;
+            this.orig_path = orig_path;
+            this.cache_path = cache_path;
+            this.version = version;
+            this.length = length;
+        }
+    }
+
+    /**
+     * pending versions count up from here, above any version the Server hands out
+     */
+    private static final int first_pending_version = 1 << 30;
+    /**
+     * longest wait between retries of a failed upload, in ms
+     */
+    private static final long max_backoff = 30000;
+
+    private final long delay;
+    private final long max_delay;
+    private final ToIntFunction<Entry> upload;
+    private final Consumer<Entry> install;
+    private final Map<String, Entry> pending = new HashMap<String, Entry>();
+    private int next_version = first_pending_version;
+    private boolean draining = false;
+
+    /**
+     * @param delay ms a path must go without a close before it is uploaded
+     * @param max_delay ms after its first unsent close a path is uploaded even if closes keep coming
+     * @param upload uploads the file of an entry, returns the new Server version, not positive on failure
+     * @param install called after every upload attempt, must remove, release or reschedule the entry under its path lock
+     */
+    public WriteBack(long delay, long max_delay, ToIntFunction<Entry> upload, Consumer<Entry> install) {
+        this.delay = delay;
+        this.max_delay = max_delay;
+        this.upload = upload;
+        this.install = install;
+        Thread uploader = new Thread(this::run, "write-back");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /**
+     * @return a pending version never handed out before
+     */
+    public synchronized int next_version() {
+        return next_version++;
+    }
+
+    /**
+     * @brief queue a closed copy of a path, replacing the earlier one
+     * @param key unversioned cache path
+     * @param orig_path original path to upload to
+     * @param cache_path _rdonly_ cache path of the pending version, pinned once for the entry
+     * @param version pending version
+     * @param length file length
+     * @return the replaced entry if the caller should release it now, null if none or if it is being uploaded
+     */
+    public synchronized Entry add(String key, String orig_path, String cache_path, int version, long length) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(key, orig_path, cache_path, version, length);
+        Entry replaced = pending.put(key, entry);
+        // Closes keep an unsent path waiting, but never past max_delay after its first one
+        boolean unsent = replaced != null && !replaced.uploading && replaced.uploaded_version <= 0;
+        entry.first_close = unsent ? replaced.first_close : now;
+        entry.due = Math.min(now + delay, entry.first_close + max_delay);
+        Metrics.increment("proxy.writeback_deferred");
+        Metrics.set("proxy.writeback_pending", pending.size());
+        notifyAll();
+        if (replaced == null || replaced.uploading) {
+            // An entry in upload is released by the install callback once it sees it replaced
+            return null;
+        }
+        if (unsent) {
+            Metrics.increment("proxy.writeback_coalesced");
+        }
+        return replaced;
+    }
+
+    /**
+     * @param key unversioned cache path
+     * @return the pending entry of the path, null if it has none
+     */
+    public synchronized Entry lookup(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * @return true if entry is still the latest of its path
+     */
+    public synchronized boolean is_current(Entry entry) {
+        return pending.get(entry.key) == entry;
+    }
+
+    /**
+     * @brief drop an installed entry
+     * @param entry entry whose version is now a regular cache version
+     */
+    public synchronized void remove(Entry entry) {
+        pending.remove(entry.key, entry);
+        Metrics.set("proxy.writeback_pending", pending.size());
+        notifyAll();
+    }
+
+    /**
+     * @brief try the entry again later, with backoff while its upload keeps failing
+     * @param entry entry that could not be installed yet
+     */
+    public synchronized void reschedule(Entry entry) {
+        long wait = delay;
+        if (entry.uploaded_version <= 0) {
+            wait = Math.min(max_backoff, delay << Math.min(entry.attempts, 10));
+        }
+        entry.due = System.currentTimeMillis() + wait;
+        notifyAll();
+    }
+
+    /**
+     * @brief forget the pending entry of a deleted path, waiting out an upload in progress so it cannot land afterwards
+     * @brief must be called without the path lock, the install callback of that upload takes it
+     * @param key unversioned cache path
+     * @return the cancelled entry to release, null if the path had none
+     */
+    public synchronized Entry cancel(String key) {
+        Entry entry = pending.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        Metrics.set("proxy.writeback_pending", pending.size());
+        while (entry.uploading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @brief upload every unsent entry now and wait until the Server has them all, used at shutdown
+     * @param timeout ms to wait at most
+     * @return false if some uploads were not sent in time
+     */
+    public synchronized boolean drain(long timeout) {
+        draining = true;
+        notifyAll();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            int unsent = 0;
+            for (Entry entry : pending.values()) {
+                if (entry.uploaded_version <= 0) {
+                    unsent++;
+                }
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (unsent == 0) {
+                return true;
+            }
+            if (left <= 0) {
+                System.err.println("WriteBack: drain timed out, " + unsent + " closed files not uploaded");
+                return false;
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @brief wait for the entry due first, draining makes unsent entries due at once unless they are backing off
+     * @return entry marked as uploading
+     */
+    private synchronized Entry take_due() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Entry next = null;
+            for (Entry entry : pending.values()) {
+                if (!entry.uploading && (next == null || entry.due < next.due)) {
+                    next = entry;
+                }
+            }
+            if (next != null && (next.due <= now || (draining && next.attempts == 0 && next.uploaded_version <= 0))) {
+                next.uploading = true;
+                return next;
+            }
+            wait((next == null) ? 0 : next.due - now);
+        }
+    }
+
+    private synchronized void finished(Entry entry) {
+        entry.uploading = false;
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = take_due();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (entry.uploaded_version <= 0) {
+                    int new_version = upload.applyAsInt(entry);
+                    if (new_version > 0) {
+                        entry.uploaded_version = new_version;
+                        Metrics.increment("proxy.writeback_uploads");
+                        Metrics.add("proxy.writeback_upload_bytes", entry.length);
+                    } else {
+                        entry.attempts++;
+                        Metrics.increment("proxy.writeback_upload_failures");
+                        System.err.println("WriteBack: upload of " + entry.orig_path + " failed, attempt " + entry.attempts);
+                    }
+                }
+                install.accept(entry);
+            } catch (RuntimeException e) {
+                System.err.println("WriteBack: install of " + entry.orig_path + " failed");
+                e.printStackTrace();
+                reschedule(entry);
+            }
+            finished(entry);
+        }
+    }
+}
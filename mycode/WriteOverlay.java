@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+* @brief copy-on-write view of a cached version for one writer fd
+* @brief modified blocks live at their offsets in the _wr_ file, every other byte is read from the _rdonly_ version
+*/
+public class WriteOverlay {
+
+    /**
+     * copy-on-write granularity, a partial write copies at most one block per end from the base
+     */
+    public static final int block_size = 4096;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    /**
+     * shared channel of the _rdonly_ version, owned by its cache entry
+     */
+    private final FileChannel base;
+    /**
+     * block store of the base when it is a sparse huge version, null for whole files
+     */
+    private final SparseFile base_sparse;
+    private final long base_length;
+    /**
+     * logical length, the _wr_ file is kept at this length with holes for blocks not copied up
+     */
+    private long length;
+    /**
+     * blocks held in the _wr_ file
+     */
+    private final BitSet present = new BitSet();
+    private final Cache cache;
+    /**
+     * write cache entry charged for the present blocks
+     */
+    private final CachedFileInfo owner;
+    private long charged = 0;
+
+    /**
+     * @param write_path _wr_ file to create
+     * @param base shared channel of the _rdonly_ version, kept pinned by the caller while the overlay is open
+     * @param base_sparse block store of the base if it is sparse, else null
+     * @param base_length length of the base version
+     * @param cache cache charged for copied up blocks
+     * @param owner pinned write entry of this fd
+     */
+    public WriteOverlay(String write_path, FileChannel base, SparseFile base_sparse, long base_length, Cache cache, CachedFileInfo owner) throws IOException {
+        this.base_sparse = base_sparse;
+        this.base_length = base_length;
+        this.length = base_length;
+        this.cache = cache;
+        this.owner = owner;
+        this.base = base;
+        raf = new RandomAccessFile(write_path, "rw");
+        raf.setLength(base_length);
+        channel = raf.getChannel();
+    }
+
+    /**
+     * @return channel of the _wr_ file, its present blocks and length are current
+     */
+    public FileChannel get_channel() {
+        return channel;
+    }
+
+    public RandomAccessFile get_raf() {
+        return raf;
+    }
+
+    public synchronized long size() {
+        return length;
+    }
+
+    /**
+     * @return true if the base version is a sparse huge file
+     */
+    public boolean is_base_sparse() {
+        return base_sparse != null;
+    }
+
+    /**
+     * @brief write buf at pos, copying up the partially covered blocks from the base first
+     * @param buf bytes to write
+     * @param pos file offset
+     * @return 0 on success, -1 on I/O failure, -2 if the cache cannot make room (Errors.ENOMEM)
+     */
+    public synchronized int write(byte[] buf, long pos) throws IOException {
+        if (buf.length == 0) {
+            return 0;
+        }
+        long end = pos + buf.length;
+        long new_length = Math.max(length, end);
+        int first = (int)(pos / block_size);
+        int last = (int)((end - 1) / block_size);
+        BitSet touched = new BitSet();
+        touched.set(first, last + 1);
+        touched.andNot(present);
+        long delta = charge_for(new_length, touched) - charged;
+        if (delta != 0 && !cache.charge(owner, delta)) {
+            return -2;
+        }
+        charged += delta;
+        // Only the end blocks can be partially covered, the ones in between are overwritten whole
+        if (touched.get(first) && !covers(first, pos, end) && copy_up(first) != 0) {
+            return -1;
+        }
+        if (last != first && touched.get(last) && !covers(last, pos, end) && copy_up(last) != 0) {
+            return -1;
+        }
+        present.or(touched);
+        ByteBuffer src = ByteBuffer.wrap(buf);
+        while (src.hasRemaining()) {
+            channel.write(src, pos + src.position());
+        }
+        length = new_length;
+        return 0;
+    }
+
+    /**
+     * @brief read into buf from pos, block by block from the _wr_ file or the base
+     * @param buf destination
+     * @param pos file offset
+     * @return bytes read, 0 at end of file, -1 on failure, -2 if a sparse base cannot make room
+     */
+    public synchronized int read(byte[] buf, long pos) throws IOException {
+        if (pos >= length) {
+            return 0;
+        }
+        int total = (int)Math.min(buf.length, length - pos);
+        int done = 0;
+        while (done < total) {
+            long offset = pos + done;
+            int block = (int)(offset / block_size);
+            int count = (int)Math.min(total - done, (long)(block + 1) * block_size - offset);
+            ByteBuffer dst = ByteBuffer.wrap(buf, done, count);
+            if (present.get(block)) {
+                read_fully(channel, dst, offset);
+            } else if (offset < base_length) {
+                int base_count = (int)Math.min(count, base_length - offset);
+                if (base_sparse != null) {
+                    int ensure_result = base_sparse.ensure(offset, base_count);
+                    if (ensure_result != 0) {
+                        return ensure_result;
+                    }
+                }
+                dst.limit(dst.position() + base_count);
+                read_fully(base, dst, offset);
+                Arrays.fill(buf, done + base_count, done + count, (byte)0);
+            } else {
+                // Past the base and never written, a hole left by a write further out
+                Arrays.fill(buf, done, done + count, (byte)0);
+            }
+            done += count;
+        }
+        return total;
+    }
+
+    /**
+     * @brief copy every missing block from the base, the _wr_ file is then a complete copy
+     * @return 0 on success, -1 on I/O failure, -2 if the cache cannot make room (Errors.ENOMEM)
+     */
+    public synchronized int materialize() throws IOException {
+        int block_count = (int)((length + block_size - 1) / block_size);
+        BitSet missing = new BitSet();
+        missing.set(0, block_count);
+        missing.andNot(present);
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        long delta = charge_for(length, missing) - charged;
+        if (delta != 0 && !cache.charge(owner, delta)) {
+            return -2;
+        }
+        charged += delta;
+        for (int block = missing.nextSetBit(0); block >= 0; block = missing.nextSetBit(block + 1)) {
+            if (copy_up(block) != 0) {
+                return -1;
+            }
+        }
+        present.or(missing);
+        Metrics.increment("proxy.overlay_materializations");
+        return 0;
+    }
+
+    /**
+     * @brief bytes to charge if the blocks in extra were added and the file had new_length
+     */
+    private long charge_for(long new_length, BitSet extra) {
+        BitSet blocks = (BitSet)present.clone();
+        blocks.or(extra);
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        long bytes = (long)blocks.cardinality() * block_size;
+        int last = blocks.length() - 1;
+        long last_end = (long)(last + 1) * block_size;
+        if (last_end > new_length) {
+            bytes -= last_end - new_length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return true if [pos, end) overwrites every base byte of block, so it needs no copy up
+     */
+    private boolean covers(int block, long pos, long end) {
+        long start = (long)block * block_size;
+        return pos <= start && end >= Math.min(start + block_size, base_length);
+    }
+
+    /**
+     * @brief copy the base bytes of one block into the _wr_ file
+     * @return 0 on success, else the failure code of the sparse base
+     */
+    private int copy_up(int block) throws IOException {
+        long offset = (long)block * block_size;
+        if (offset >= base_length) {
+            return 0;
+        }
+        int count = (int)Math.min(block_size, base_length - offset);
+        if (base_sparse != null) {
+            int ensure_result = base_sparse.ensure(offset, count);
+            if (ensure_result != 0) {
+                return ensure_result;
+            }
+        }
+        long copied = 0;
+        while (copied < count) {
+            long moved = base.transferTo(offset + copied, count - copied, channel.position(offset + copied));
+            if (moved <= 0) {
+                return -1;
+            }
+            copied += moved;
+        }
+        Metrics.add("proxy.overlay_copy_up_bytes", count);
+        return 0;
+    }
+
+    private static void read_fully(FileChannel source, ByteBuffer dst, long offset) throws IOException {
+        long start = dst.position();
+        while (dst.hasRemaining()) {
+            if (source.read(dst, offset + dst.position() - start) == -1) {
+                break;
+            }
+        }
+    }
+}